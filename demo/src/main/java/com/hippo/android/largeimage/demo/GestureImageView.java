@@ -22,19 +22,28 @@ package com.hippo.android.largeimage.demo;
 
 import android.content.Context;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.support.annotation.Nullable;
 import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.AppCompatImageView;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import com.hippo.android.gesture.GestureRecognizer;
+import com.hippo.android.largeimage.DecodeScheduler;
+import com.hippo.android.largeimage.ImageRegionDecoderRegistry;
 import com.hippo.android.largeimage.SkiaImageRegionDecoder;
 import com.hippo.android.largeimage.TiledDrawable;
 import com.hippo.android.largeimage.TransformableDrawable;
 
 public class GestureImageView extends AppCompatImageView {
 
+  // Keep decoders for 30 seconds, keep 32MB previews at most
+  private static final ImageRegionDecoderRegistry REGISTRY =
+      new ImageRegionDecoderRegistry(30 * 1000, 32 * 1024 * 1024);
+
+  // All images share the decoding threads, the focused one first
+  private static final DecodeScheduler SCHEDULER = new DecodeScheduler(2);
+
+  private final DecodeScheduler.Lane lane = SCHEDULER.newLane();
   private GestureRecognizer gestureRecognizer;
   private int resId;
 
@@ -65,9 +74,14 @@ public class GestureImageView extends AppCompatImageView {
   }
 
   private void bindDrawable(int resId) {
-    SkiaImageRegionDecoder decoder = SkiaImageRegionDecoder.newInstance(getResources().openRawResource(resId));
-    if (decoder != null) {
-      TiledDrawable drawable = new TiledDrawable(decoder, AsyncTask.SERIAL_EXECUTOR, true);
+    TiledDrawable drawable = REGISTRY.obtain(resId, lane);
+    if (drawable == null) {
+      SkiaImageRegionDecoder decoder = SkiaImageRegionDecoder.newInstance(getResources().openRawResource(resId));
+      if (decoder != null) {
+        drawable = REGISTRY.obtain(resId, decoder, lane);
+      }
+    }
+    if (drawable != null) {
       TransformableDrawable tDrawable = new TransformableDrawable(drawable);
       tDrawable.setVisibleRect(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
       setImageDrawable(tDrawable);
@@ -79,12 +93,20 @@ public class GestureImageView extends AppCompatImageView {
     if (drawable instanceof TransformableDrawable) {
       drawable = ((TransformableDrawable) drawable).getDrawable();
       if (drawable instanceof TiledDrawable) {
-        ((TiledDrawable) drawable).recycle();
+        REGISTRY.release((TiledDrawable) drawable);
       }
     }
     setImageDrawable(null);
   }
 
+  /**
+   * Sets whether this image is focused, like the current page of a pager.
+   * Tiles of the focused image are decoded first.
+   */
+  public void setDecodeFocused(boolean focused) {
+    lane.setFocused(focused);
+  }
+
   public void load(int resId) {
     int oldResId = this.resId;
     this.resId = resId;
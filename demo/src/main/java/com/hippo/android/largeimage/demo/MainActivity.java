@@ -32,6 +32,7 @@ public class MainActivity extends AppCompatActivity {
 
     GestureImageView image = findViewById(R.id.large_image);
     image.setScaleType(ImageView.ScaleType.FIT_XY);
+    image.setDecodeFocused(true);
     image.load(R.drawable.qingming_shanghe_tu);
   }
 }
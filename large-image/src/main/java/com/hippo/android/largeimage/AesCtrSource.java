@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.support.annotation.NonNull;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A SeekableSource which decrypts an AES/CTR encrypted source.
+ *
+ * The key stream of CTR mode at any block can be generated from the counter
+ * of that block, so only the bytes read are decrypted, no matter where they are.
+ * The counter is the IV for the first block, it's increased by one
+ * for each 16-byte block, as a big-endian 128-bit integer.
+ */
+public class AesCtrSource implements SeekableSource {
+
+  private static final int BLOCK_SIZE = 16;
+
+  private final SeekableSource source;
+  private final SecretKeySpec key;
+  private final byte[] iv;
+
+  // Cipher isn't thread-safe
+  private final ThreadLocal<Cipher> cipher = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      try {
+        return Cipher.getInstance("AES/CTR/NoPadding");
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("AES/CTR isn't supported", e);
+      }
+    }
+  };
+
+  /**
+   * Create an AesCtrSource.
+   *
+   * @param source the encrypted source, it's closed with this source
+   * @param key the AES key, 16, 24 or 32 bytes
+   * @param iv the counter of the first block, 16 bytes
+   */
+  public AesCtrSource(@NonNull SeekableSource source, @NonNull byte[] key, @NonNull byte[] iv) {
+    if (iv.length != BLOCK_SIZE) {
+      throw new IllegalArgumentException("Invalid IV length: " + iv.length);
+    }
+    this.source = source;
+    this.key = new SecretKeySpec(key, "AES");
+    this.iv = iv.clone();
+  }
+
+  @Override
+  public long length() throws IOException {
+    return source.length();
+  }
+
+  @Override
+  public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+    int read = source.read(position, buffer, offset, length);
+    if (read <= 0) {
+      return read;
+    }
+
+    try {
+      Cipher c = cipher.get();
+      c.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(counter(iv, position / BLOCK_SIZE)));
+      // Skip the key stream before the position in the first block
+      int skip = (int) (position % BLOCK_SIZE);
+      if (skip != 0) {
+        c.update(new byte[skip]);
+      }
+      int n = c.update(buffer, offset, read, buffer, offset);
+      if (n != read) {
+        throw new IOException("Unexpected cipher output: " + n + " != " + read);
+      }
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Can't decrypt at " + position, e);
+    }
+    return read;
+  }
+
+  /*
+   * Returns the counter of the block, iv + block as big-endian 128-bit integers.
+   */
+  static byte[] counter(byte[] iv, long block) {
+    byte[] counter = iv.clone();
+    long carry = block;
+    for (int i = BLOCK_SIZE - 1; i >= 0 && carry != 0; i--) {
+      long sum = (counter[i] & 0xFF) + (carry & 0xFF);
+      counter[i] = (byte) sum;
+      carry = (carry >>> 8) + (sum >>> 8);
+    }
+    return counter;
+  }
+
+  @Override
+  public void close() throws IOException {
+    source.close();
+  }
+}
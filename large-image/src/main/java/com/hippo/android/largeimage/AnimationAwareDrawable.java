@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.graphics.RectF;
+import android.support.annotation.NonNull;
+
+/**
+ * AnimationAwareDrawable is told about animations of the view drawing it,
+ * so that it can skip heavy works for intermediate frames.
+ * It's optional for {@link PreciseDrawable}.
+ */
+public interface AnimationAwareDrawable {
+
+  /**
+   * Called when an animation, like fling or animated zoom, starts.
+   * {@code src} and {@code dst} are the regions to draw when the animation ends.
+   * Heavy works for intermediate frames could be skipped until {@link #onAnimationEnd()}.
+   */
+  void onAnimationStart(@NonNull RectF src, @NonNull RectF dst);
+
+  /**
+   * Called when the animation ends or is stopped.
+   */
+  void onAnimationEnd();
+}
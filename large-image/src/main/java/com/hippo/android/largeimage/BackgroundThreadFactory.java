@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Creates threads at background priority, so that decoding never starves the UI thread.
+ */
+class BackgroundThreadFactory implements ThreadFactory {
+
+  private final String name;
+  private final AtomicInteger count = new AtomicInteger();
+
+  /*
+   * Threads are named "<name> #<n>".
+   */
+  BackgroundThreadFactory(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public Thread newThread(@NonNull final Runnable r) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        r.run();
+      }
+    }, name + " #" + count.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  }
+}
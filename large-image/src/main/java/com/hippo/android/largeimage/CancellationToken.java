@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.support.annotation.Nullable;
+
+/**
+ * A token to cancel a running decoding.
+ *
+ * The decoding thread checks {@link #isCancelled()} between rows or blocks,
+ * or registers a listener to abort the decoding. It's thread-safe.
+ *
+ * @see ImageRegionDecoder#decodeInto(android.graphics.Rect, int, android.graphics.Bitmap, CancellationToken)
+ */
+public final class CancellationToken {
+
+  private volatile boolean cancelled;
+  @Nullable
+  private Runnable listener;
+
+  /**
+   * Returns {@code true} if it's cancelled.
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Cancels it. The listener is called in the current thread.
+   * It does nothing if it's already cancelled.
+   */
+  public void cancel() {
+    Runnable listener;
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true;
+      listener = this.listener;
+      this.listener = null;
+    }
+    if (listener != null) {
+      listener.run();
+    }
+  }
+
+  /**
+   * Sets a listener called when it's cancelled. If it's already cancelled,
+   * the listener is called in the current thread immediately.
+   * Set {@code null} to remove it, don't keep it after the decoding finishes.
+   */
+  public void setOnCancelListener(@Nullable Runnable listener) {
+    synchronized (this) {
+      if (!cancelled) {
+        this.listener = listener;
+        return;
+      }
+    }
+    if (listener != null) {
+      listener.run();
+    }
+  }
+}
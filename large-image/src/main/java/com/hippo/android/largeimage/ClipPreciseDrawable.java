@@ -30,7 +30,7 @@ import android.support.annotation.Nullable;
 /**
  * ClipPreciseDrawable can only clip {@code PreciseDrawable}.
  */
-public class ClipPreciseDrawable extends ClipDrawable implements PreciseDrawable {
+public class ClipPreciseDrawable extends ClipDrawable implements PreciseDrawable, AnimationAwareDrawable {
 
   private RectF rectF1 = new RectF();
 
@@ -53,4 +53,24 @@ public class ClipPreciseDrawable extends ClipDrawable implements PreciseDrawable
       ((PreciseDrawable) drawable).draw(canvas, source, dst);
     }
   }
+
+  @Override
+  public void onAnimationStart(@NonNull RectF src, @NonNull RectF dst) {
+    Drawable drawable = getDrawable();
+    Rect clip = getClip();
+    if (drawable instanceof AnimationAwareDrawable && !clip.isEmpty()) {
+      RectF source = rectF1;
+      source.set(src);
+      source.offset(clip.left, clip.top);
+      ((AnimationAwareDrawable) drawable).onAnimationStart(source, dst);
+    }
+  }
+
+  @Override
+  public void onAnimationEnd() {
+    Drawable drawable = getDrawable();
+    if (drawable instanceof AnimationAwareDrawable) {
+      ((AnimationAwareDrawable) drawable).onAnimationEnd();
+    }
+  }
 }
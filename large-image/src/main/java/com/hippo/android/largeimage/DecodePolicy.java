@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+/**
+ * DecodePolicy tells how to drive an {@link ImageRegionDecoder}
+ * according to its capabilities.
+ */
+final class DecodePolicy {
+
+  private final int parallelism;
+  private final boolean reuseBitmap;
+  private final boolean anySample;
+  private final boolean cancelRunning;
+
+  DecodePolicy(ImageRegionDecoder decoder, int processors) {
+    int capabilities = decoder.getCapabilities();
+    if ((capabilities & ImageRegionDecoder.CAPABILITY_CONCURRENT_DECODE) != 0) {
+      parallelism = Math.max(1, Math.min(processors, decoder.getMaxConcurrency()));
+    } else {
+      parallelism = 1;
+    }
+    reuseBitmap = (capabilities & ImageRegionDecoder.CAPABILITY_REUSE_BITMAP) != 0;
+    anySample = (capabilities & ImageRegionDecoder.CAPABILITY_ANY_SAMPLE) != 0;
+    cancelRunning = (capabilities & ImageRegionDecoder.CAPABILITY_CHEAP_CANCEL) != 0;
+  }
+
+  /**
+   * Returns the maximum count of decodings running at the same time.
+   * More decodings only wait for the lock of the decoder and hold the threads.
+   */
+  int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Returns {@code true} if the bitmaps of released tiles should be kept
+   * to decode other tiles into.
+   */
+  boolean isBitmapReused() {
+    return reuseBitmap;
+  }
+
+  /**
+   * Returns the count of bitmaps to keep for reusing.
+   * One for each running decoding, and one ready for the next decoding.
+   */
+  int getReusePoolSize() {
+    return reuseBitmap ? parallelism + 1 : 0;
+  }
+
+  /**
+   * Returns {@code true} if running decodings should be cancelled when
+   * their tiles aren't needed anymore. Otherwise they are left to finish,
+   * and the results are kept in the second-tier cache.
+   */
+  boolean isRunningCancelled() {
+    return cancelRunning;
+  }
+
+  /**
+   * Returns the sample to pass to the decoder. A sample which isn't power of 2
+   * is rounded down if the decoder doesn't support it, the same as what
+   * the decoder might do, so that the size of the result is predictable.
+   */
+  int getDecodeSample(int sample) {
+    sample = Math.max(1, sample);
+    return anySample ? sample : Utils.prevPow2(sample);
+  }
+}
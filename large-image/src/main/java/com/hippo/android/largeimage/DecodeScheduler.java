@@ -0,0 +1,265 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.support.annotation.NonNull;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * DecodeScheduler runs the tasks of several TiledDrawables in shared threads.
+ *
+ * Each TiledDrawable gets its own {@link Lane}, pass it as the executor of
+ * the TiledDrawable. Tasks in a lane run one by one in order, like
+ * {@link android.os.AsyncTask#SERIAL_EXECUTOR}. Focused lanes have strict
+ * priority, a task in other lanes only runs if no task in focused lanes can run.
+ * Other lanes take turns, one task each turn, so that a lane with many tasks
+ * doesn't hold up the others.
+ *
+ * Threads run at background priority by default, and they stop after
+ * idle for a while.
+ */
+public class DecodeScheduler {
+
+  private static final long KEEP_ALIVE_MILLIS = 30 * 1000;
+
+  private final int threadCount;
+  private final ThreadFactory threadFactory;
+
+  // Lanes with tasks
+  private final List<Lane> lanes = new ArrayList<>();
+  // The next non-focused lane to take a task from
+  private int cursor;
+  private int taskCount;
+  private int workerCount;
+  private int idleCount;
+  private boolean shutdown;
+
+  /**
+   * Creates a DecodeScheduler with threads at background priority.
+   *
+   * @param threadCount the max count of threads
+   */
+  public DecodeScheduler(int threadCount) {
+    this(threadCount, new BackgroundThreadFactory("DecodeScheduler"));
+  }
+
+  /**
+   * Creates a DecodeScheduler.
+   *
+   * @param threadCount the max count of threads
+   * @param threadFactory the factory to create threads
+   */
+  public DecodeScheduler(int threadCount, @NonNull ThreadFactory threadFactory) {
+    if (threadCount <= 0) {
+      throw new IllegalArgumentException("Invalid thread count: " + threadCount);
+    }
+    this.threadCount = threadCount;
+    this.threadFactory = threadFactory;
+  }
+
+  /**
+   * Creates a new lane.
+   */
+  @NonNull
+  public Lane newLane() {
+    return new Lane();
+  }
+
+  /**
+   * Stops accepting new tasks. Threads stop after the queued tasks finish.
+   */
+  public void shutdown() {
+    synchronized (this) {
+      shutdown = true;
+      notifyAll();
+    }
+  }
+
+  private synchronized void enqueue(Lane lane, Runnable task) {
+    if (shutdown) {
+      throw new RejectedExecutionException("DecodeScheduler is shut down");
+    }
+
+    lane.tasks.addLast(task);
+    if (!lane.active) {
+      lane.active = true;
+      lanes.add(lane);
+    }
+    taskCount++;
+
+    if (taskCount > idleCount && workerCount < threadCount) {
+      Thread thread = threadFactory.newThread(new Worker());
+      workerCount++;
+      thread.start();
+    }
+    notify();
+  }
+
+  /*
+   * Returns the lane of the next task, null if there is no task to run.
+   * Lanes with a running task are skipped, so tasks in a lane run one by one.
+   */
+  private Lane poll() {
+    int size = lanes.size();
+    if (size == 0) {
+      return null;
+    }
+
+    // Focused lanes first
+    for (int i = 0; i < size; i++) {
+      Lane lane = lanes.get(i);
+      if (lane.focused && lane.running == null) {
+        return take(i);
+      }
+    }
+
+    // Take turns
+    int start = cursor < size ? cursor : 0;
+    for (int i = 0; i < size; i++) {
+      int index = (start + i) % size;
+      Lane lane = lanes.get(index);
+      if (!lane.focused && lane.running == null) {
+        cursor = index + 1;
+        return take(index);
+      }
+    }
+    return null;
+  }
+
+  private Lane take(int index) {
+    Lane lane = lanes.get(index);
+    lane.running = lane.tasks.pollFirst();
+    taskCount--;
+    if (lane.tasks.isEmpty()) {
+      lane.active = false;
+      lanes.remove(index);
+      if (index < cursor) {
+        // Keep the cursor on the same lane
+        cursor--;
+      }
+    }
+    return lane;
+  }
+
+  /*
+   * Returns the lane of the next task, waits for it if there is no task.
+   * Returns null if the worker should stop.
+   */
+  private synchronized Lane next() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + KEEP_ALIVE_MILLIS;
+    idleCount++;
+    try {
+      for (;;) {
+        Lane lane = poll();
+        if (lane != null) {
+          return lane;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        if (shutdown || remaining <= 0) {
+          return null;
+        }
+        wait(remaining);
+      }
+    } finally {
+      idleCount--;
+    }
+  }
+
+  /*
+   * Lets the next task of the lane run.
+   */
+  private synchronized void onTaskFinished(Lane lane) {
+    lane.running = null;
+    if (!lane.tasks.isEmpty()) {
+      notify();
+    }
+  }
+
+  private synchronized void onWorkerExit() {
+    workerCount--;
+    // Tasks might be enqueued while it's exiting
+    if (taskCount > idleCount && workerCount < threadCount && !shutdown) {
+      Thread thread = threadFactory.newThread(new Worker());
+      workerCount++;
+      thread.start();
+    }
+  }
+
+  /**
+   * A queue of tasks in the scheduler. It's an executor for a TiledDrawable.
+   */
+  public final class Lane implements Executor {
+
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    // It's in the list of lanes with tasks
+    private boolean active;
+    // The running task, tasks in a lane run one by one
+    private Runnable running;
+    private boolean focused;
+
+    private Lane() {}
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+      enqueue(this, command);
+    }
+
+    /**
+     * Sets whether this lane is focused, like the current page of a pager.
+     * Focused lanes have strict priority over others.
+     */
+    public void setFocused(boolean focused) {
+      synchronized (DecodeScheduler.this) {
+        this.focused = focused;
+      }
+    }
+
+    public boolean isFocused() {
+      synchronized (DecodeScheduler.this) {
+        return focused;
+      }
+    }
+  }
+
+  private class Worker implements Runnable {
+    @Override
+    public void run() {
+      try {
+        for (;;) {
+          Lane lane = next();
+          if (lane == null) {
+            break;
+          }
+          try {
+            lane.running.run();
+          } finally {
+            onTaskFinished(lane);
+          }
+        }
+      } catch (InterruptedException e) {
+        // Stop it
+      } finally {
+        onWorkerExit();
+      }
+    }
+  }
+}
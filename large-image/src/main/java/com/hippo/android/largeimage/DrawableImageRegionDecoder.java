@@ -0,0 +1,176 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Picture;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.PictureDrawable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * A ImageRegionDecoder which rasterizes a {@link Drawable} or a {@link Picture}.
+ *
+ * It makes vector artworks and recorded pictures work with {@link TiledDrawable},
+ * regions are rendered to bitmaps in background instead of drawing
+ * the whole content in the main thread for each frame.
+ *
+ * The drawable is drawn in the decoding thread, so it must not be
+ * drawn or modified anywhere else once it's passed to this decoder.
+ */
+public class DrawableImageRegionDecoder extends ImageRegionDecoder {
+
+  // Log tags must not be longer than 23 characters
+  private static final String LOG_TAG = "DrawableRegionDecoder";
+
+  private final Drawable drawable;
+  private final int width;
+  private final int height;
+
+  private DrawableImageRegionDecoder(Drawable drawable, int width, int height) {
+    this.drawable = drawable;
+    this.width = width;
+    this.height = height;
+    drawable.setBounds(0, 0, width, height);
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  @Nullable
+  @Override
+  public Bitmap decode(Rect rect, int sample) {
+    return decodeInto(rect, sample, null);
+  }
+
+  @Override
+  public int getCapabilities() {
+    // The drawable is drawn with a lock, so decodings don't run in parallel
+    return CAPABILITY_REUSE_BITMAP | CAPABILITY_ANY_SAMPLE | CAPABILITY_DECODE_ONTO;
+  }
+
+  @Nullable
+  @Override
+  public Bitmap decodeInto(Rect rect, int sample, @Nullable Bitmap reuse) {
+    int bWidth = Utils.ceilDiv(rect.width(), sample);
+    int bHeight = Utils.ceilDiv(rect.height(), sample);
+
+    Bitmap bitmap;
+    if (reuse != null && reuse.getWidth() == bWidth && reuse.getHeight() == bHeight) {
+      bitmap = reuse;
+      bitmap.eraseColor(Color.TRANSPARENT);
+    } else {
+      try {
+        bitmap = Bitmap.createBitmap(bWidth, bHeight, Bitmap.Config.ARGB_8888);
+      } catch (OutOfMemoryError e) {
+        Log.e(LOG_TAG, "Can't create bitmap for region " + rect + " at sample " + sample, e);
+        return null;
+      }
+    }
+
+    draw(rect, sample, bitmap);
+    return bitmap;
+  }
+
+  @Override
+  public boolean decodeOnto(Rect rect, int sample, Bitmap dst,
+      @Nullable CancellationToken token) {
+    if (token != null && token.isCancelled()) {
+      return false;
+    }
+    int bWidth = Utils.ceilDiv(rect.width(), sample);
+    int bHeight = Utils.ceilDiv(rect.height(), sample);
+    if (dst.getWidth() < bWidth || dst.getHeight() < bHeight) {
+      return false;
+    }
+
+    dst.eraseColor(Color.TRANSPARENT);
+    draw(rect, sample, dst);
+    return true;
+  }
+
+  // Draws the region at the sample to the top-left corner of the bitmap
+  private void draw(Rect rect, int sample, Bitmap bitmap) {
+    Canvas canvas = new Canvas(bitmap);
+    canvas.clipRect(0, 0, Utils.ceilDiv(rect.width(), sample),
+        Utils.ceilDiv(rect.height(), sample));
+    float scale = 1.0f / sample;
+    canvas.scale(scale, scale);
+    canvas.translate(-rect.left, -rect.top);
+    // Drawable isn't thread-safe
+    synchronized (drawable) {
+      drawable.draw(canvas);
+    }
+  }
+
+  @Override
+  public void recycle(Bitmap bitmap) {
+    bitmap.recycle();
+  }
+
+  /**
+   * Creates a DrawableImageRegionDecoder with the intrinsic size of the drawable.
+   * Returns {@code null} if the drawable has no intrinsic size.
+   */
+  @Nullable
+  public static DrawableImageRegionDecoder newInstance(@NonNull Drawable drawable) {
+    return newInstance(drawable, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight());
+  }
+
+  /**
+   * Creates a DrawableImageRegionDecoder with the size of the picture.
+   */
+  @Nullable
+  public static DrawableImageRegionDecoder newInstance(@NonNull Picture picture) {
+    return newInstance(new PictureDrawable(picture), picture.getWidth(), picture.getHeight());
+  }
+
+  /**
+   * Creates a DrawableImageRegionDecoder. The drawable is rasterized
+   * as if its bounds are {@code (0, 0, width, height)}.
+   */
+  @Nullable
+  public static DrawableImageRegionDecoder newInstance(@NonNull Drawable drawable, int width, int height) {
+    if (width <= 0 || height <= 0) {
+      Log.e(LOG_TAG, "Invalid size: " + width + "x" + height);
+      return null;
+    }
+
+    DrawableImageRegionDecoder decoder = new DrawableImageRegionDecoder(drawable, width, height);
+    decoder.generatePreview();
+
+    if (decoder.getPreview() == null) {
+      Log.e(LOG_TAG, "Can't create generate preview from DrawableImageRegionDecoder");
+      decoder.recycle();
+      return null;
+    }
+
+    return decoder;
+  }
+}
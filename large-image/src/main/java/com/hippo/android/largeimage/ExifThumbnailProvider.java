@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A PreviewProvider which reads the thumbnail in the EXIF of a JPEG file.
+ *
+ * It's available at once, but it's usually only 160 x 120.
+ * Thumbnails whose aspect ratio doesn't match the image, like the ones with
+ * black bars, are dropped.
+ */
+public class ExifThumbnailProvider implements PreviewProvider {
+
+  private static final String LOG_TAG = "ExifThumbnailProvider";
+
+  private final File file;
+
+  public ExifThumbnailProvider(@NonNull File file) {
+    this.file = file;
+  }
+
+  @Nullable
+  @Override
+  public Bitmap getPreview(@NonNull ImageRegionDecoder decoder, int minSample) {
+    byte[] thumbnail;
+    InputStream is = null;
+    try {
+      is = new BufferedInputStream(new FileInputStream(file));
+      thumbnail = JpegHeader.readExifThumbnail(is, JpegHeader.MAX_HEADER_SIZE);
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "Can't read EXIF of " + file, e);
+      return null;
+    } finally {
+      Utils.closeQuietly(is);
+    }
+
+    if (thumbnail == null) {
+      return null;
+    }
+    return BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+  }
+
+  @Override
+  public void onPreviewGenerated(@NonNull ImageRegionDecoder decoder, @NonNull Bitmap preview,
+      int sample) {}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A PreviewProvider which reads the preview from an image file,
+ * like a sidecar file from the server.
+ *
+ * If it's writable, the generated preview is written to the file,
+ * so that it's used the next time the image is opened.
+ */
+public class FilePreviewProvider implements PreviewProvider {
+
+  private static final String LOG_TAG = "FilePreviewProvider";
+
+  private final File file;
+  private final boolean writable;
+
+  /**
+   * Create a FilePreviewProvider.
+   *
+   * @param file the preview file
+   * @param writable {@code true} to write the generated preview to the file
+   */
+  public FilePreviewProvider(@NonNull File file, boolean writable) {
+    this.file = file;
+    this.writable = writable;
+  }
+
+  @Nullable
+  @Override
+  public Bitmap getPreview(@NonNull ImageRegionDecoder decoder, int minSample) {
+    if (!file.isFile()) {
+      return null;
+    }
+
+    // Sample it down if it's bigger than needed
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(file.getPath(), options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      Log.w(LOG_TAG, "Can't read preview " + file);
+      return null;
+    }
+    int maxWidth = Utils.ceilDiv(decoder.getWidth(), minSample);
+    int maxHeight = Utils.ceilDiv(decoder.getHeight(), minSample);
+    int sample = 1;
+    while (Utils.ceilDiv(options.outWidth, sample) > maxWidth
+        || Utils.ceilDiv(options.outHeight, sample) > maxHeight) {
+      sample *= 2;
+    }
+
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = sample;
+    return BitmapFactory.decodeFile(file.getPath(), options);
+  }
+
+  @Override
+  public void onPreviewGenerated(@NonNull ImageRegionDecoder decoder, @NonNull Bitmap preview,
+      int sample) {
+    if (!writable) {
+      return;
+    }
+
+    // Write to a temp file, so that a broken file is never read
+    File temp = new File(file.getPath() + ".tmp");
+    OutputStream os = null;
+    boolean written = false;
+    try {
+      os = new FileOutputStream(temp);
+      written = preview.hasAlpha()
+          ? preview.compress(Bitmap.CompressFormat.PNG, 100, os)
+          : preview.compress(Bitmap.CompressFormat.JPEG, 90, os);
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "Can't write preview " + file, e);
+    } finally {
+      Utils.closeQuietly(os);
+    }
+
+    if (!written || !temp.renameTo(file)) {
+      Log.w(LOG_TAG, "Can't write preview " + file);
+      temp.delete();
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.support.annotation.NonNull;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A SeekableSource of a file.
+ */
+public class FileSource implements SeekableSource {
+
+  private final FileInputStream stream;
+  private final FileChannel channel;
+
+  public FileSource(@NonNull File file) throws IOException {
+    stream = new FileInputStream(file);
+    channel = stream.getChannel();
+  }
+
+  @Override
+  public long length() throws IOException {
+    return channel.size();
+  }
+
+  @Override
+  public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    // Positional read doesn't change the position of the channel, it's thread-safe
+    return channel.read(ByteBuffer.wrap(buffer, offset, length), position);
+  }
+
+  @Override
+  public void close() throws IOException {
+    stream.close();
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.support.annotation.Nullable;
+import java.util.List;
+
+/**
+ * GridViewport keeps the visible tiles of a view from frame to frame,
+ * in the tile grid of the sample level of the last frame.
+ *
+ * It's the part of {@code TiledDrawable.draw()} which runs for each frame
+ * and doesn't need the Android framework, so it must not allocate.
+ */
+class GridViewport<T> {
+
+  interface Listener<T> {
+
+    /**
+     * Returns the tile grid of the sample level, {@code null} if it's not built.
+     */
+    @Nullable
+    TileGrid getGrid(int sample);
+
+    /**
+     * Returns the tiles of the tile grid of the sample level, in column-major order.
+     */
+    @Nullable
+    List<T> getTiles(int sample);
+
+    /**
+     * Called when the tile of the sample level enters the view.
+     */
+    void onTileEnter(T tile, int sample);
+
+    /**
+     * Called when the tile of the sample level leaves the view.
+     */
+    void onTileLeave(T tile, int sample);
+  }
+
+  private final Listener<T> listener;
+  // The visible tiles in the grid
+  private TileGrid.Range range = new TileGrid.Range();
+  // The range of the last grid while switching grids
+  private TileGrid.Range spareRange = new TileGrid.Range();
+  private final Tiles tiles = new Tiles();
+  private final Tiles leavingTiles = new Tiles();
+  @Nullable
+  private TileGrid grid;
+
+  GridViewport(Listener<T> listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Returns the visible tiles in the grid.
+   */
+  TileGrid.Range getRange() {
+    return range;
+  }
+
+  /**
+   * Returns the sample level of the grid.
+   */
+  int getSample() {
+    return tiles.sample;
+  }
+
+  /**
+   * Returns {@code true} if the view is in a grid.
+   */
+  boolean hasGrid() {
+    return grid != null;
+  }
+
+  /**
+   * Returns the tile in the grid.
+   */
+  T getTile(int column, int row) {
+    return tiles.get(column, row);
+  }
+
+  /**
+   * Moves the view to the rect of the image, in the grid of the sample level.
+   */
+  void update(int sample, float left, float top, float right, float bottom) {
+    if (grid != null && tiles.sample == sample) {
+      grid.update(range, left, top, right, bottom, tiles);
+      return;
+    }
+
+    TileGrid newGrid = listener.getGrid(sample);
+    if (grid == null || newGrid == null) {
+      clear();
+      grid = newGrid;
+      tiles.set(listener.getTiles(sample), newGrid, sample);
+      if (grid != null) {
+        grid.update(range, left, top, right, bottom, tiles);
+      }
+      return;
+    }
+
+    // The old tiles leave after the new tiles entered,
+    // so that the new tiles can be derived from them
+    TileGrid oldGrid = grid;
+    TileGrid.Range oldRange = range;
+    leavingTiles.set(tiles.list, oldGrid, tiles.sample);
+    range = spareRange;
+    spareRange = oldRange;
+    grid = newGrid;
+    tiles.set(listener.getTiles(sample), newGrid, sample);
+    oldGrid.switchTo(oldRange, leavingTiles, newGrid, range, left, top, right, bottom, tiles);
+    leavingTiles.set(null, null, 0);
+  }
+
+  /**
+   * Leaves the grid. All visible tiles leave.
+   */
+  void clear() {
+    if (grid != null) {
+      grid.clear(range, tiles);
+      grid = null;
+      tiles.list = null;
+    }
+  }
+
+  /*
+   * The tiles of a grid, reporting the tiles entering and leaving to the listener.
+   */
+  private class Tiles implements TileGrid.Callback {
+    @Nullable
+    private List<T> list;
+    private int rows;
+    private int sample;
+
+    private void set(@Nullable List<T> list, @Nullable TileGrid grid, int sample) {
+      this.list = list;
+      this.rows = grid != null ? grid.getRowCount() : 0;
+      this.sample = sample;
+    }
+
+    private T get(int column, int row) {
+      return list.get(column * rows + row);
+    }
+
+    @Override
+    public void onTileEnter(int column, int row) {
+      listener.onTileEnter(get(column, row), sample);
+    }
+
+    @Override
+    public void onTileLeave(int column, int row) {
+      listener.onTileLeave(get(column, row), sample);
+    }
+  }
+}
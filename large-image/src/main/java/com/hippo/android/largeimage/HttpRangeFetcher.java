@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.support.annotation.NonNull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * A RangeFetcher with HTTP range requests. The server must support
+ * {@code Range} header and report {@code Content-Length}.
+ */
+public class HttpRangeFetcher implements RangeFetcher {
+
+  private static final int TIMEOUT_MILLIS = 15 * 1000;
+
+  private final URL url;
+
+  public HttpRangeFetcher(@NonNull URL url) {
+    this.url = url;
+  }
+
+  private HttpURLConnection open(String method) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod(method);
+    connection.setConnectTimeout(TIMEOUT_MILLIS);
+    connection.setReadTimeout(TIMEOUT_MILLIS);
+    // Content-Length must be the size of the image
+    connection.setRequestProperty("Accept-Encoding", "identity");
+    return connection;
+  }
+
+  @Override
+  public long length() throws IOException {
+    HttpURLConnection connection = open("HEAD");
+    try {
+      int code = connection.getResponseCode();
+      if (code != HttpURLConnection.HTTP_OK) {
+        throw new IOException("Unexpected response code " + code + " for " + url);
+      }
+      String contentLength = connection.getHeaderField("Content-Length");
+      if (contentLength == null) {
+        throw new IOException("No Content-Length for " + url);
+      }
+      try {
+        return Long.parseLong(contentLength);
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid Content-Length " + contentLength + " for " + url, e);
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  @Override
+  public void fetch(long position, byte[] buffer, int offset, int length) throws IOException {
+    HttpURLConnection connection = open("GET");
+    connection.setRequestProperty("Range",
+        "bytes=" + position + "-" + (position + length - 1));
+    try {
+      int code = connection.getResponseCode();
+      if (code != HttpURLConnection.HTTP_PARTIAL) {
+        // 200 means the whole image, the server doesn't support ranges
+        throw new IOException("Unexpected response code " + code + " for " + url);
+      }
+
+      InputStream is = connection.getInputStream();
+      try {
+        int read = 0;
+        while (read < length) {
+          int n = is.read(buffer, offset + read, length - read);
+          if (n < 0) {
+            throw new IOException("Unexpected end of range at " + (position + read));
+          }
+          read += n;
+        }
+      } finally {
+        Utils.closeQuietly(is);
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.SparseArray;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ImagePreparer opens the images around the current one in background,
+ * like the neighbouring pages in a gallery, so that a ready TiledDrawable
+ * can be shown at once when the user swipes to it.
+ *
+ * The next and previous {@code range} images are prepared, the nearer the earlier.
+ * Preparations out of the range are cancelled when the current position changes.
+ * Prepared images are dropped from the farthest if the total size of previews
+ * and preloaded tiles exceeds the max size.
+ *
+ * All methods must be called in the main thread.
+ */
+public class ImagePreparer {
+
+  /**
+   * Adapter provides images for ImagePreparer.
+   */
+  public interface Adapter {
+
+    /**
+     * Returns the count of the images.
+     */
+    @MainThread
+    int getCount();
+
+    /**
+     * Opens the ImageRegionDecoder for the image at the position.
+     * The preview of it must be generated.
+     */
+    @WorkerThread
+    @Nullable
+    ImageRegionDecoder openDecoder(int position);
+  }
+
+  private final Adapter adapter;
+  private final Executor executor;
+  private final int range;
+  private final int maxConcurrency;
+  private final int maxSize;
+  private final ThreadPoolExecutor prepareExecutor;
+
+  private int viewWidth;
+  private int viewHeight;
+
+  private final SparseArray<Prepared> prepared = new SparseArray<>();
+  private final SparseArray<PrepareTask> tasks = new SparseArray<>();
+  private int current = -1;
+  // Images farther than it are dropped because of max size, don't prepare them again
+  private int maxDistance;
+  private int size;
+  private boolean recycled;
+
+  /**
+   * Create an ImagePreparer.
+   *
+   * @param adapter the adapter to open images
+   * @param executor the executor for the prepared TiledDrawables
+   * @param range how many images to prepare before and after the current one
+   * @param maxConcurrency how many images can be opened at the same time
+   * @param maxSize the max bytes of the previews and preloaded tiles of prepared images
+   */
+  public ImagePreparer(@NonNull Adapter adapter, @NonNull Executor executor,
+      int range, int maxConcurrency, int maxSize) {
+    if (range < 0 || maxConcurrency <= 0) {
+      throw new IllegalArgumentException("range < 0 or maxConcurrency <= 0");
+    }
+    this.adapter = adapter;
+    this.executor = executor;
+    this.range = range;
+    this.maxConcurrency = maxConcurrency;
+    this.maxSize = maxSize;
+
+    prepareExecutor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 1, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new BackgroundThreadFactory("ImagePreparer"));
+    prepareExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Also decodes the tiles to show the whole image in a {@code width x height} view,
+   * so that the first frame of prepared images is sharp.
+   * Set {@code 0, 0} to only prepare previews. It's the default.
+   *
+   * It only affects images prepared after it's called.
+   */
+  @MainThread
+  public void setInitialViewport(int width, int height) {
+    viewWidth = width;
+    viewHeight = height;
+  }
+
+  /**
+   * Sets the current position. Images around it are prepared, the others are dropped.
+   */
+  @MainThread
+  public void setCurrent(int position) {
+    if (recycled || current == position) {
+      return;
+    }
+    current = position;
+    maxDistance = range;
+
+    for (int i = tasks.size() - 1; i >= 0; i--) {
+      if (!inRange(tasks.keyAt(i))) {
+        tasks.valueAt(i).cancel(false);
+        tasks.removeAt(i);
+      }
+    }
+
+    for (int i = prepared.size() - 1; i >= 0; i--) {
+      if (!inRange(prepared.keyAt(i))) {
+        drop(i);
+      }
+    }
+
+    schedule();
+  }
+
+  /**
+   * Takes the prepared TiledDrawable at the position. The caller owns it now.
+   * Returns {@code null} if it's not prepared yet.
+   */
+  @MainThread
+  @Nullable
+  public TiledDrawable take(int position) {
+    int index = prepared.indexOfKey(position);
+    if (index < 0) {
+      return null;
+    }
+
+    Prepared p = prepared.valueAt(index);
+    prepared.removeAt(index);
+    size -= p.size;
+    maxDistance = range;
+    schedule();
+    return p.drawable;
+  }
+
+  /**
+   * Cancels all preparations and recycles all prepared images.
+   */
+  @MainThread
+  public void recycle() {
+    if (recycled) {
+      return;
+    }
+    recycled = true;
+
+    for (int i = 0, n = tasks.size(); i < n; i++) {
+      tasks.valueAt(i).cancel(false);
+    }
+    tasks.clear();
+    for (int i = prepared.size() - 1; i >= 0; i--) {
+      drop(i);
+    }
+    prepareExecutor.shutdown();
+  }
+
+  private boolean inRange(int position) {
+    return position != current && Math.abs(position - current) <= range;
+  }
+
+  private void drop(int index) {
+    Prepared p = prepared.valueAt(index);
+    prepared.removeAt(index);
+    size -= p.size;
+    if (p.drawable != null) {
+      p.drawable.recycle();
+    }
+  }
+
+  /*
+   * Starts preparations from the nearest position.
+   */
+  private void schedule() {
+    if (recycled || current < 0) {
+      return;
+    }
+
+    int count = adapter.getCount();
+    for (int distance = 1; distance <= maxDistance; distance++) {
+      for (int sign = 1; sign >= -1; sign -= 2) {
+        if (tasks.size() >= maxConcurrency || size >= maxSize) {
+          return;
+        }
+
+        int position = current + sign * distance;
+        if (position < 0 || position >= count
+            || prepared.indexOfKey(position) >= 0 || tasks.indexOfKey(position) >= 0) {
+          continue;
+        }
+
+        PrepareTask task = new PrepareTask(position, viewWidth, viewHeight);
+        tasks.put(position, task);
+        task.executeOnExecutor(prepareExecutor);
+      }
+    }
+  }
+
+  /*
+   * Drops the farthest prepared images until the total size is not bigger than max size.
+   */
+  private void trimToSize() {
+    while (size > maxSize && prepared.size() > 0) {
+      int farthest = 0;
+      for (int i = 1, n = prepared.size(); i < n; i++) {
+        if (Math.abs(prepared.keyAt(i) - current) > Math.abs(prepared.keyAt(farthest) - current)) {
+          farthest = i;
+        }
+      }
+      maxDistance = Math.min(maxDistance, Math.abs(prepared.keyAt(farthest) - current) - 1);
+      drop(farthest);
+    }
+  }
+
+  private void onPrepared(PrepareTask task, @Nullable Prepared result) {
+    if (tasks.get(task.position) == task) {
+      tasks.remove(task.position);
+    }
+
+    // Keep the failed result to avoid retrying
+    Prepared p = result != null ? result : new Prepared(null, 0);
+    if (recycled || !inRange(task.position)) {
+      if (p.drawable != null) {
+        p.drawable.recycle();
+      }
+      return;
+    }
+
+    if (p.drawable != null) {
+      p.drawable.publish();
+    }
+    prepared.put(task.position, p);
+    size += p.size;
+    trimToSize();
+    schedule();
+  }
+
+  private static class Prepared {
+    @Nullable
+    private final TiledDrawable drawable;
+    private final int size;
+
+    private Prepared(@Nullable TiledDrawable drawable, int size) {
+      this.drawable = drawable;
+      this.size = size;
+    }
+  }
+
+  private class PrepareTask extends AsyncTask<Void, Void, Prepared> {
+
+    private final int position;
+    private final int viewWidth;
+    private final int viewHeight;
+
+    private PrepareTask(int position, int viewWidth, int viewHeight) {
+      this.position = position;
+      this.viewWidth = viewWidth;
+      this.viewHeight = viewHeight;
+    }
+
+    @Override
+    protected Prepared doInBackground(Void... voids) {
+      ImageRegionDecoder decoder = adapter.openDecoder(position);
+      if (decoder == null) {
+        return null;
+      }
+      if (isCancelled()) {
+        decoder.recycle();
+        return null;
+      }
+
+      Bitmap preview = decoder.getPreview();
+      int size = preview != null ? preview.getRowBytes() * preview.getHeight() : 0;
+      // Not trimmed in the main thread until it's handed over
+      TiledDrawable drawable = new TiledDrawable(decoder, executor, false, false);
+      if (viewWidth > 0 && viewHeight > 0 && !isCancelled()) {
+        size += drawable.preloadTiles(viewWidth, viewHeight);
+      }
+      return new Prepared(drawable, size);
+    }
+
+    @Override
+    protected void onPostExecute(Prepared result) {
+      onPrepared(this, result);
+    }
+
+    @Override
+    protected void onCancelled(Prepared result) {
+      if (result != null && result.drawable != null) {
+        result.drawable.recycle();
+      }
+    }
+  }
+}
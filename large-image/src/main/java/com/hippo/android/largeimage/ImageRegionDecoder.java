@@ -21,9 +21,18 @@ package com.hippo.android.largeimage;
  */
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Rect;
+import android.os.AsyncTask;
 import android.support.annotation.CallSuper;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * ImageRegionDecoder can be used to decode a rectangle region from an image.
@@ -34,10 +43,61 @@ import android.support.annotation.Nullable;
  */
 public abstract class ImageRegionDecoder {
 
+  private static final String LOG_TAG = "ImageRegionDecoder";
+
+  /**
+   * {@link #decode(Rect, int)} can be called in multiple threads at the same time,
+   * and it runs in parallel. The preview is decoded in bands in parallel then.
+   *
+   * @see #getMaxConcurrency()
+   */
+  public static final int CAPABILITY_CONCURRENT_DECODE = 1;
+
+  /**
+   * {@link #decodeInto(Rect, int, Bitmap)} decodes into the reusable bitmap.
+   */
+  public static final int CAPABILITY_REUSE_BITMAP = 1 << 1;
+
+  /**
+   * Any positive sample is supported, not only power of 2.
+   */
+  public static final int CAPABILITY_ANY_SAMPLE = 1 << 2;
+
+  /**
+   * {@link #decodeInto(Rect, int, Bitmap, CancellationToken)} returns soon after
+   * the token is cancelled, so a running decoding can be cancelled without
+   * wasting much time.
+   */
+  public static final int CAPABILITY_CHEAP_CANCEL = 1 << 3;
+
+  /**
+   * {@link #decodeOnto(Rect, int, Bitmap, CancellationToken)} decodes into
+   * the top-left corner of a larger bitmap, so tiles can be kept in
+   * a {@link TileSlotPool}.
+   */
+  public static final int CAPABILITY_DECODE_ONTO = 1 << 4;
+
   private Bitmap preview;
   private int previewSample;
+  // The sample of the preview generated in generatePreview()
+  private int generatedPreviewSample;
+  @Nullable
+  private PreviewProvider previewProvider;
+  // Runs the bands of the preview besides the calling thread
+  @Nullable
+  private Executor previewExecutor;
+  // The preview samples TiledDrawables need, main thread only
+  private final PreviewDemands previewDemands = new PreviewDemands();
+  // The previews read in background, once for each pin. They are recycled after unpinned.
+  private final List<Bitmap> pinnedPreviews = new ArrayList<>();
+  // Guards useCount and recyclePending
+  private final Object useLock = new Object();
+  // The count of background tasks using this decoder
+  private int useCount;
+  // Recycled once useCount drops to 0
+  private boolean recyclePending;
 
-  private boolean isRecycled;
+  private volatile boolean isRecycled;
 
   /**
    * Returns the preview generated by {@link #generatePreview()}.
@@ -80,6 +140,175 @@ public abstract class ImageRegionDecoder {
    */
   public abstract void recycle(Bitmap bitmap);
 
+  /**
+   * Returns the capabilities of this decoder, a combination of {@code CAPABILITY_*} flags.
+   * TiledDrawable chooses the parallelism, bitmap pooling and cancellation
+   * according to it. It's {@code 0} by default, which is the safest.
+   */
+  public int getCapabilities() {
+    return 0;
+  }
+
+  /**
+   * Returns the maximum count of decodings running at the same time.
+   * It only works with {@link #CAPABILITY_CONCURRENT_DECODE}.
+   * It's {@link Integer#MAX_VALUE} by default, the count of processors is used then.
+   */
+  public int getMaxConcurrency() {
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   * Decodes a region like {@link #decode(Rect, int)}. If the decoder has
+   * {@link #CAPABILITY_REUSE_BITMAP}, it should decode into {@code reuse} and return it.
+   *
+   * {@code reuse} is a bitmap returned by this decoder for a region of the same size
+   * at the same sample. If it's not returned, the caller recycles it.
+   * The default implementation ignores it.
+   */
+  @Nullable
+  public Bitmap decodeInto(Rect rect, int sample, @Nullable Bitmap reuse) {
+    return decode(rect, sample);
+  }
+
+  /**
+   * Decodes a region like {@link #decodeInto(Rect, int, Bitmap)}, and returns
+   * {@code null} if the token is cancelled.
+   *
+   * Decoders should check the token between rows or blocks, or register a listener
+   * to abort the decoding, and report {@link #CAPABILITY_CHEAP_CANCEL}.
+   * The default implementation only checks it before decoding.
+   */
+  @WorkerThread
+  @Nullable
+  public Bitmap decodeInto(Rect rect, int sample, @Nullable Bitmap reuse,
+      @Nullable CancellationToken token) {
+    if (token != null && token.isCancelled()) {
+      return null;
+    }
+    return decodeInto(rect, sample, reuse);
+  }
+
+  /**
+   * Decodes a region into the top-left corner of {@code dst}, a mutable bitmap
+   * which is not smaller than the decoded region. The other pixels of {@code dst}
+   * are undefined. Returns {@code false} if it can't, or the token is cancelled.
+   *
+   * Decoders supporting it should report {@link #CAPABILITY_DECODE_ONTO}.
+   * The default implementation returns {@code false}.
+   */
+  @WorkerThread
+  public boolean decodeOnto(Rect rect, int sample, Bitmap dst,
+      @Nullable CancellationToken token) {
+    return false;
+  }
+
+  /**
+   * Returns {@code true} if the region can be decoded now. It's called in
+   * the main thread before a tile is decoded, it must be cheap.
+   * It's {@code true} by default.
+   *
+   * Decoders over a source still arriving, like {@link RangeSource}, should return
+   * {@code false} if the bytes of the region haven't arrived, and request them.
+   * Call {@link TiledDrawable#onRegionsAvailable()} when they arrive.
+   */
+  @MainThread
+  public boolean isRegionDecodable(Rect rect, int sample) {
+    return true;
+  }
+
+  /**
+   * Returns the preferred alignment of region edges in source pixels
+   * for the sample. Regions decoded by TiledDrawable start at multiples of it.
+   * It's {@code 1} by default.
+   *
+   * Decoders working on blocks should return the block size times sample,
+   * like the MCU size for JPEG, so that a region doesn't decode partial blocks
+   * on the edges, and neighbouring regions don't decode the same blocks.
+   */
+  public int getPreferredAlignment(int sample) {
+    return 1;
+  }
+
+  /**
+   * Returns the height of strips in source pixels for
+   * {@link #decode(Rect, int, StripListener, CancellationToken)}, or {@code 0}
+   * if decoding in strips isn't supported. It's {@code 0} by default.
+   *
+   * Only return non-zero if decoding a region in strips costs about the same
+   * as decoding it at once, like a JPEG decoder which only decodes the MCU rows
+   * in the region. Decoders which decode from the first row, like most PNG decoders,
+   * should not support it.
+   */
+  public int getStripHeight() {
+    return 0;
+  }
+
+  /**
+   * Decodes a region like {@link #decode(Rect, int)}, and reports the finished rows
+   * of the result while decoding, so that they can be shown before the whole region
+   * is decoded.
+   *
+   * The default implementation decodes the region in horizontal strips
+   * of {@link #getStripHeight()}, and draws them to the result one by one.
+   * The token is checked between strips.
+   * The result should be recycled by {@link #recycle(Bitmap)}. If it fails or it's
+   * cancelled after some rows are reported, the reported bitmap isn't recycled,
+   * it's up to the listener.
+   */
+  @WorkerThread
+  @Nullable
+  public Bitmap decode(@NonNull Rect rect, int sample, @NonNull StripListener listener,
+      @Nullable CancellationToken token) {
+    // Strips must be aligned to sample, otherwise rows are lost in sampling
+    int stripHeight = getStripHeight() / sample * sample;
+    if (stripHeight <= 0 || rect.height() <= stripHeight) {
+      return decodeInto(rect, sample, null, token);
+    }
+
+    Rect stripRect = new Rect(rect.left, rect.top, rect.right, rect.top);
+    Rect dst = new Rect();
+    Bitmap result = null;
+    Canvas canvas = null;
+    int rows = 0;
+
+    while (stripRect.bottom < rect.bottom) {
+      stripRect.top = stripRect.bottom;
+      stripRect.bottom = Math.min(rect.bottom, stripRect.top + stripHeight);
+
+      Bitmap strip = decodeInto(stripRect, sample, null, token);
+      if (strip == null) {
+        // The result has been reported, the listener might still use it
+        return null;
+      }
+
+      if (result == null) {
+        Bitmap.Config config = strip.getConfig();
+        try {
+          result = Bitmap.createBitmap(strip.getWidth(), Utils.ceilDiv(rect.height(), sample),
+              config != null ? config : Bitmap.Config.ARGB_8888);
+        } catch (OutOfMemoryError e) {
+          Log.e(LOG_TAG, "Can't allocate region " + rect + " at sample " + sample, e);
+          recycle(strip);
+          return null;
+        }
+        canvas = new Canvas(result);
+      }
+
+      // The last strip might be one row shorter, stretch it to the bottom
+      boolean last = stripRect.bottom == rect.bottom;
+      dst.set(0, rows, result.getWidth(),
+          last ? result.getHeight() : Math.min(result.getHeight(), rows + strip.getHeight()));
+      canvas.drawBitmap(strip, null, dst, null);
+      recycle(strip);
+
+      rows = dst.bottom;
+      listener.onRowsDecoded(result, rows);
+    }
+
+    return result;
+  }
+
   /**
    * Returns true if this decoder has been recycled.
    */
@@ -87,6 +316,53 @@ public abstract class ImageRegionDecoder {
     return isRecycled;
   }
 
+  /*
+   * Marks this decoder in use by a background task, so that it's not recycled
+   * by recycleWhenIdle() until release() is called.
+   * Returns false if it's recycled or going to be recycled.
+   */
+  final boolean acquire() {
+    synchronized (useLock) {
+      if (isRecycled || recyclePending) {
+        return false;
+      }
+      useCount++;
+      return true;
+    }
+  }
+
+  /*
+   * Releases the use from acquire(). The decoder is recycled
+   * in this thread if it's the last use and recycleWhenIdle() is called.
+   */
+  final void release() {
+    boolean recycle;
+    synchronized (useLock) {
+      useCount--;
+      recycle = useCount == 0 && recyclePending;
+    }
+    if (recycle) {
+      recycle();
+    }
+  }
+
+  /*
+   * Recycles this decoder now if no background task uses it,
+   * otherwise once the last one releases it.
+   */
+  final void recycleWhenIdle() {
+    synchronized (useLock) {
+      if (recyclePending || isRecycled) {
+        return;
+      }
+      recyclePending = true;
+      if (useCount > 0) {
+        return;
+      }
+    }
+    recycle();
+  }
+
   /**
    * Recycles this ImageRegionDecoder.
    */
@@ -94,9 +370,13 @@ public abstract class ImageRegionDecoder {
   public void recycle() {
     isRecycled = true;
 
-    if (preview != null) {
-      preview.recycle();
-      preview = null;
+    synchronized (pinnedPreviews) {
+      if (preview != null) {
+        if (!pinnedPreviews.contains(preview)) {
+          preview.recycle();
+        }
+        preview = null;
+      }
     }
   }
 
@@ -109,12 +389,406 @@ public abstract class ImageRegionDecoder {
    * @see #getPreviewSample()
    */
   protected final void generatePreview() {
+    generatePreview(null);
+  }
+
+  /**
+   * Generates preview for this ImageRegionDecoder. The provider is consulted first,
+   * the whole image is decoded only if it provides nothing. The sample of
+   * a provided preview is its effective sample, calculated from its size.
+   *
+   * It only need be called once in the instance factory.
+   * With {@link #CAPABILITY_CONCURRENT_DECODE}, the bands of the preview are
+   * decoded in {@link AsyncTask#THREAD_POOL_EXECUTOR} too.
+   *
+   * @see #getPreview()
+   * @see #getPreviewSample()
+   */
+  protected final void generatePreview(@Nullable PreviewProvider provider) {
+    generatePreview(provider, AsyncTask.THREAD_POOL_EXECUTOR);
+  }
+
+  /**
+   * Generates preview for this ImageRegionDecoder like
+   * {@link #generatePreview(PreviewProvider)}. With {@link #CAPABILITY_CONCURRENT_DECODE},
+   * the bands of the preview are decoded in the executor too, {@code null}
+   * to decode the preview in the calling thread only. The executor is also used
+   * to restore the preview later.
+   *
+   * @see #getPreview()
+   * @see #getPreviewSample()
+   */
+  protected final void generatePreview(@Nullable PreviewProvider provider,
+      @Nullable Executor executor) {
+    previewExecutor = executor;
     float maxSize = (float) LargeImage.getMaxTextureSize();
     int widthScale = (int) Math.ceil((float) getWidth() / maxSize);
     int heightScale = (int) Math.ceil((float) getHeight() / maxSize);
-    previewSample = Math.max(1, Math.max(Utils.nextPow2(widthScale), Utils.nextPow2(heightScale)));
+    int minSample = Math.max(1, Math.max(Utils.nextPow2(widthScale), Utils.nextPow2(heightScale)));
 
+    previewProvider = provider;
+    if (provider != null) {
+      Bitmap provided = getProvidedPreview(provider, minSample);
+      if (provided != null) {
+        previewSample = Utils.effectiveSample(getWidth(), getHeight(),
+            provided.getWidth(), provided.getHeight());
+        preview = provided;
+        generatedPreviewSample = previewSample;
+        return;
+      }
+    }
+
+    previewSample = minSample;
+    preview = decodePreview(previewSample);
+    generatedPreviewSample = previewSample;
+
+    if (provider != null && preview != null) {
+      provider.onPreviewGenerated(this, preview, previewSample);
+    }
+  }
+
+  /*
+   * Returns the preview from the provider, null if it's not available,
+   * or it's bigger than the image at the min sample or the aspect ratio doesn't match.
+   */
+  private Bitmap getProvidedPreview(PreviewProvider provider, int minSample) {
+    Bitmap preview = provider.getPreview(this, minSample);
+    if (preview == null) {
+      return null;
+    }
+    if (!Utils.fitsSample(getWidth(), getHeight(),
+        preview.getWidth(), preview.getHeight(), minSample)) {
+      Log.w(LOG_TAG, "Drop provided preview " + preview.getWidth() + "x" + preview.getHeight()
+          + " of " + getWidth() + "x" + getHeight() + " at min sample " + minSample);
+      preview.recycle();
+      return null;
+    }
+    return preview;
+  }
+
+  /*
+   * Loads the preview at the sample to restore a downgraded preview.
+   * The provider is consulted first if the preview is provided.
+   */
+  @WorkerThread
+  @Nullable
+  final Bitmap loadPreview(int sample) {
+    PreviewProvider provider = previewProvider;
+    if (provider != null) {
+      Bitmap provided = getProvidedPreview(provider, sample);
+      if (provided != null) {
+        if (Utils.effectiveSample(getWidth(), getHeight(),
+            provided.getWidth(), provided.getHeight()) == sample) {
+          return provided;
+        }
+        provided.recycle();
+      }
+    }
+    return decodePreview(sample);
+  }
+
+  /*
+   * Decodes the whole image at the sample. If the decoder can decode in parallel,
+   * the image is split into horizontal bands, and the bands are decoded
+   * at the same time into one bitmap, in the calling thread and the preview executor.
+   */
+  @WorkerThread
+  private Bitmap decodePreview(int sample) {
     Rect rect = new Rect(0, 0, getWidth(), getHeight());
-    preview = decode(rect, previewSample);
+    Executor executor = previewExecutor;
+    int parallelism = executor == null ? 1
+        : new DecodePolicy(this, Runtime.getRuntime().availableProcessors()).getParallelism();
+    if (parallelism <= 1) {
+      return decode(rect, sample);
+    }
+
+    // Bands must be aligned to sample, otherwise rows are lost in sampling,
+    // and aligned to blocks, so that no block is decoded for two bands
+    int unit = Math.max(1, getPreferredAlignment(sample));
+    if (unit % sample != 0) {
+      unit *= sample;
+    }
+    // One band for each thread. BitmapRegionDecoder still reads the rows above
+    // a region of a JPEG image, so more bands read more.
+    int[] edges = getBandEdges(getHeight(), unit, parallelism);
+    if (edges.length <= 2) {
+      return decode(rect, sample);
+    }
+
+    PreviewBands bands = new PreviewBands(this, sample, edges);
+    // The calling thread decodes bands too, so it never waits for a busy executor
+    for (int i = 0; i < edges.length - 2; i++) {
+      executor.execute(bands);
+    }
+    bands.run();
+    return bands.getResult();
+  }
+
+  /*
+   * Returns the edges of at most count bands covering [0, height].
+   * The edges are multiples of unit, except the last one.
+   */
+  static int[] getBandEdges(int height, int unit, int count) {
+    int bandCount = Math.min(count, height / unit);
+    if (bandCount <= 1) {
+      return new int[] {0, height};
+    }
+    int bandHeight = Utils.ceilDiv(Utils.ceilDiv(height, bandCount), unit) * unit;
+    bandCount = Utils.ceilDiv(height, bandHeight);
+    int[] edges = new int[bandCount + 1];
+    for (int i = 1; i < bandCount; i++) {
+      edges[i] = i * bandHeight;
+    }
+    edges[bandCount] = height;
+    return edges;
+  }
+
+  /**
+   * Returns the sample of the preview generated by {@link #generatePreview()}.
+   * {@link #getPreviewSample()} is bigger than it if the preview is downgraded.
+   */
+  final int getGeneratedPreviewSample() {
+    return generatedPreviewSample;
+  }
+
+  /*
+   * Replaces the preview with a 2x coarser one to save memory.
+   * Returns false if it's already downgraded or it fails.
+   */
+  @MainThread
+  final boolean downgradePreview() {
+    if (previewSample != generatedPreviewSample) {
+      return false;
+    }
+    return downgradePreview(previewSample * 2);
+  }
+
+  /*
+   * Replaces the preview with a coarser one at the sample to save memory.
+   * Returns false if it's not coarser or it fails.
+   */
+  @MainThread
+  final boolean downgradePreview(int sample) {
+    if (isRecycled || preview == null || sample <= previewSample) {
+      return false;
+    }
+    Bitmap downgraded = scalePreview(preview, previewSample, sample);
+    if (downgraded == null) {
+      return false;
+    }
+    setPreview(downgraded, sample);
+    return true;
+  }
+
+  /*
+   * Scales the preview at previewSample to the sample.
+   * Returns null if it fails.
+   */
+  @Nullable
+  static Bitmap scalePreview(Bitmap preview, int previewSample, int sample) {
+    try {
+      return Bitmap.createScaledBitmap(preview,
+          Math.max(1, preview.getWidth() * previewSample / sample),
+          Math.max(1, preview.getHeight() * previewSample / sample), true);
+    } catch (OutOfMemoryError e) {
+      Log.e(LOG_TAG, "Can't scale preview to sample " + sample, e);
+      return null;
+    }
+  }
+
+  /*
+   * Creates a claim for a TiledDrawable on the preview sample it needs.
+   */
+  @MainThread
+  final PreviewDemands.Claim newPreviewClaim() {
+    return new PreviewDemands.Claim(previewDemands);
+  }
+
+  /*
+   * Returns the coarsest preview sample which all claims accept.
+   * It's the sample of the generated preview if there is no claim.
+   */
+  @MainThread
+  final int getPreviewDemand() {
+    int sample = previewDemands.getMinSample();
+    return sample != 0 ? sample : generatedPreviewSample;
+  }
+
+  /*
+   * Replaces the preview. The old one is recycled.
+   */
+  @MainThread
+  final void setPreview(@NonNull Bitmap preview, int previewSample) {
+    synchronized (pinnedPreviews) {
+      Bitmap old = this.preview;
+      this.preview = preview;
+      this.previewSample = previewSample;
+      if (old != null && old != preview && !pinnedPreviews.contains(old)) {
+        old.recycle();
+      }
+    }
+  }
+
+  /*
+   * Returns the preview, and keeps it from being recycled until it's unpinned,
+   * so that it can be read in background. Returns null if there is no preview.
+   */
+  @MainThread
+  @Nullable
+  final Bitmap pinPreview() {
+    synchronized (pinnedPreviews) {
+      if (preview != null) {
+        pinnedPreviews.add(preview);
+      }
+      return preview;
+    }
+  }
+
+  /*
+   * Releases the preview returned by pinPreview(). It's recycled
+   * if it has been replaced and no one else pins it.
+   */
+  final void unpinPreview(Bitmap pinned) {
+    synchronized (pinnedPreviews) {
+      pinnedPreviews.remove(pinned);
+      if (pinned != preview && !pinnedPreviews.contains(pinned)) {
+        pinned.recycle();
+      }
+    }
+  }
+
+  /*
+   * Decodes the bands of the preview in the threads which run it.
+   */
+  private static class PreviewBands implements Runnable {
+
+    private final ImageRegionDecoder decoder;
+    private final int sample;
+    private final int[] edges;
+
+    // Guarded by this
+    private int nextBand;
+    // The count of threads in run()
+    private int running;
+    private Bitmap result;
+    private Canvas canvas;
+    private boolean failed;
+
+    private PreviewBands(ImageRegionDecoder decoder, int sample, int[] edges) {
+      this.decoder = decoder;
+      this.sample = sample;
+      this.edges = edges;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        running++;
+      }
+      try {
+        decodeBands();
+      } finally {
+        synchronized (this) {
+          running--;
+          notifyAll();
+        }
+      }
+    }
+
+    private void decodeBands() {
+      Rect band = new Rect();
+      Rect dst = new Rect();
+      int width = decoder.getWidth();
+      int height = decoder.getHeight();
+      int bandCount = edges.length - 1;
+
+      for (;;) {
+        int i;
+        synchronized (this) {
+          if (failed || nextBand >= bandCount) {
+            return;
+          }
+          i = nextBand++;
+        }
+
+        band.set(0, edges[i], width, edges[i + 1]);
+        Bitmap bitmap = decoder.decode(band, sample);
+
+        synchronized (this) {
+          if (bitmap == null || failed) {
+            failed = true;
+            if (bitmap != null) {
+              decoder.recycle(bitmap);
+            }
+            return;
+          }
+
+          if (result == null) {
+            Bitmap.Config config = bitmap.getConfig();
+            try {
+              result = Bitmap.createBitmap(bitmap.getWidth(), Utils.ceilDiv(height, sample),
+                  config != null ? config : Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) {
+              Log.e(LOG_TAG, "Can't allocate preview at sample " + sample, e);
+              failed = true;
+              decoder.recycle(bitmap);
+              return;
+            }
+            canvas = new Canvas(result);
+          }
+
+          // The last band might be one row shorter, stretch it to the bottom
+          int top = band.top / sample;
+          dst.set(0, top, result.getWidth(), i == bandCount - 1
+              ? result.getHeight() : Math.min(result.getHeight(), top + bitmap.getHeight()));
+          canvas.drawBitmap(bitmap, null, dst, null);
+        }
+        decoder.recycle(bitmap);
+      }
+    }
+
+    /*
+     * Waits for the bands running in other threads, and returns the preview,
+     * or null if any band fails. It must be called after run() in the calling
+     * thread, so that all bands are taken. Threads starting later do nothing.
+     */
+    private synchronized Bitmap getResult() {
+      boolean interrupted = false;
+      while (running > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+
+      if (failed || result == null) {
+        if (result != null) {
+          result.recycle();
+          result = null;
+        }
+        Log.e(LOG_TAG, "Can't decode preview at sample " + sample);
+        return null;
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Listener for {@link #decode(Rect, int, StripListener, CancellationToken)}.
+   */
+  public interface StripListener {
+
+    /**
+     * Called in the decoding thread when more rows of the result are finished.
+     *
+     * @param bitmap the result, only the first {@code rows} rows of it are finished
+     * @param rows the count of finished rows
+     */
+    @WorkerThread
+    void onRowsDecoded(@NonNull Bitmap bitmap, int rows);
   }
 }
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * ImageRegionDecoderRegistry keeps opened ImageRegionDecoders and their previews,
+ * keyed by source identity, like a file path or an uri.
+ *
+ * ImageRegionDecoders are reference-counted by the TiledDrawables obtained from
+ * this registry. An ImageRegionDecoder which isn't referenced by any TiledDrawable
+ * is kept for a while, so that re-opening the same source within the idle timeout
+ * doesn't decode anything. Idle ImageRegionDecoders are also evicted in LRU order
+ * if the total preview size exceeds the max size. An evicted ImageRegionDecoder
+ * is recycled once background tasks stop using it.
+ *
+ * All methods must be called in the main thread.
+ */
+public class ImageRegionDecoderRegistry implements MemoryGovernor.Trimmable {
+
+  private final long idleTimeout;
+  private final int maxSize;
+
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  // Access-ordered, the eldest is the least recently used
+  private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(0, 0.75f, true);
+  private final Map<TiledDrawable, Entry> drawables = new IdentityHashMap<>();
+
+  /**
+   * Create an ImageRegionDecoderRegistry.
+   *
+   * @param idleTimeout the time in milliseconds to keep an ImageRegionDecoder
+   *                    after it's not referenced
+   * @param maxSize the max bytes of the previews of all ImageRegionDecoders
+   */
+  public ImageRegionDecoderRegistry(long idleTimeout, int maxSize) {
+    this.idleTimeout = idleTimeout;
+    this.maxSize = maxSize;
+    MemoryGovernor.register(this);
+  }
+
+  /**
+   * Returns a TiledDrawable for the source if its ImageRegionDecoder is still kept,
+   * or {@code null}. Pass it to {@link #release(TiledDrawable)} instead of
+   * recycling it directly.
+   *
+   * @param key the identity of the source
+   * @param executor the executor for the TiledDrawable
+   */
+  @MainThread
+  @Nullable
+  public TiledDrawable obtain(@NonNull Object key, @NonNull Executor executor) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    return newDrawable(entry, executor);
+  }
+
+  /**
+   * Registers the ImageRegionDecoder for the source and returns a TiledDrawable for it.
+   * If an ImageRegionDecoder is already registered with the key, the new one
+   * is recycled and the registered one is used.
+   * Pass the TiledDrawable to {@link #release(TiledDrawable)} instead of
+   * recycling it directly.
+   *
+   * @param key the identity of the source
+   * @param decoder the decoder for the source, it's owned by this registry now
+   * @param executor the executor for the TiledDrawable
+   */
+  @MainThread
+  @NonNull
+  public TiledDrawable obtain(@NonNull Object key, @NonNull ImageRegionDecoder decoder,
+      @NonNull Executor executor) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry(key, decoder);
+      entries.put(key, entry);
+    } else if (entry.decoder != decoder) {
+      recycleDecoder(decoder);
+    }
+    TiledDrawable drawable = newDrawable(entry, executor);
+    trimToSize(maxSize);
+    return drawable;
+  }
+
+  private TiledDrawable newDrawable(Entry entry, Executor executor) {
+    if (entry.refCount == 0) {
+      handler.removeCallbacks(entry);
+    }
+    entry.refCount++;
+
+    TiledDrawable drawable = new TiledDrawable(entry.decoder, executor, true);
+    drawables.put(drawable, entry);
+    return drawable;
+  }
+
+  /**
+   * Recycles the TiledDrawable obtained from this registry
+   * and releases the reference to its ImageRegionDecoder.
+   */
+  @MainThread
+  public void release(@NonNull TiledDrawable drawable) {
+    Entry entry = drawables.remove(drawable);
+    if (entry == null) {
+      throw new IllegalStateException("The TiledDrawable isn't obtained from this registry");
+    }
+
+    drawable.recycle();
+
+    // Only idle entries are evicted, so the entry must be still in the registry
+    entry.refCount--;
+    if (entry.refCount == 0) {
+      handler.postDelayed(entry, idleTimeout);
+      trimToSize(maxSize);
+    }
+  }
+
+  /**
+   * Evicts the eldest idle ImageRegionDecoders until the total size
+   * is not bigger than {@code maxSize}.
+   */
+  @MainThread
+  public void trimToSize(int maxSize) {
+    int size = size();
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (size > maxSize && iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (entry.refCount == 0) {
+        size -= entry.size();
+        iterator.remove();
+        evict(entry);
+      }
+    }
+  }
+
+  /**
+   * Evicts all idle ImageRegionDecoders.
+   */
+  @MainThread
+  public void evictAll() {
+    trimToSize(-1);
+  }
+
+  /**
+   * Evicts all idle ImageRegionDecoders on any memory pressure.
+   * Idle ImageRegionDecoders are only kept to speed up re-opening.
+   *
+   * @see LargeImage#trimMemory(int)
+   */
+  @MainThread
+  @Override
+  public void trimMemory(int level) {
+    evictAll();
+  }
+
+  /**
+   * Returns the bytes of the previews of all ImageRegionDecoders.
+   * Previews might be downgraded or restored, so it's counted every time.
+   */
+  @MainThread
+  public int size() {
+    int size = 0;
+    for (Entry entry : entries.values()) {
+      size += entry.size();
+    }
+    return size;
+  }
+
+  private void evict(Entry entry) {
+    handler.removeCallbacks(entry);
+    recycleDecoder(entry.decoder);
+  }
+
+  private static void recycleDecoder(ImageRegionDecoder decoder) {
+    // decoder.recycle() might block the main thread
+    new RecycleDecoderTask(decoder).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+  }
+
+  private class Entry implements Runnable {
+    private final Object key;
+    private final ImageRegionDecoder decoder;
+    private int refCount;
+
+    private Entry(Object key, ImageRegionDecoder decoder) {
+      this.key = key;
+      this.decoder = decoder;
+    }
+
+    // The bytes of the current preview
+    private int size() {
+      Bitmap preview = decoder.getPreview();
+      return preview != null ? preview.getRowBytes() * preview.getHeight() : 0;
+    }
+
+    // Idle timeout
+    @Override
+    public void run() {
+      if (refCount == 0) {
+        entries.remove(key);
+        evict(this);
+      }
+    }
+  }
+
+  private static class RecycleDecoderTask extends AsyncTask<Void, Void, Void> {
+
+    private final ImageRegionDecoder decoder;
+
+    private RecycleDecoderTask(ImageRegionDecoder decoder) {
+      this.decoder = decoder;
+    }
+
+    @Override
+    protected Void doInBackground(Void... voids) {
+      // Tasks of released TiledDrawables might still be decoding
+      decoder.recycleWhenIdle();
+      return null;
+    }
+  }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the MCU size, the EXIF thumbnail and the restart interval
+ * from the header of a JPEG image.
+ */
+final class JpegHeader {
+  private JpegHeader() {}
+
+  // EXIF takes at most 64 KB, the frame header usually follows it
+  static final int MAX_HEADER_SIZE = 128 * 1024;
+
+  private static final int MARKER_SOI = 0xD8;
+  private static final int MARKER_EOI = 0xD9;
+  private static final int MARKER_SOS = 0xDA;
+  private static final int MARKER_APP1 = 0xE1;
+  private static final int MARKER_DRI = 0xDD;
+  private static final int MARKER_COM = 0xFE;
+  // Baseline DCT and extended sequential DCT
+  private static final int MARKER_SOF0 = 0xC0;
+  private static final int MARKER_SOF1 = 0xC1;
+
+  private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+  private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+  /**
+   * Returns the size of the MCU, the bigger one of width and height, if the image
+   * is a baseline or sequential JPEG. Returns 0 if it's not, including progressive
+   * JPEG which can't be decoded block by block, or the header isn't found
+   * in the first {@code limit} bytes.
+   */
+  static int readMcuSize(InputStream is, int limit) throws IOException {
+    Reader reader = new Reader(is, limit);
+    if (reader.read() != 0xFF || reader.read() != MARKER_SOI) {
+      return 0;
+    }
+
+    for (;;) {
+      // Markers might be padded with 0xFF
+      int marker = reader.read();
+      if (marker != 0xFF) {
+        return 0;
+      }
+      do {
+        marker = reader.read();
+      } while (marker == 0xFF);
+
+      if (marker < 0 || marker == MARKER_EOI || marker == MARKER_SOS) {
+        return 0;
+      }
+
+      int length = reader.readShort();
+      if (length < 2) {
+        return 0;
+      }
+
+      if (marker == MARKER_SOF0 || marker == MARKER_SOF1) {
+        return readFrameHeader(reader);
+      } else if (marker >= 0xC2 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8
+          && marker != 0xCC) {
+        // Other frame types
+        return 0;
+      }
+
+      if (!reader.skip(length - 2)) {
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * Returns the JPEG thumbnail in the EXIF of the image, or {@code null}
+   * if there is no EXIF thumbnail in the first {@code limit} bytes.
+   */
+  static byte[] readExifThumbnail(InputStream is, int limit) throws IOException {
+    Reader reader = new Reader(is, limit);
+    if (reader.read() != 0xFF || reader.read() != MARKER_SOI) {
+      return null;
+    }
+
+    for (;;) {
+      int marker = reader.read();
+      if (marker != 0xFF) {
+        return null;
+      }
+      do {
+        marker = reader.read();
+      } while (marker == 0xFF);
+
+      // EXIF is before the frame header
+      if (marker < 0 || marker == MARKER_EOI || marker == MARKER_SOS
+          || (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8
+          && marker != 0xCC)) {
+        return null;
+      }
+
+      int length = reader.readShort();
+      if (length < 2) {
+        return null;
+      }
+
+      if (marker == MARKER_APP1) {
+        byte[] segment = new byte[length - 2];
+        if (!reader.readFully(segment)) {
+          return null;
+        }
+        byte[] thumbnail = readExifThumbnail(segment);
+        if (thumbnail != null) {
+          return thumbnail;
+        }
+        // Might be XMP, try the next one
+        continue;
+      }
+
+      if (!reader.skip(length - 2)) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Returns a {@link JpegRestartIndex} of the image if it's a baseline or sequential
+   * JPEG with restart markers and only one scan. Returns {@code null} if it's not,
+   * or the header isn't found in the first {@code limit} bytes.
+   * It stops at the start of the scan.
+   */
+  static JpegRestartIndex readRestartIndex(InputStream is, int limit) throws IOException {
+    Reader reader = new Reader(is, limit);
+    if (reader.read() != 0xFF || reader.read() != MARKER_SOI) {
+      return null;
+    }
+
+    // The header to decode rows alone, without EXIF and comments
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    header.write(0xFF);
+    header.write(MARKER_SOI);
+    int heightOffset = -1;
+    int width = 0;
+    int height = 0;
+    int components = 0;
+    int mcuWidth = 0;
+    int mcuHeight = 0;
+    int interval = 0;
+
+    for (;;) {
+      int marker = reader.read();
+      if (marker != 0xFF) {
+        return null;
+      }
+      do {
+        marker = reader.read();
+      } while (marker == 0xFF);
+
+      if (marker < 0 || marker == MARKER_EOI) {
+        return null;
+      }
+
+      int length = reader.readShort();
+      if (length < 2) {
+        return null;
+      }
+      byte[] segment = new byte[length - 2];
+      if (!reader.readFully(segment)) {
+        return null;
+      }
+
+      if (marker == MARKER_SOF0 || marker == MARKER_SOF1) {
+        components = segment.length >= 6 ? segment[5] & 0xFF : 0;
+        if (components == 0 || segment.length < 6 + components * 3) {
+          return null;
+        }
+        // Marker, length and precision
+        heightOffset = header.size() + 5;
+        height = readUnsignedShort(segment, 1, false);
+        width = readUnsignedShort(segment, 3, false);
+        int maxH = 1;
+        int maxV = 1;
+        for (int i = 0; i < components; i++) {
+          int factors = segment[6 + i * 3 + 1] & 0xFF;
+          maxH = Math.max(maxH, factors >> 4);
+          maxV = Math.max(maxV, factors & 0x0F);
+        }
+        // Grayscale images are not interleaved, the MCU is one block
+        mcuWidth = components == 1 ? 8 : 8 * maxH;
+        mcuHeight = components == 1 ? 8 : 8 * maxV;
+      } else if (marker >= 0xC2 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8
+          && marker != 0xCC) {
+        // Other frame types
+        return null;
+      } else if (marker == MARKER_DRI) {
+        interval = readUnsignedShort(segment, 0, false);
+      } else if (marker == MARKER_SOS) {
+        // Scans of some of the components follow
+        if (heightOffset < 0 || segment.length == 0 || (segment[0] & 0xFF) != components) {
+          return null;
+        }
+      }
+
+      if (marker != MARKER_APP1 && marker != MARKER_COM) {
+        header.write(0xFF);
+        header.write(marker);
+        header.write(length >> 8);
+        header.write(length & 0xFF);
+        header.write(segment);
+      }
+
+      if (marker == MARKER_SOS) {
+        break;
+      }
+    }
+
+    if (width <= 0 || height <= 0 || interval <= 0) {
+      return null;
+    }
+    return new JpegRestartIndex(header.toByteArray(), heightOffset, width, height,
+        mcuWidth, mcuHeight, interval, reader.getPosition());
+  }
+
+  /*
+   * Finds the thumbnail in IFD1 of an APP1 segment.
+   */
+  private static byte[] readExifThumbnail(byte[] segment) {
+    // "Exif\0\0"
+    if (segment.length < 14 || segment[0] != 'E' || segment[1] != 'x' || segment[2] != 'i'
+        || segment[3] != 'f' || segment[4] != 0 || segment[5] != 0) {
+      return null;
+    }
+
+    // Offsets are from the TIFF header
+    int base = 6;
+    boolean littleEndian;
+    if (segment[base] == 'I' && segment[base + 1] == 'I') {
+      littleEndian = true;
+    } else if (segment[base] == 'M' && segment[base + 1] == 'M') {
+      littleEndian = false;
+    } else {
+      return null;
+    }
+
+    // Skip IFD0 to get IFD1
+    int ifd0 = readInt(segment, base + 4, littleEndian);
+    int ifd0Entries = readUnsignedShort(segment, base + ifd0, littleEndian);
+    if (ifd0Entries < 0) {
+      return null;
+    }
+    int ifd1 = readInt(segment, base + ifd0 + 2 + ifd0Entries * 12, littleEndian);
+    int ifd1Entries = readUnsignedShort(segment, base + ifd1, littleEndian);
+    if (ifd1 <= 0 || ifd1Entries < 0) {
+      return null;
+    }
+
+    int offset = -1;
+    int length = -1;
+    for (int i = 0; i < ifd1Entries; i++) {
+      int entry = base + ifd1 + 2 + i * 12;
+      int tag = readUnsignedShort(segment, entry, littleEndian);
+      if (tag == TAG_THUMBNAIL_OFFSET) {
+        offset = readInt(segment, entry + 8, littleEndian);
+      } else if (tag == TAG_THUMBNAIL_LENGTH) {
+        length = readInt(segment, entry + 8, littleEndian);
+      }
+    }
+
+    if (offset <= 0 || length <= 0 || base + offset > segment.length - length) {
+      return null;
+    }
+    byte[] thumbnail = new byte[length];
+    System.arraycopy(segment, base + offset, thumbnail, 0, length);
+    return thumbnail;
+  }
+
+  // Returns -1 if it's out of bounds
+  private static int readUnsignedShort(byte[] bytes, int offset, boolean littleEndian) {
+    if (offset < 0 || offset + 2 > bytes.length) {
+      return -1;
+    }
+    int b0 = bytes[offset] & 0xFF;
+    int b1 = bytes[offset + 1] & 0xFF;
+    return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+  }
+
+  // Returns -1 if it's out of bounds
+  private static int readInt(byte[] bytes, int offset, boolean littleEndian) {
+    if (offset < 0 || offset + 4 > bytes.length) {
+      return -1;
+    }
+    int b0 = bytes[offset] & 0xFF;
+    int b1 = bytes[offset + 1] & 0xFF;
+    int b2 = bytes[offset + 2] & 0xFF;
+    int b3 = bytes[offset + 3] & 0xFF;
+    return littleEndian
+        ? (b3 << 24) | (b2 << 16) | (b1 << 8) | b0
+        : (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+  }
+
+  private static int readFrameHeader(Reader reader) throws IOException {
+    // Precision, height and width
+    if (!reader.skip(5)) {
+      return 0;
+    }
+    int components = reader.read();
+    if (components <= 0) {
+      return 0;
+    }
+    if (components == 1) {
+      // Grayscale images are not interleaved, the MCU is one block
+      return 8;
+    }
+
+    int maxH = 1;
+    int maxV = 1;
+    for (int i = 0; i < components; i++) {
+      // Component id, sampling factors and quantization table
+      reader.read();
+      int factors = reader.read();
+      if (reader.read() < 0) {
+        return 0;
+      }
+      maxH = Math.max(maxH, factors >> 4);
+      maxV = Math.max(maxV, factors & 0x0F);
+    }
+    return 8 * Math.max(maxH, maxV);
+  }
+
+  /*
+   * Reads no more than the limit.
+   */
+  private static class Reader {
+
+    private final InputStream is;
+    private final int limit;
+    private int remain;
+
+    private Reader(InputStream is, int limit) {
+      this.is = is;
+      this.limit = limit;
+      this.remain = limit;
+    }
+
+    // The count of bytes read or skipped
+    private int getPosition() {
+      return limit - remain;
+    }
+
+    // Returns -1 at the end or the limit
+    private int read() throws IOException {
+      if (remain <= 0) {
+        return -1;
+      }
+      remain--;
+      return is.read();
+    }
+
+    private int readShort() throws IOException {
+      int high = read();
+      int low = read();
+      return high < 0 || low < 0 ? -1 : (high << 8) | low;
+    }
+
+    private boolean readFully(byte[] bytes) throws IOException {
+      if (bytes.length > remain) {
+        remain = 0;
+        return false;
+      }
+      remain -= bytes.length;
+      int offset = 0;
+      while (offset < bytes.length) {
+        int n = is.read(bytes, offset, bytes.length - offset);
+        if (n < 0) {
+          return false;
+        }
+        offset += n;
+      }
+      return true;
+    }
+
+    private boolean skip(int count) throws IOException {
+      if (count > remain) {
+        remain = 0;
+        return false;
+      }
+      remain -= count;
+      while (count > 0) {
+        long skipped = is.skip(count);
+        if (skipped <= 0) {
+          if (is.read() < 0) {
+            return false;
+          }
+          skipped = 1;
+        }
+        count -= skipped;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.support.annotation.WorkerThread;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * JpegRestartIndex maps the rows of a sequential JPEG image with restart markers
+ * to the bytes of them, so that the rows can be decoded before the whole image arrives.
+ *
+ * Restart markers split the entropy-coded data into intervals of a fixed count
+ * of MCUs, each of them can be decoded alone. The image is split into bands of
+ * MCU rows starting at intervals. The offsets of bands are found by scanning
+ * the data from the start as the bytes arrive, so a band is indexed once all
+ * bytes above it have arrived.
+ *
+ * @see JpegHeader#readRestartIndex(java.io.InputStream, int)
+ */
+final class JpegRestartIndex {
+
+  private static final int MARKER_RST0 = 0xD0;
+  private static final int MARKER_RST7 = 0xD7;
+  private static final int MARKER_EOI = 0xD9;
+
+  // A divisor of the chunk size of RangeSource
+  private static final int SCAN_BUFFER_SIZE = 8 * 1024;
+
+  // The header of a standalone image, the height is replaced for bands
+  private final byte[] header;
+  private final int heightOffset;
+  private final int width;
+  private final int height;
+  private final int mcuWidth;
+  private final int mcuHeight;
+  private final int interval;
+  private final long scanStart;
+  // The count of MCU rows in a band, and the count of MCUs
+  private final int bandRows;
+  private final long bandMcus;
+  private final int bandCount;
+
+  // Guarded by this
+  // The offset of the data of each band, and the offset of the marker after it
+  private final long[] bandStarts;
+  private final long[] bandEnds;
+  private int indexedBands;
+  private long scanned;
+  // Scanning stops at an unexpected marker
+  private boolean broken;
+
+  // Guarded by scanLock
+  private final Object scanLock = new Object();
+  private final byte[] scanBuffer = new byte[SCAN_BUFFER_SIZE];
+  private boolean afterFF;
+  private int restarts;
+
+  JpegRestartIndex(byte[] header, int heightOffset, int width, int height,
+      int mcuWidth, int mcuHeight, int interval, long scanStart) {
+    this.header = header;
+    this.heightOffset = heightOffset;
+    this.width = width;
+    this.height = height;
+    this.mcuWidth = mcuWidth;
+    this.mcuHeight = mcuHeight;
+    this.interval = interval;
+    this.scanStart = scanStart;
+
+    int mcusPerRow = Utils.ceilDiv(width, mcuWidth);
+    int mcuRows = Utils.ceilDiv(height, mcuHeight);
+    // A band must start at the start of an interval
+    bandRows = Math.min(mcuRows, interval / gcd(interval, mcusPerRow));
+    bandMcus = (long) bandRows * mcusPerRow;
+    bandCount = Utils.ceilDiv(mcuRows, bandRows);
+
+    bandStarts = new long[bandCount];
+    bandEnds = new long[bandCount];
+    bandStarts[0] = scanStart;
+    scanned = scanStart;
+  }
+
+  private static int gcd(int a, int b) {
+    while (b != 0) {
+      int t = a % b;
+      a = b;
+      b = t;
+    }
+    return a;
+  }
+
+  int getWidth() {
+    return width;
+  }
+
+  int getHeight() {
+    return height;
+  }
+
+  /**
+   * Returns the size of the MCU, the bigger one of width and height.
+   */
+  int getMcuSize() {
+    return Math.max(mcuWidth, mcuHeight);
+  }
+
+  int getBandCount() {
+    return bandCount;
+  }
+
+  /**
+   * Returns the band of the row.
+   */
+  int getBand(int row) {
+    return Math.min(bandCount - 1, row / (bandRows * mcuHeight));
+  }
+
+  int getBandTop(int band) {
+    return band * bandRows * mcuHeight;
+  }
+
+  int getBandBottom(int band) {
+    return Math.min(height, (band + 1) * bandRows * mcuHeight);
+  }
+
+  synchronized boolean isIndexed(int band) {
+    return band < indexedBands;
+  }
+
+  /**
+   * Returns the count of the indexed bands, they are the first ones.
+   */
+  synchronized int getIndexedBandCount() {
+    return indexedBands;
+  }
+
+  /**
+   * Returns the position where scanning continues.
+   */
+  synchronized long getScannedPosition() {
+    return scanned;
+  }
+
+  /**
+   * Returns {@code true} if the band is indexed. Otherwise, requests the bytes
+   * to index it, from the scanned position to the estimated end of the band.
+   */
+  boolean requestBand(RangeSource source, int band) {
+    long position;
+    synchronized (this) {
+      if (band < indexedBands) {
+        return true;
+      }
+      if (broken) {
+        return false;
+      }
+      position = scanned;
+    }
+
+    // Assume all rows take the same count of bytes, it's requested
+    // again for the rest if the guess is short
+    long length = source.length();
+    long end = scanStart + (long) ((double) (length - scanStart)
+        * getBandBottom(band) / height);
+    source.request(position, Math.max(end - position, 1));
+    return false;
+  }
+
+  /**
+   * Scans the bytes which have arrived after the scanned position.
+   * Returns {@code true} if more bands are indexed.
+   */
+  @WorkerThread
+  boolean scan(RangeSource source) throws IOException {
+    synchronized (scanLock) {
+      int indexed;
+      long position;
+      synchronized (this) {
+        if (broken || indexedBands == bandCount) {
+          return false;
+        }
+        indexed = indexedBands;
+        position = scanned;
+      }
+
+      long length = source.length();
+      boolean end = false;
+      while (!end && position < length) {
+        // Aligned, so no block is across a missing chunk
+        int size = (int) Math.min(SCAN_BUFFER_SIZE - position % SCAN_BUFFER_SIZE,
+            length - position);
+        if (!source.isAvailable(position, size)) {
+          break;
+        }
+        readFully(source, position, scanBuffer, 0, size);
+        end = !scan(scanBuffer, size, position);
+        position += size;
+        synchronized (this) {
+          scanned = position;
+        }
+      }
+
+      synchronized (this) {
+        return indexedBands > indexed;
+      }
+    }
+  }
+
+  /*
+   * Finds restart markers in the bytes at the position.
+   * Returns false if the scan ends.
+   */
+  private boolean scan(byte[] buffer, int size, long position) {
+    for (int i = 0; i < size; i++) {
+      int b = buffer[i] & 0xFF;
+      if (!afterFF) {
+        afterFF = b == 0xFF;
+        continue;
+      }
+      if (b == 0xFF) {
+        // Fill bytes
+        continue;
+      }
+      afterFF = false;
+      if (b == 0x00) {
+        // Stuffed 0xFF in data
+        continue;
+      }
+
+      long marker = position + i - 1;
+      if (b >= MARKER_RST0 && b <= MARKER_RST7) {
+        restarts++;
+        long mcu = (long) restarts * interval;
+        int band = (int) (mcu / bandMcus);
+        if (mcu % bandMcus == 0 && band < bandCount) {
+          synchronized (this) {
+            bandEnds[band - 1] = marker;
+            bandStarts[band] = marker + 2;
+            indexedBands = band;
+          }
+        }
+      } else {
+        synchronized (this) {
+          if (b == MARKER_EOI) {
+            bandEnds[bandCount - 1] = marker;
+            indexedBands = bandCount;
+          } else {
+            // Like DNL or more scans
+            broken = true;
+          }
+        }
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads the bands from first to last as a standalone JPEG image,
+   * its top is the top of the first band. The bands must be indexed.
+   */
+  @WorkerThread
+  byte[] readBands(SeekableSource source, int first, int last) throws IOException {
+    long start;
+    long end;
+    synchronized (this) {
+      if (last >= indexedBands) {
+        throw new IllegalStateException("Band " + last + " isn't indexed");
+      }
+      start = bandStarts[first];
+      end = bandEnds[last];
+    }
+
+    int size = (int) (end - start);
+    byte[] bytes = new byte[header.length + size + 2];
+    System.arraycopy(header, 0, bytes, 0, header.length);
+    int bandHeight = getBandBottom(last) - getBandTop(first);
+    bytes[heightOffset] = (byte) (bandHeight >> 8);
+    bytes[heightOffset + 1] = (byte) bandHeight;
+    readFully(source, start, bytes, header.length, size);
+
+    // Renumber restart markers, as if the first interval is the first one of the image
+    int restart = 0;
+    boolean afterFF = false;
+    for (int i = header.length, n = header.length + size; i < n; i++) {
+      int b = bytes[i] & 0xFF;
+      if (!afterFF) {
+        afterFF = b == 0xFF;
+        continue;
+      }
+      if (b == 0xFF) {
+        continue;
+      }
+      afterFF = false;
+      if (b >= MARKER_RST0 && b <= MARKER_RST7) {
+        bytes[i] = (byte) (MARKER_RST0 + restart);
+        restart = (restart + 1) % 8;
+      }
+    }
+
+    bytes[bytes.length - 2] = (byte) 0xFF;
+    bytes[bytes.length - 1] = (byte) MARKER_EOI;
+    return bytes;
+  }
+
+  private static void readFully(SeekableSource source, long position, byte[] buffer,
+      int offset, int length) throws IOException {
+    while (length > 0) {
+      int n = source.read(position, buffer, offset, length);
+      if (n <= 0) {
+        throw new EOFException("Can't read " + length + " bytes at " + position);
+      }
+      position += n;
+      offset += n;
+      length -= n;
+    }
+  }
+}
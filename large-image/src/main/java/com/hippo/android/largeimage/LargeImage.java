@@ -20,19 +20,73 @@ package com.hippo.android.largeimage;
  * Created by Hippo on 2018/1/25.
  */
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.support.annotation.MainThread;
 import android.util.DisplayMetrics;
 
 public final class LargeImage {
 
   private static int MAX_TEXTURE_SIZE = 1024;
+  // 0 for MAX_TEXTURE_SIZE
+  private static int TILE_SIZE = 0;
+
+  private static MemoryGovernor MEMORY_GOVERNOR;
 
   /**
    * Initialize the whole {@code android-large-image} library.
+   *
+   * A {@link ComponentCallbacks2} is registered to the application context,
+   * so that tiles, previews and caches are released in stages on memory pressure.
    */
   public static void initialize(Context context) {
     DisplayMetrics metrics = context.getResources().getDisplayMetrics();
     MAX_TEXTURE_SIZE = Math.max(metrics.widthPixels, metrics.heightPixels);
+
+    if (MEMORY_GOVERNOR == null) {
+      MEMORY_GOVERNOR = new MemoryGovernor();
+      MemoryGovernor.setActivityManager((ActivityManager)
+          context.getApplicationContext().getSystemService(Context.ACTIVITY_SERVICE));
+      context.getApplicationContext().registerComponentCallbacks(MEMORY_GOVERNOR);
+    }
+  }
+
+  /**
+   * Releases memory held by this library for the trim level,
+   * one of {@code TRIM_MEMORY_*} in {@link ComponentCallbacks2}.
+   *
+   * It's called automatically if {@link #initialize(Context)} is called.
+   */
+  @MainThread
+  public static void trimMemory(int level) {
+    MemoryGovernor.trim(level);
+  }
+
+  /**
+   * Sets the default max size of decoded tile bitmaps for new {@link TiledDrawable}s.
+   * {@code 0} for the longest side of the screen, which is the default.
+   *
+   * Tiles as large as the screen keep decoding fewer tiles, but a view straddling
+   * tile corners might decode about four times the pixels it shows.
+   * Smaller tiles like 256 or 512 decode fewer pixels out of the view.
+   *
+   * @see TiledDrawable#setTileSize(int)
+   */
+  public static void setTileSize(int tileSize) {
+    if (tileSize < 0) {
+      throw new IllegalArgumentException("Invalid tile size: " + tileSize);
+    }
+    TILE_SIZE = tileSize;
+  }
+
+  /**
+   * Returns the default max size of decoded tile bitmaps.
+   *
+   * @see #setTileSize(int)
+   */
+  public static int getTileSize() {
+    return TILE_SIZE != 0 ? TILE_SIZE : MAX_TEXTURE_SIZE;
   }
 
   static int getMaxTextureSize() {
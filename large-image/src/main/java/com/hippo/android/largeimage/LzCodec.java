@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import java.util.Arrays;
+
+/**
+ * A fast LZ77 codec in the spirit of LZ4 block format.
+ *
+ * Each sequence is a token byte, literals and a match.
+ * The high 4 bits of the token is literal length, the low 4 bits is match length - 4.
+ * If a length is 15, extra bytes follow until a byte isn't 255.
+ * The match is described by a 2-byte little-endian offset.
+ * The last sequence only has literals.
+ */
+class LzCodec {
+
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_OFFSET = 0xffff;
+  private static final int HASH_LOG = 14;
+
+  static final int HASH_TABLE_SIZE = 1 << HASH_LOG;
+
+  /**
+   * Returns the max length of compressed data of {@code length} bytes.
+   */
+  public static int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  private static int readInt(byte[] b, int i) {
+    return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+  }
+
+  private static int hash(int value) {
+    return (value * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+  private static int writeLength(byte[] dst, int dOff, int length) {
+    while (length >= 255) {
+      dst[dOff++] = (byte) 255;
+      length -= 255;
+    }
+    dst[dOff++] = (byte) length;
+    return dOff;
+  }
+
+  private static int writeSequence(byte[] dst, int dOff, byte[] src, int literalStart,
+      int literalLength, int offset, int matchLength) {
+    int tokenIndex = dOff++;
+    int token;
+
+    if (literalLength >= 15) {
+      token = 15 << 4;
+      dOff = writeLength(dst, dOff, literalLength - 15);
+    } else {
+      token = literalLength << 4;
+    }
+    System.arraycopy(src, literalStart, dst, dOff, literalLength);
+    dOff += literalLength;
+
+    if (matchLength != 0) {
+      dst[dOff++] = (byte) offset;
+      dst[dOff++] = (byte) (offset >>> 8);
+      int length = matchLength - MIN_MATCH;
+      if (length >= 15) {
+        token |= 15;
+        dOff = writeLength(dst, dOff, length - 15);
+      } else {
+        token |= length;
+      }
+    }
+
+    dst[tokenIndex] = (byte) token;
+    return dOff;
+  }
+
+  /**
+   * Compresses the first {@code srcLength} bytes of {@code src} to {@code dst}.
+   * The size of {@code dst} must be at least {@link #maxCompressedLength(int)}.
+   * The size of {@code hashTable} must be at least {@link #HASH_TABLE_SIZE}.
+   *
+   * @return the length of compressed data
+   */
+  public static int compress(byte[] src, int srcLength, byte[] dst, int[] hashTable) {
+    Arrays.fill(hashTable, 0, HASH_TABLE_SIZE, -1);
+
+    int sOff = 0;
+    int dOff = 0;
+    int anchor = 0;
+    int limit = srcLength - MIN_MATCH;
+
+    while (sOff <= limit) {
+      int value = readInt(src, sOff);
+      int h = hash(value);
+      int ref = hashTable[h];
+      hashTable[h] = sOff;
+
+      if (ref < 0 || sOff - ref > MAX_OFFSET || readInt(src, ref) != value) {
+        sOff++;
+        continue;
+      }
+
+      int matchLength = MIN_MATCH;
+      while (sOff + matchLength < srcLength && src[ref + matchLength] == src[sOff + matchLength]) {
+        matchLength++;
+      }
+
+      dOff = writeSequence(dst, dOff, src, anchor, sOff - anchor, sOff - ref, matchLength);
+      sOff += matchLength;
+      anchor = sOff;
+    }
+
+    // Last literals
+    return writeSequence(dst, dOff, src, anchor, srcLength - anchor, 0, 0);
+  }
+
+  /**
+   * Decompresses the first {@code srcLength} bytes of {@code src} to {@code dst}.
+   *
+   * @return the length of decompressed data
+   */
+  public static int decompress(byte[] src, int srcLength, byte[] dst) {
+    int sOff = 0;
+    int dOff = 0;
+
+    for (;;) {
+      int token = src[sOff++] & 0xff;
+
+      int literalLength = token >>> 4;
+      if (literalLength == 15) {
+        int b;
+        do {
+          b = src[sOff++] & 0xff;
+          literalLength += b;
+        } while (b == 255);
+      }
+      System.arraycopy(src, sOff, dst, dOff, literalLength);
+      sOff += literalLength;
+      dOff += literalLength;
+
+      if (sOff >= srcLength) {
+        break;
+      }
+
+      int offset = (src[sOff++] & 0xff) | ((src[sOff++] & 0xff) << 8);
+      int matchLength = token & 0x0f;
+      if (matchLength == 15) {
+        int b;
+        do {
+          b = src[sOff++] & 0xff;
+          matchLength += b;
+        } while (b == 255);
+      }
+      matchLength += MIN_MATCH;
+
+      int ref = dOff - offset;
+      if (offset >= matchLength) {
+        System.arraycopy(dst, ref, dst, dOff, matchLength);
+        dOff += matchLength;
+      } else {
+        // Overlapped, copy byte by byte
+        for (int end = dOff + matchLength; dOff < end;) {
+          dst[dOff++] = dst[ref++];
+        }
+      }
+    }
+
+    return dOff;
+  }
+}
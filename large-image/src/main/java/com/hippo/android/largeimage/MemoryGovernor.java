@@ -0,0 +1,160 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * MemoryGovernor passes trim memory levels to all memory holders of this library.
+ * It's registered in {@link LargeImage#initialize(android.content.Context)}.
+ *
+ * The response is staged with the trim level:
+ * <ul>
+ * <li>{@code >= TRIM_MEMORY_RUNNING_MODERATE}: drop the tiles which aren't drawn,
+ * trim second-tier caches to half, evict idle decoders</li>
+ * <li>{@code >= TRIM_MEMORY_RUNNING_CRITICAL}: clear second-tier caches</li>
+ * <li>{@code >= TRIM_MEMORY_UI_HIDDEN}: drop all tiles</li>
+ * <li>{@code >= TRIM_MEMORY_MODERATE}: downgrade previews to a 2x coarser sample</li>
+ * </ul>
+ */
+final class MemoryGovernor implements ComponentCallbacks2 {
+
+  interface Trimmable {
+
+    /**
+     * Releases memory for the level, one of {@code TRIM_MEMORY_*} in {@link ComponentCallbacks2}.
+     * It's called in the main thread.
+     */
+    void trimMemory(int level);
+  }
+
+  // Running apps are treated under pressure for it after TRIM_MEMORY_RUNNING_LOW
+  private static final long PRESSURE_MILLIS = 10000L;
+
+  private static volatile long lastPressureTime = Long.MIN_VALUE / 2;
+
+  // Read the memory info of the system at most once in it, it's a binder call
+  private static final long MEMORY_INFO_MILLIS = 1000L;
+
+  @Nullable
+  private static ActivityManager activityManager;
+  private static final ActivityManager.MemoryInfo MEMORY_INFO = new ActivityManager.MemoryInfo();
+  private static long memoryInfoTime = Long.MIN_VALUE / 2;
+  private static float systemHeadroom = 1.0f;
+
+  private static final Set<Trimmable> TRIMMABLES =
+      Collections.newSetFromMap(new WeakHashMap<Trimmable, Boolean>());
+
+  static void register(Trimmable trimmable) {
+    synchronized (TRIMMABLES) {
+      TRIMMABLES.add(trimmable);
+    }
+  }
+
+  static void unregister(Trimmable trimmable) {
+    synchronized (TRIMMABLES) {
+      TRIMMABLES.remove(trimmable);
+    }
+  }
+
+  static void trim(int level) {
+    if (level >= TRIM_MEMORY_RUNNING_LOW && level < TRIM_MEMORY_UI_HIDDEN) {
+      lastPressureTime = SystemClock.uptimeMillis();
+    }
+
+    List<Trimmable> trimmables;
+    synchronized (TRIMMABLES) {
+      trimmables = new ArrayList<>(TRIMMABLES);
+    }
+    for (Trimmable trimmable : trimmables) {
+      trimmable.trimMemory(level);
+    }
+  }
+
+  static void setActivityManager(@Nullable ActivityManager activityManager) {
+    MemoryGovernor.activityManager = activityManager;
+  }
+
+  /**
+   * Returns the free fraction of the memory which bitmap pixels are allocated in,
+   * {@code 0} if the system reported low memory recently.
+   *
+   * Pixels are in the Java heap before Android O, and in the native heap since it,
+   * which is only limited by the memory of the system.
+   */
+  @MainThread
+  static float getHeadroom() {
+    if (isUnderPressure()) {
+      return 0.0f;
+    }
+
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+      Runtime runtime = Runtime.getRuntime();
+      long used = runtime.totalMemory() - runtime.freeMemory();
+      return 1.0f - (float) used / (float) runtime.maxMemory();
+    }
+
+    if (activityManager == null) {
+      // Not initialized, only the pressure is known
+      return 1.0f;
+    }
+    long now = SystemClock.uptimeMillis();
+    if (now - memoryInfoTime >= MEMORY_INFO_MILLIS) {
+      memoryInfoTime = now;
+      activityManager.getMemoryInfo(MEMORY_INFO);
+      if (MEMORY_INFO.lowMemory || MEMORY_INFO.totalMem <= 0) {
+        systemHeadroom = 0.0f;
+      } else {
+        // The system starts killing background processes at the threshold
+        float free = (float) (MEMORY_INFO.availMem - MEMORY_INFO.threshold);
+        systemHeadroom = Math.max(0.0f, Math.min(1.0f, free / (float) MEMORY_INFO.totalMem));
+      }
+    }
+    return systemHeadroom;
+  }
+
+  /**
+   * Returns {@code true} if the system reported low memory to the running app recently.
+   */
+  static boolean isUnderPressure() {
+    return SystemClock.uptimeMillis() - lastPressureTime < PRESSURE_MILLIS;
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    trim(level);
+  }
+
+  @Override
+  public void onLowMemory() {
+    trim(TRIM_MEMORY_COMPLETE);
+  }
+
+  @Override
+  public void onConfigurationChanged(Configuration newConfig) {}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+/**
+ * PreviewDemands counts the preview samples which the TiledDrawables sharing
+ * a decoder need, so that the preview is only downgraded to a sample all of
+ * them accept. Each TiledDrawable holds a {@link Claim}, and drops it when it's
+ * paused or recycled. Samples are powers of 2.
+ *
+ * It's only used in the main thread.
+ */
+final class PreviewDemands {
+
+  // The counts of claims by the log2 of samples
+  private final int[] counts = new int[Integer.SIZE];
+
+  /**
+   * Returns the smallest sample claimed, {@code 0} if there is no claim.
+   */
+  int getMinSample() {
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] != 0) {
+        return 1 << i;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * A claim of the preview sample.
+   */
+  static final class Claim {
+
+    private final PreviewDemands demands;
+    private int sample;
+
+    Claim(PreviewDemands demands) {
+      this.demands = demands;
+    }
+
+    /**
+     * Claims the preview at the sample or finer, {@code 0} to drop the claim.
+     */
+    void set(int sample) {
+      if (this.sample == sample) {
+        return;
+      }
+      if (this.sample != 0) {
+        demands.counts[Integer.numberOfTrailingZeros(this.sample)]--;
+      }
+      if (sample != 0) {
+        demands.counts[Integer.numberOfTrailingZeros(sample)]++;
+      }
+      this.sample = sample;
+    }
+
+    int get() {
+      return sample;
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+/**
+ * PreviewProvider provides the preview of an image without decoding the whole image,
+ * like an embedded thumbnail, a sidecar file, or a preview persisted before.
+ *
+ * The preview must show the whole image. Its effective sample is
+ * calculated from its size, the aspect ratio must match the image.
+ *
+ * @see PreviewProviderChain
+ * @see ImageRegionDecoder#generatePreview(PreviewProvider)
+ */
+public interface PreviewProvider {
+
+  /**
+   * Returns a preview of the image, or {@code null} if it's not available.
+   * The preview should not be bigger than the image sampled by {@code minSample},
+   * otherwise it's dropped.
+   *
+   * @param decoder the decoder of the image
+   * @param minSample the smallest sample of the preview, the preview
+   *                  must fit the max texture size
+   */
+  @WorkerThread
+  @Nullable
+  Bitmap getPreview(@NonNull ImageRegionDecoder decoder, int minSample);
+
+  /**
+   * Called with the preview generated by the decoder if no preview is provided,
+   * so that it can be persisted. Don't keep or recycle the preview.
+   */
+  @WorkerThread
+  void onPreviewGenerated(@NonNull ImageRegionDecoder decoder, @NonNull Bitmap preview,
+      int sample);
+}
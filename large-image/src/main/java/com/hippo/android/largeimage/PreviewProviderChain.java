@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A PreviewProvider which consults PreviewProviders in order,
+ * the first available preview is used.
+ *
+ * Put the cheap ones first, like
+ * {@code new PreviewProviderChain(new FilePreviewProvider(cache, true),
+ * new ExifThumbnailProvider(file))}. If none is available, the generated preview
+ * is passed to all of them.
+ */
+public class PreviewProviderChain implements PreviewProvider {
+
+  private final List<PreviewProvider> providers;
+
+  public PreviewProviderChain(@NonNull PreviewProvider... providers) {
+    this.providers = new ArrayList<>(Arrays.asList(providers));
+  }
+
+  @Nullable
+  @Override
+  public Bitmap getPreview(@NonNull ImageRegionDecoder decoder, int minSample) {
+    for (PreviewProvider provider : providers) {
+      Bitmap preview = provider.getPreview(decoder, minSample);
+      if (preview != null) {
+        return preview;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void onPreviewGenerated(@NonNull ImageRegionDecoder decoder, @NonNull Bitmap preview,
+      int sample) {
+    for (PreviewProvider provider : providers) {
+      provider.onPreviewGenerated(decoder, preview, sample);
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+/**
+ * QualityGovernor trades sample level for memory headroom and decode throughput.
+ *
+ * The sample from the scale is biased by {@code 2^bias}. The bias steps up,
+ * which means coarser tiles, if memory headroom is low or decoding the viewport
+ * is estimated to take too long. It steps down if both recover.
+ * The thresholds for the two directions are different, and the bias is held
+ * for a while after each step, so that the sample level doesn't flap.
+ *
+ * It's not thread-safe.
+ */
+class QualityGovernor {
+
+  // Step up if headroom is below it
+  static final float LOW_HEADROOM = 0.1f;
+  // Step down only if headroom is above it
+  static final float HIGH_HEADROOM = 0.25f;
+  // Step up if decoding the viewport takes longer
+  static final long SLOW_NANOS = 1000000000L;
+  // Step down only if decoding the viewport at the finer sample takes shorter
+  static final long FAST_NANOS = 400000000L;
+  // Hold the bias for it after each step
+  static final long HOLD_MILLIS = 1000L;
+  static final int MAX_BIAS = 2;
+
+  // Weight of the newest decoding in the moving average
+  private static final float DECODE_WEIGHT = 0.25f;
+
+  private int bias;
+  private long lastStepTime = Long.MIN_VALUE / 2;
+  // Exponential moving average, 0 before the first decoding
+  private float nanosPerPixel;
+
+  private int stepUpCount;
+  private int stepDownCount;
+
+  /**
+   * Reports a region decoding.
+   */
+  void onDecoded(long pixels, long nanos) {
+    if (pixels <= 0 || nanos < 0) {
+      return;
+    }
+    float value = (float) nanos / (float) pixels;
+    nanosPerPixel = nanosPerPixel == 0.0f ? value
+        : nanosPerPixel + DECODE_WEIGHT * (value - nanosPerPixel);
+  }
+
+  /**
+   * Returns the estimated nanoseconds to decode the pixels.
+   */
+  long estimateNanos(long pixels) {
+    return (long) (nanosPerPixel * pixels);
+  }
+
+  /**
+   * Returns the effective sample.
+   *
+   * @param sample the sample from the scale, power of 2
+   * @param maxSample the biggest sample level
+   * @param area the area of the viewport in the source image
+   * @param headroom the free fraction of memory, in {@code [0, 1]}
+   * @param now current time in milliseconds
+   */
+  int apply(int sample, int maxSample, long area, float headroom, long now) {
+    if (now - lastStepTime >= HOLD_MILLIS) {
+      int current = Math.min(maxSample, sample << bias);
+      boolean pressure = headroom < LOW_HEADROOM
+          || estimateNanos(area / ((long) current * current)) > SLOW_NANOS;
+
+      if (pressure) {
+        if (bias < MAX_BIAS && current < maxSample) {
+          bias++;
+          stepUpCount++;
+          lastStepTime = now;
+        }
+      } else if (bias > 0) {
+        int finer = Math.min(maxSample, sample << (bias - 1));
+        if (headroom > HIGH_HEADROOM
+            && estimateNanos(area / ((long) finer * finer)) < FAST_NANOS) {
+          bias--;
+          stepDownCount++;
+          lastStepTime = now;
+        }
+      }
+    }
+
+    return Math.min(maxSample, sample << bias);
+  }
+
+  int getBias() {
+    return bias;
+  }
+
+  float getNanosPerPixel() {
+    return nanosPerPixel;
+  }
+
+  int getStepUpCount() {
+    return stepUpCount;
+  }
+
+  int getStepDownCount() {
+    return stepDownCount;
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.support.annotation.WorkerThread;
+import java.io.IOException;
+
+/**
+ * RangeFetcher fetches byte ranges of a remote image for {@link RangeSource}.
+ * It might be called in multiple threads at the same time.
+ *
+ * @see HttpRangeFetcher
+ */
+public interface RangeFetcher {
+
+  /**
+   * Returns the count of bytes of the image.
+   */
+  @WorkerThread
+  long length() throws IOException;
+
+  /**
+   * Fetches {@code length} bytes at the position into the buffer.
+   * The range is always in the image.
+   */
+  @WorkerThread
+  void fetch(long position, byte[] buffer, int offset, int length) throws IOException;
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+import java.io.IOException;
+
+/**
+ * A ImageRegionDecoder of a JPEG image in a {@link RangeSource}, which shows
+ * the image before it arrives completely.
+ *
+ * The image must be a baseline or sequential JPEG with restart markers,
+ * like the ones encoded with {@code cjpeg -restart 1}. Restart markers let rows
+ * be decoded without the bytes above them, see {@link JpegRestartIndex}.
+ * A region is decodable once the bytes of its rows and the rows above have
+ * arrived. Otherwise, these bytes are requested, so the regions on the screen
+ * decide which bytes are fetched next.
+ *
+ * The preview is the EXIF thumbnail, or a blank placeholder if the image
+ * hasn't arrived, so only the header is fetched to create the decoder.
+ * The arrived rows are drawn onto a mutable preview, like the placeholder,
+ * and tiles are drawn over it once their bytes arrive.
+ *
+ * The decoder listens to the source, set the listener of the decoder instead.
+ */
+public class RangeImageRegionDecoder extends ImageRegionDecoder {
+
+  private static final String LOG_TAG = "RangeImageRegionDecoder";
+
+  // The max size of the placeholder preview
+  private static final int PLACEHOLDER_SIZE = 256;
+
+  /**
+   * Listener for the regions which become decodable.
+   */
+  public interface Listener {
+
+    /**
+     * Called in the fetching thread when more regions are decodable.
+     * Call {@link TiledDrawable#onRegionsAvailable()} in the main thread then.
+     */
+    @WorkerThread
+    void onRegionsAvailable();
+  }
+
+  private final RangeSource source;
+  private final JpegRestartIndex index;
+  @Nullable
+  private final byte[] thumbnail;
+
+  @Nullable
+  private volatile Listener listener;
+
+  // Guarded by this, the preview which the first patchedBands bands are drawn onto
+  @Nullable
+  private Bitmap patchedPreview;
+  private int patchedBands;
+
+  private RangeImageRegionDecoder(RangeSource source, JpegRestartIndex index,
+      @Nullable byte[] thumbnail) {
+    this.source = source;
+    this.index = index;
+    this.thumbnail = thumbnail;
+  }
+
+  /**
+   * Sets the listener for the regions which become decodable.
+   */
+  public void setListener(@Nullable Listener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public int getWidth() {
+    return index.getWidth();
+  }
+
+  @Override
+  public int getHeight() {
+    return index.getHeight();
+  }
+
+  @Nullable
+  @Override
+  public Bitmap decode(Rect rect, int sample) {
+    return decodeInto(rect, sample, null, null);
+  }
+
+  @Override
+  public int getCapabilities() {
+    // Each decoding has its own BitmapRegionDecoder
+    return CAPABILITY_REUSE_BITMAP | CAPABILITY_CONCURRENT_DECODE;
+  }
+
+  @Override
+  public int getMaxConcurrency() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  @Nullable
+  @Override
+  public Bitmap decodeInto(Rect rect, int sample, @Nullable Bitmap reuse) {
+    return decodeInto(rect, sample, reuse, null);
+  }
+
+  @Nullable
+  @Override
+  public Bitmap decodeInto(Rect rect, int sample, @Nullable Bitmap reuse,
+      @Nullable CancellationToken token) {
+    if (token != null && token.isCancelled()) {
+      return null;
+    }
+
+    int first = index.getBand(rect.top);
+    int last = index.getBand(rect.bottom - 1);
+    if (!index.isIndexed(last)) {
+      // Don't wait for the bytes, it's requested in isRegionDecodable()
+      return null;
+    }
+
+    BitmapRegionDecoder decoder;
+    try {
+      byte[] bands = index.readBands(source, first, last);
+      decoder = BitmapRegionDecoder.newInstance(bands, 0, bands.length, false);
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Can't create BitmapRegionDecoder for region " + rect, e);
+      return null;
+    }
+    if (decoder == null) {
+      Log.e(LOG_TAG, "Can't create BitmapRegionDecoder for region " + rect);
+      return null;
+    }
+
+    int top = index.getBandTop(first);
+    Rect bandRect = new Rect(rect.left, rect.top - top, rect.right, rect.bottom - top);
+
+    final BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inSampleSize = sample;
+    // Only mutable bitmaps can be reused
+    options.inMutable = true;
+    options.inBitmap = reuse;
+
+    // requestCancelDecode() is a no-op since Android N
+    if (token != null && Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+      token.setOnCancelListener(new Runnable() {
+        @SuppressWarnings("deprecation")
+        @Override
+        public void run() {
+          options.requestCancelDecode();
+        }
+      });
+    }
+
+    try {
+      try {
+        return decoder.decodeRegion(bandRect, options);
+      } catch (IllegalStateException | IllegalArgumentException e) {
+        if (reuse == null) {
+          throw e;
+        }
+        // Can't reuse the bitmap, try again without it
+        Log.w(LOG_TAG, "Can't reuse bitmap for region " + rect + " at sample " + sample, e);
+        options.inBitmap = null;
+        return decoder.decodeRegion(bandRect, options);
+      }
+    } catch (IllegalStateException | IllegalArgumentException e) {
+      Log.e(LOG_TAG, "Can't decode region " + rect + " at sample " + sample, e);
+      return null;
+    } finally {
+      if (token != null) {
+        token.setOnCancelListener(null);
+      }
+      decoder.recycle();
+    }
+  }
+
+  /**
+   * Returns {@code true} if the bytes of the rows of the region have arrived.
+   * Otherwise, requests them.
+   */
+  @MainThread
+  @Override
+  public boolean isRegionDecodable(Rect rect, int sample) {
+    return index.requestBand(source, index.getBand(rect.bottom - 1));
+  }
+
+  @Override
+  public int getPreferredAlignment(int sample) {
+    return index.getMcuSize() * sample;
+  }
+
+  @Override
+  public void recycle(Bitmap bitmap) {
+    bitmap.recycle();
+  }
+
+  @Override
+  public void recycle() {
+    super.recycle();
+    source.setListener(null);
+  }
+
+  @WorkerThread
+  private void onRangeAvailable() {
+    boolean indexed;
+    try {
+      indexed = index.scan(source);
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Can't scan the image", e);
+      return;
+    }
+    if (!indexed) {
+      return;
+    }
+    patchPreview();
+    Listener listener = this.listener;
+    if (listener != null) {
+      listener.onRegionsAvailable();
+    }
+  }
+
+  /*
+   * Draws the arrived bands onto the preview if it's mutable, so that
+   * the placeholder fills in as the image arrives. A new preview,
+   * like a restored one, is patched from the first band.
+   */
+  @WorkerThread
+  private synchronized void patchPreview() {
+    Bitmap preview = pinPreview();
+    if (preview == null) {
+      return;
+    }
+    try {
+      if (preview != patchedPreview) {
+        patchedPreview = preview;
+        patchedBands = 0;
+      }
+      int bands = index.getIndexedBandCount();
+      if (!preview.isMutable() || patchedBands >= bands) {
+        return;
+      }
+
+      int width = getWidth();
+      int height = getHeight();
+      int sample = Utils.effectiveSample(width, height, preview.getWidth(), preview.getHeight());
+      int top = index.getBandTop(patchedBands);
+      int bottom = index.getBandBottom(bands - 1);
+      Bitmap rows = sample > 0 ? decodeInto(new Rect(0, top, width, bottom), sample, null, null)
+          : null;
+      if (rows == null) {
+        return;
+      }
+      RectF dst = new RectF(0, (float) top * preview.getHeight() / height,
+          preview.getWidth(), (float) bottom * preview.getHeight() / height);
+      new Canvas(preview).drawBitmap(rows, null, dst, new Paint(Paint.FILTER_BITMAP_FLAG));
+      rows.recycle();
+      patchedBands = bands;
+    } finally {
+      unpinPreview(preview);
+    }
+  }
+
+  /**
+   * Creates a RangeImageRegionDecoder. Only the header of the image is fetched.
+   * Returns {@code null} if the image isn't a JPEG image with restart markers.
+   * The preview is taken from the provider if it's available.
+   */
+  @WorkerThread
+  @Nullable
+  public static RangeImageRegionDecoder newInstance(@NonNull RangeSource source,
+      @Nullable PreviewProvider previewProvider) {
+    JpegRestartIndex index;
+    byte[] thumbnail;
+    try {
+      index = JpegHeader.readRestartIndex(new SourceInputStream(source),
+          JpegHeader.MAX_HEADER_SIZE);
+      thumbnail = index == null ? null : JpegHeader.readExifThumbnail(
+          new SourceInputStream(source), JpegHeader.MAX_HEADER_SIZE);
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Can't read the header", e);
+      return null;
+    }
+    if (index == null) {
+      Log.e(LOG_TAG, "Not a JPEG image with restart markers");
+      return null;
+    }
+
+    final RangeImageRegionDecoder decoder = new RangeImageRegionDecoder(source, index, thumbnail);
+    source.setListener(new RangeSource.Listener() {
+      @Override
+      public void onRangeAvailable(long position, long length) {
+        decoder.onRangeAvailable();
+      }
+    });
+    // The bytes fetched with the header
+    decoder.onRangeAvailable();
+
+    PreviewProvider partial = new PartialPreviewProvider();
+    decoder.generatePreview(previewProvider != null
+        ? new PreviewProviderChain(previewProvider, partial) : partial);
+
+    if (decoder.getPreview() == null) {
+      Log.e(LOG_TAG, "Can't create generate preview from RangeImageRegionDecoder");
+      decoder.recycle();
+      return null;
+    }
+    if (!source.isComplete()) {
+      decoder.patchPreview();
+    }
+
+    return decoder;
+  }
+
+  /*
+   * Provides the EXIF thumbnail, or a blank placeholder if the image hasn't arrived.
+   * The whole image is decoded only if it has arrived.
+   */
+  private static class PartialPreviewProvider implements PreviewProvider {
+
+    @Nullable
+    @Override
+    public Bitmap getPreview(@NonNull ImageRegionDecoder decoder, int minSample) {
+      RangeImageRegionDecoder rangeDecoder = (RangeImageRegionDecoder) decoder;
+      int width = decoder.getWidth();
+      int height = decoder.getHeight();
+
+      byte[] thumbnail = rangeDecoder.thumbnail;
+      if (thumbnail != null) {
+        Bitmap preview = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+        if (preview != null && Utils.fitsSample(width, height,
+            preview.getWidth(), preview.getHeight(), minSample)) {
+          return preview;
+        }
+        if (preview != null) {
+          preview.recycle();
+        }
+      }
+
+      if (rangeDecoder.source.isComplete()) {
+        return null;
+      }
+
+      int sample = Math.max(minSample,
+          Utils.nextPow2(Utils.ceilDiv(Math.max(width, height), PLACEHOLDER_SIZE)));
+      try {
+        // Transparent
+        return Bitmap.createBitmap(Utils.ceilDiv(width, sample), Utils.ceilDiv(height, sample),
+            Bitmap.Config.ARGB_8888);
+      } catch (OutOfMemoryError e) {
+        Log.e(LOG_TAG, "Can't create placeholder preview", e);
+        return null;
+      }
+    }
+
+    @Override
+    public void onPreviewGenerated(@NonNull ImageRegionDecoder decoder, @NonNull Bitmap preview,
+        int sample) {}
+  }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+/**
+ * A SeekableSource of a remote image, like an image over HTTP range requests.
+ * Fetched bytes are kept in a cache file, so bytes are fetched once.
+ *
+ * Reading bytes which haven't arrived fetches them in the reading thread.
+ * A decoder which knows where the bytes of a region are, like
+ * {@link RangeImageRegionDecoder}, should check {@link #isAvailable(long, long)} in
+ * {@link ImageRegionDecoder#isRegionDecodable(android.graphics.Rect, int)},
+ * and {@link #request(long, long)} the missing bytes, so that the bytes of
+ * the regions on the screen are fetched first. Once they arrive, the listener
+ * is called, call {@link TiledDrawable#onRegionsAvailable()} then to decode them.
+ *
+ * With an executor, requested ranges are fetched in background, the most recent
+ * request first. If it's sequential, the rest of the image is fetched in order
+ * when no range is requested.
+ */
+public class RangeSource implements SeekableSource {
+
+  private static final String LOG_TAG = "RangeSource";
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+  // The max count of chunks for one fetch in background
+  private static final int MAX_FETCH_CHUNKS = 8;
+  // The max count of requested chunks kept, older requests are dropped
+  private static final int MAX_REQUESTED_CHUNKS = 256;
+
+  /**
+   * Listener for the arrival of bytes.
+   */
+  public interface Listener {
+
+    /**
+     * Called in the fetching thread when the range arrives.
+     */
+    @WorkerThread
+    void onRangeAvailable(long position, long length);
+  }
+
+  private final RangeFetcher fetcher;
+  private final long length;
+  private final int chunkCount;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  @Nullable
+  private final Executor executor;
+
+  // Guarded by this
+  private final BitSet available = new BitSet();
+  private final BitSet fetching = new BitSet();
+  // The requested chunks, the most recent first, each chunk once
+  private final ArrayDeque<Integer> requested = new ArrayDeque<>();
+  private final BitSet requestedChunks = new BitSet();
+  private int sequentialCursor;
+  private boolean sequential = true;
+  private boolean prefetching;
+  private boolean closed;
+
+  @Nullable
+  private volatile Listener listener;
+
+  /**
+   * Create a RangeSource. It fetches the length of the image.
+   *
+   * @param fetcher the fetcher of the image
+   * @param cacheFile the file to keep fetched bytes, it's overwritten
+   * @param executor the executor to fetch in background, {@code null} to only
+   *                 fetch the bytes being read
+   */
+  @WorkerThread
+  public RangeSource(@NonNull RangeFetcher fetcher, @NonNull File cacheFile,
+      @Nullable Executor executor) throws IOException {
+    this.fetcher = fetcher;
+    this.length = fetcher.length();
+    this.chunkCount = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    this.executor = executor;
+
+    file = new RandomAccessFile(cacheFile, "rw");
+    try {
+      file.setLength(0);
+      file.setLength(length);
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+    channel = file.getChannel();
+  }
+
+  /**
+   * Sets the listener for the arrival of bytes.
+   */
+  public void setListener(@Nullable Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Sets whether to fetch the rest of the image in order in background
+   * when no range is requested. It's {@code true} by default.
+   */
+  public void setSequential(boolean sequential) {
+    synchronized (this) {
+      this.sequential = sequential;
+    }
+    schedulePrefetch();
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+  /**
+   * Returns {@code true} if all bytes in the range have arrived.
+   */
+  public synchronized boolean isAvailable(long position, long length) {
+    if (length <= 0) {
+      return true;
+    }
+    int first = chunkOf(position);
+    int last = chunkOf(Math.min(this.length, position + length) - 1);
+    return available.nextClearBit(first) > last;
+  }
+
+  /**
+   * Returns {@code true} if the whole image has arrived.
+   */
+  public synchronized boolean isComplete() {
+    return available.nextClearBit(0) >= chunkCount;
+  }
+
+  /**
+   * Requests the range to be fetched before others in background.
+   * It does nothing without an executor. Requesting a range again
+   * moves it to the front.
+   */
+  public void request(long position, long length) {
+    if (length <= 0 || position >= this.length) {
+      return;
+    }
+    synchronized (this) {
+      int first = chunkOf(position);
+      int last = chunkOf(Math.min(this.length, position + length) - 1);
+      for (int chunk = last; chunk >= first; chunk--) {
+        if (available.get(chunk)) {
+          continue;
+        }
+        if (requestedChunks.get(chunk)) {
+          requested.removeFirstOccurrence(chunk);
+        } else {
+          requestedChunks.set(chunk);
+        }
+        requested.addFirst(chunk);
+      }
+      while (requested.size() > MAX_REQUESTED_CHUNKS) {
+        requestedChunks.clear(requested.removeLast());
+      }
+    }
+    schedulePrefetch();
+  }
+
+  /**
+   * Starts fetching in background, the first chunks are fetched first.
+   * It does nothing if it's not sequential or without an executor.
+   */
+  public void start() {
+    schedulePrefetch();
+  }
+
+  @Override
+  public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+    if (position >= this.length) {
+      return -1;
+    }
+    length = (int) Math.min(length, this.length - position);
+    if (length <= 0) {
+      return 0;
+    }
+
+    ensureChunks(chunkOf(position), chunkOf(position + length - 1));
+
+    ByteBuffer bb = ByteBuffer.wrap(buffer, offset, length);
+    while (bb.hasRemaining()) {
+      if (channel.read(bb, position + bb.position() - offset) < 0) {
+        throw new IOException("Unexpected end of cache file");
+      }
+    }
+    return length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      closed = true;
+      requested.clear();
+      requestedChunks.clear();
+      notifyAll();
+    }
+    file.close();
+  }
+
+  private int chunkOf(long position) {
+    return (int) (position / CHUNK_SIZE);
+  }
+
+  /*
+   * Fetches the missing chunks from first to last in this thread,
+   * adjacent ones in one fetch. Waits for the chunks being fetched in other threads.
+   */
+  private void ensureChunks(int first, int last) throws IOException {
+    int chunk = first;
+    while (chunk <= last) {
+      int count = 0;
+      synchronized (this) {
+        for (;;) {
+          if (closed) {
+            throw new IOException("RangeSource is closed");
+          }
+          if (available.get(chunk)) {
+            break;
+          }
+          if (!fetching.get(chunk)) {
+            // Take the following missing chunks in the range too
+            while (chunk + count <= last && !available.get(chunk + count)
+                && !fetching.get(chunk + count)) {
+              fetching.set(chunk + count);
+              count++;
+            }
+            break;
+          }
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for chunk " + chunk, e);
+          }
+        }
+      }
+
+      if (count == 0) {
+        chunk++;
+      } else {
+        fetchChunks(chunk, count);
+        chunk += count;
+      }
+    }
+  }
+
+  /*
+   * Fetches the chunks marked fetching, and marks them available.
+   */
+  private void fetchChunks(int first, int count) throws IOException {
+    long position = (long) first * CHUNK_SIZE;
+    int size = (int) Math.min((long) count * CHUNK_SIZE, length - position);
+    boolean done = false;
+    try {
+      byte[] buffer = new byte[size];
+      fetcher.fetch(position, buffer, 0, size);
+      ByteBuffer bb = ByteBuffer.wrap(buffer);
+      while (bb.hasRemaining()) {
+        channel.write(bb, position + bb.position());
+      }
+      done = true;
+    } finally {
+      synchronized (this) {
+        fetching.clear(first, first + count);
+        if (done) {
+          available.set(first, first + count);
+        }
+        notifyAll();
+      }
+    }
+
+    Listener listener = this.listener;
+    if (listener != null) {
+      listener.onRangeAvailable(position, size);
+    }
+  }
+
+  private void schedulePrefetch() {
+    if (executor == null) {
+      return;
+    }
+    synchronized (this) {
+      if (prefetching || closed || nextPrefetchChunk(false) < 0) {
+        return;
+      }
+      prefetching = true;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        prefetch();
+      }
+    });
+  }
+
+  /*
+   * Returns the next chunk to fetch in background, -1 if there is none.
+   */
+  private int nextPrefetchChunk(boolean poll) {
+    for (Iterator<Integer> iterator = requested.iterator(); iterator.hasNext();) {
+      int chunk = iterator.next();
+      if (!available.get(chunk) && !fetching.get(chunk)) {
+        return chunk;
+      }
+      if (poll) {
+        // Already fetched or being fetched
+        iterator.remove();
+        requestedChunks.clear(chunk);
+      }
+    }
+    if (sequential) {
+      int chunk = sequentialCursor;
+      while (chunk < chunkCount && (available.get(chunk) || fetching.get(chunk))) {
+        chunk++;
+      }
+      if (poll) {
+        sequentialCursor = chunk;
+      }
+      if (chunk < chunkCount) {
+        return chunk;
+      }
+    }
+    return -1;
+  }
+
+  private void prefetch() {
+    for (;;) {
+      int first;
+      int count = 0;
+      synchronized (this) {
+        first = closed ? -1 : nextPrefetchChunk(true);
+        if (first < 0) {
+          prefetching = false;
+          return;
+        }
+        // Take the following missing chunks too, only the requested ones for a request
+        boolean request = requestedChunks.get(first);
+        while (count < MAX_FETCH_CHUNKS && first + count < chunkCount
+            && !available.get(first + count) && !fetching.get(first + count)
+            && (!request || requestedChunks.get(first + count))) {
+          fetching.set(first + count);
+          count++;
+        }
+      }
+
+      try {
+        fetchChunks(first, count);
+      } catch (IOException e) {
+        Log.w(LOG_TAG, "Can't fetch chunks " + first + " - " + (first + count), e);
+        synchronized (this) {
+          prefetching = false;
+        }
+        return;
+      }
+    }
+  }
+}
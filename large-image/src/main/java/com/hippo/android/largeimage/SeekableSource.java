@@ -0,0 +1,44 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * SeekableSource provides the bytes of an image at any position,
+ * so that a decoder only reads the ranges it needs.
+ *
+ * {@link #read(long, byte[], int, int)} doesn't change any state,
+ * it can be called in multiple threads at the same time.
+ *
+ * @see SourceInputStream
+ */
+public interface SeekableSource extends Closeable {
+
+  /**
+   * Returns the count of bytes in this source.
+   */
+  long length() throws IOException;
+
+  /**
+   * Reads up to {@code length} bytes at the position.
+   * Returns the count of bytes read, or {@code -1} if the position is
+   * at or after the end.
+   */
+  int read(long position, byte[] buffer, int offset, int length) throws IOException;
+}
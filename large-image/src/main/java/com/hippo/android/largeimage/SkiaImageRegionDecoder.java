@@ -24,26 +24,44 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
 import android.graphics.Rect;
+import android.os.Build;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * A ImageRegionDecoder with {@link BitmapRegionDecoder}.
+ *
+ * BitmapRegionDecoder decodes one region at a time. A SkiaImageRegionDecoder
+ * created from a file path can keep a pool of them to decode regions in parallel.
  */
 public class SkiaImageRegionDecoder extends ImageRegionDecoder {
 
   private static final String LOG_TAG = "SkiaImageRegionDecoder";
 
-  private final BitmapRegionDecoder decoder;
+  // All BitmapRegionDecoders of the same image
+  private final BitmapRegionDecoder[] decoders;
+  // The ones not decoding
+  private final BlockingQueue<BitmapRegionDecoder> idleDecoders;
   private final int width;
   private final int height;
+  private volatile int stripHeight;
+  // The MCU size of baseline JPEG, 0 for others
+  private int mcuSize;
 
-  private SkiaImageRegionDecoder(BitmapRegionDecoder decoder) {
-    this.decoder = decoder;
-    this.width = decoder.getWidth();
-    this.height = decoder.getHeight();
+  private SkiaImageRegionDecoder(BitmapRegionDecoder[] decoders) {
+    this.decoders = decoders;
+    this.idleDecoders = new ArrayBlockingQueue<>(decoders.length);
+    for (BitmapRegionDecoder decoder : decoders) {
+      idleDecoders.add(decoder);
+    }
+    this.width = decoders[0].getWidth();
+    this.height = decoders[0].getHeight();
   }
 
   @Override
@@ -59,16 +77,133 @@ public class SkiaImageRegionDecoder extends ImageRegionDecoder {
   @Nullable
   @Override
   public Bitmap decode(Rect rect, int sample) {
-    BitmapFactory.Options options = new BitmapFactory.Options();
+    return decodeInto(rect, sample, null, null);
+  }
+
+  @Override
+  public int getCapabilities() {
+    // BitmapRegionDecoder locks in decodeRegion(), and rounds sample down to power of 2.
+    // requestCancelDecode() is a no-op since Android N.
+    int capabilities = CAPABILITY_REUSE_BITMAP;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      capabilities |= CAPABILITY_DECODE_ONTO;
+    }
+    if (decoders.length > 1) {
+      capabilities |= CAPABILITY_CONCURRENT_DECODE;
+    }
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+      capabilities |= CAPABILITY_CHEAP_CANCEL;
+    }
+    return capabilities;
+  }
+
+  @Override
+  public int getMaxConcurrency() {
+    return decoders.length;
+  }
+
+  @Nullable
+  @Override
+  public Bitmap decodeInto(Rect rect, int sample, @Nullable Bitmap reuse) {
+    return decodeInto(rect, sample, reuse, null);
+  }
+
+  @Nullable
+  @Override
+  public Bitmap decodeInto(Rect rect, int sample, @Nullable Bitmap reuse,
+      @Nullable CancellationToken token) {
+    if (token != null && token.isCancelled()) {
+      return null;
+    }
+
+    BitmapRegionDecoder decoder;
+    try {
+      decoder = idleDecoders.take();
+    } catch (InterruptedException e) {
+      Log.w(LOG_TAG, "Interrupted while waiting for a BitmapRegionDecoder", e);
+      return null;
+    }
+
+    final BitmapFactory.Options options = new BitmapFactory.Options();
     options.inSampleSize = sample;
+    // Only mutable bitmaps can be reused
+    options.inMutable = true;
+    // The size of the region is the same, so the size of the bitmap is the same
+    options.inBitmap = reuse;
+
+    // requestCancelDecode() is a no-op since Android N
+    if (token != null && Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+      token.setOnCancelListener(new Runnable() {
+        @SuppressWarnings("deprecation")
+        @Override
+        public void run() {
+          options.requestCancelDecode();
+        }
+      });
+    }
+
     try {
-      return decoder.decodeRegion(rect, options);
+      try {
+        return decoder.decodeRegion(rect, options);
+      } catch (IllegalStateException | IllegalArgumentException e) {
+        if (reuse == null) {
+          throw e;
+        }
+        // Can't reuse the bitmap, try again without it
+        Log.w(LOG_TAG, "Can't reuse bitmap for region " + rect + " at sample " + sample, e);
+        options.inBitmap = null;
+        return decoder.decodeRegion(rect, options);
+      }
     } catch (IllegalStateException | IllegalArgumentException e) {
       Log.e(LOG_TAG, "Can't decode region " + rect + " at sample " + sample, e);
       return null;
+    } finally {
+      if (token != null) {
+        token.setOnCancelListener(null);
+      }
+      idleDecoders.add(decoder);
     }
   }
 
+  @Override
+  public boolean decodeOnto(Rect rect, int sample, Bitmap dst,
+      @Nullable CancellationToken token) {
+    // BitmapRegionDecoder clips the region to a larger inBitmap since KitKat
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+      return false;
+    }
+    Bitmap bitmap = decodeInto(rect, sample, dst, token);
+    if (bitmap != null && bitmap != dst) {
+      // It's decoded without reusing dst
+      bitmap.recycle();
+      return false;
+    }
+    return bitmap != null;
+  }
+
+  /**
+   * Sets the height of strips in source pixels to decode regions progressively,
+   * {@code 0} to disable it. It's disabled by default.
+   *
+   * It's only worth for large JPEG images on slow devices. BitmapRegionDecoder
+   * still reads the rows above the strip, so decoding in strips costs a bit more.
+   *
+   * @see ImageRegionDecoder#decode(Rect, int, StripListener, CancellationToken)
+   */
+  public void setStripHeight(int stripHeight) {
+    this.stripHeight = Math.max(0, stripHeight);
+  }
+
+  @Override
+  public int getPreferredAlignment(int sample) {
+    return mcuSize != 0 ? mcuSize * sample : 1;
+  }
+
+  @Override
+  public int getStripHeight() {
+    return stripHeight;
+  }
+
   @Override
   public void recycle(Bitmap bitmap) {
     bitmap.recycle();
@@ -77,14 +212,35 @@ public class SkiaImageRegionDecoder extends ImageRegionDecoder {
   @Override
   public void recycle() {
     super.recycle();
-    decoder.recycle();
+    for (BitmapRegionDecoder decoder : decoders) {
+      decoder.recycle();
+    }
   }
 
   @Nullable
   public static SkiaImageRegionDecoder newInstance(InputStream is) {
+    return newInstance(is, null);
+  }
+
+  /**
+   * Creates a SkiaImageRegionDecoder. The preview is taken from the provider
+   * if it's available, otherwise it's decoded from the image.
+   */
+  @Nullable
+  public static SkiaImageRegionDecoder newInstance(InputStream is,
+      @Nullable PreviewProvider previewProvider) {
     BitmapRegionDecoder bitmapDecoder;
+    int mcuSize;
 
     try {
+      // Read the MCU size from the JPEG header, and reset to the start
+      if (!is.markSupported()) {
+        is = new BufferedInputStream(is);
+      }
+      is.mark(JpegHeader.MAX_HEADER_SIZE);
+      mcuSize = JpegHeader.readMcuSize(is, JpegHeader.MAX_HEADER_SIZE);
+      is.reset();
+
       bitmapDecoder = BitmapRegionDecoder.newInstance(is, false);
     } catch (IOException e) {
       Log.e(LOG_TAG, "Can't create BitmapRegionDecoder", e);
@@ -96,8 +252,79 @@ public class SkiaImageRegionDecoder extends ImageRegionDecoder {
       return null;
     }
 
-    SkiaImageRegionDecoder decoder = new SkiaImageRegionDecoder(bitmapDecoder);
-    decoder.generatePreview();
+    return newInstance(new BitmapRegionDecoder[] {bitmapDecoder}, mcuSize, previewProvider);
+  }
+
+  /**
+   * Creates a SkiaImageRegionDecoder from a SeekableSource, like an encrypted file.
+   * The source is read as a stream, so no decrypted copy of the whole file is
+   * made in Java heap, but BitmapRegionDecoder still keeps the bytes it reads
+   * in native memory. The source can be closed after it returns.
+   * The preview is taken from the provider if it's available.
+   */
+  @Nullable
+  public static SkiaImageRegionDecoder newInstance(SeekableSource source,
+      @Nullable PreviewProvider previewProvider) {
+    return newInstance(new SourceInputStream(source), previewProvider);
+  }
+
+  /**
+   * Creates a SkiaImageRegionDecoder for an image file with a pool of
+   * {@code poolSize} BitmapRegionDecoders, so that regions, including the bands
+   * of the preview, are decoded in parallel. Each BitmapRegionDecoder takes
+   * some memory, a pool size about the count of processors is enough.
+   * The preview is taken from the provider if it's available.
+   */
+  @Nullable
+  public static SkiaImageRegionDecoder newInstance(String path, int poolSize,
+      @Nullable PreviewProvider previewProvider) {
+    if (poolSize <= 0) {
+      throw new IllegalArgumentException("Invalid pool size: " + poolSize);
+    }
+
+    int mcuSize;
+    InputStream is = null;
+    try {
+      is = new BufferedInputStream(new FileInputStream(path));
+      mcuSize = JpegHeader.readMcuSize(is, JpegHeader.MAX_HEADER_SIZE);
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Can't read " + path, e);
+      return null;
+    } finally {
+      Utils.closeQuietly(is);
+    }
+
+    BitmapRegionDecoder[] bitmapDecoders = new BitmapRegionDecoder[poolSize];
+    for (int i = 0; i < poolSize; i++) {
+      BitmapRegionDecoder bitmapDecoder;
+      try {
+        bitmapDecoder = BitmapRegionDecoder.newInstance(path, false);
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "Can't create BitmapRegionDecoder", e);
+        bitmapDecoder = null;
+      }
+      if (bitmapDecoder == null) {
+        if (i == 0) {
+          Log.e(LOG_TAG, "Can't create BitmapRegionDecoder");
+          return null;
+        }
+        // Work with fewer BitmapRegionDecoders
+        BitmapRegionDecoder[] created = new BitmapRegionDecoder[i];
+        System.arraycopy(bitmapDecoders, 0, created, 0, i);
+        bitmapDecoders = created;
+        break;
+      }
+      bitmapDecoders[i] = bitmapDecoder;
+    }
+
+    return newInstance(bitmapDecoders, mcuSize, previewProvider);
+  }
+
+  private static SkiaImageRegionDecoder newInstance(BitmapRegionDecoder[] bitmapDecoders,
+      int mcuSize, PreviewProvider previewProvider) {
+    SkiaImageRegionDecoder decoder = new SkiaImageRegionDecoder(bitmapDecoders);
+    decoder.mcuSize = mcuSize;
+    decoder.generatePreview(previewProvider);
 
     if (decoder.getPreview() == null) {
       Log.e(LOG_TAG, "Can't create generate preview from SkiaImageRegionDecoder");
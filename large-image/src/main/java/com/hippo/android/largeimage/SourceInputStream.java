@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.support.annotation.NonNull;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream reading a SeekableSource from the start, to feed decoders
+ * which only take streams, like {@link android.graphics.BitmapRegionDecoder}.
+ *
+ * Skipping doesn't read the skipped bytes, and mark and reset are free.
+ * Closing it doesn't close the source.
+ */
+public class SourceInputStream extends InputStream {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final SeekableSource source;
+  private long position;
+  private long mark;
+
+  // Single-byte reads are served from it, like reading headers
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private long bufferPosition;
+  private int bufferLength;
+
+  public SourceInputStream(@NonNull SeekableSource source) {
+    this.source = source;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (position < bufferPosition || position >= bufferPosition + bufferLength) {
+      bufferPosition = position;
+      bufferLength = Math.max(0, source.read(position, buffer, 0, BUFFER_SIZE));
+      if (bufferLength == 0) {
+        return -1;
+      }
+    }
+    return buffer[(int) (position++ - bufferPosition)] & 0xFF;
+  }
+
+  @Override
+  public int read(@NonNull byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+
+    int read;
+    if (position >= bufferPosition && position < bufferPosition + bufferLength) {
+      // Take the rest of the buffer first
+      read = Math.min(len, (int) (bufferPosition + bufferLength - position));
+      System.arraycopy(buffer, (int) (position - bufferPosition), b, off, read);
+    } else {
+      read = source.read(position, b, off, len);
+    }
+    if (read > 0) {
+      position += read;
+    }
+    return read;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = Math.max(0, Math.min(n, source.length() - position));
+    position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int) Math.min(Integer.MAX_VALUE, Math.max(0, source.length() - position));
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit) {
+    mark = position;
+  }
+
+  @Override
+  public synchronized void reset() {
+    position = mark;
+  }
+}
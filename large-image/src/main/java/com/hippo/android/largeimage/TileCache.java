@@ -0,0 +1,371 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TileCache is the second-tier cache of {@link TiledDrawable}.
+ *
+ * Pixels of tiles evicted from TiledDrawable are stored in direct
+ * {@link ByteBuffer}s, out of java heap. Restoring a tile from it
+ * is a memory copy instead of a region decoding.
+ * Pixels could be compressed with a fast LZ codec to store more tiles
+ * in the same size, at the cost of a slower restoring.
+ *
+ * A TileCache can be shared by several TiledDrawables.
+ *
+ * @see TiledDrawable#setTileCache(TileCache)
+ */
+public class TileCache implements MemoryGovernor.Trimmable {
+
+  private static final String LOG_TAG = "TileCache";
+
+  private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+    @Override
+    protected Buffers initialValue() {
+      return new Buffers();
+    }
+  };
+
+  private final int maxSize;
+  private final boolean compress;
+
+  private final LinkedHashMap<Key, Entry> map = new LinkedHashMap<>(0, 0.75f, true);
+  private int size;
+
+  private int putCount;
+  private int hitCount;
+  private int missCount;
+  private int evictionCount;
+
+  /**
+   * Create a TileCache.
+   *
+   * @param maxSize the max bytes of the stored pixels
+   * @param compress whether to compress pixels
+   */
+  public TileCache(int maxSize, boolean compress) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    this.maxSize = maxSize;
+    this.compress = compress;
+    MemoryGovernor.register(this);
+  }
+
+  /**
+   * Stores pixels of the tile. It's a no-op if the tile is already stored.
+   */
+  @WorkerThread
+  void put(@NonNull Object owner, @NonNull Rect rect, int sample, @NonNull Bitmap bitmap) {
+    Bitmap.Config config = bitmap.getConfig();
+    if (config == null) {
+      return;
+    }
+
+    Key key = new Key(owner, rect, sample);
+    synchronized (this) {
+      if (map.get(key) != null) {
+        return;
+      }
+    }
+
+    int rawSize = bitmap.getRowBytes() * bitmap.getHeight();
+    ByteBuffer buffer;
+    boolean compressed = false;
+
+    try {
+      if (compress) {
+        Buffers buffers = BUFFERS.get();
+        byte[] raw = buffers.raw(rawSize);
+        bitmap.copyPixelsToBuffer(ByteBuffer.wrap(raw, 0, rawSize));
+        byte[] packed = buffers.packed(LzCodec.maxCompressedLength(rawSize));
+        int packedSize = LzCodec.compress(raw, rawSize, packed, buffers.hashTable);
+
+        if (packedSize < rawSize) {
+          buffer = ByteBuffer.allocateDirect(packedSize);
+          buffer.put(packed, 0, packedSize);
+          compressed = true;
+        } else {
+          buffer = ByteBuffer.allocateDirect(rawSize);
+          buffer.put(raw, 0, rawSize);
+        }
+      } else {
+        buffer = ByteBuffer.allocateDirect(rawSize);
+        bitmap.copyPixelsToBuffer(buffer);
+      }
+    } catch (OutOfMemoryError e) {
+      Log.e(LOG_TAG, "Can't store tile " + rect + " at sample " + sample, e);
+      return;
+    }
+    buffer.rewind();
+
+    Entry entry = new Entry(buffer, bitmap.getWidth(), bitmap.getHeight(), config, rawSize, compressed);
+    if (entry.size > maxSize) {
+      return;
+    }
+
+    synchronized (this) {
+      putCount++;
+      Entry previous = map.put(key, entry);
+      size += entry.size;
+      if (previous != null) {
+        size -= previous.size;
+      }
+      trimToSize(maxSize);
+    }
+  }
+
+  /**
+   * Restores the bitmap of the tile. Returns {@code null} if miss.
+   */
+  @Nullable
+  @WorkerThread
+  Bitmap get(@NonNull Object owner, @NonNull Rect rect, int sample) {
+    Entry entry;
+    synchronized (this) {
+      entry = map.get(new Key(owner, rect, sample));
+      if (entry == null) {
+        missCount++;
+        return null;
+      }
+      hitCount++;
+    }
+
+    Bitmap bitmap;
+    try {
+      bitmap = Bitmap.createBitmap(entry.width, entry.height, entry.config);
+    } catch (OutOfMemoryError e) {
+      Log.e(LOG_TAG, "Can't restore tile " + rect + " at sample " + sample, e);
+      return null;
+    }
+
+    // The buffer might be read by other threads, duplicate it to get a standalone position
+    ByteBuffer buffer = entry.buffer.duplicate();
+    if (entry.compressed) {
+      Buffers buffers = BUFFERS.get();
+      byte[] packed = buffers.packed(entry.size);
+      buffer.get(packed, 0, entry.size);
+      byte[] raw = buffers.raw(entry.rawSize);
+      LzCodec.decompress(packed, entry.size, raw);
+      bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(raw, 0, entry.rawSize));
+    } else {
+      bitmap.copyPixelsFromBuffer(buffer);
+    }
+
+    return bitmap;
+  }
+
+  /**
+   * Removes all tiles of the owner.
+   */
+  synchronized void evictAll(@NonNull Object owner) {
+    Iterator<Map.Entry<Key, Entry>> iterator = map.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Key, Entry> e = iterator.next();
+      if (e.getKey().owner == owner) {
+        size -= e.getValue().size;
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Removes the eldest tiles until the total size is not bigger than {@code maxSize}.
+   */
+  public synchronized void trimToSize(int maxSize) {
+    Iterator<Entry> iterator = map.values().iterator();
+    while (size > maxSize && iterator.hasNext()) {
+      Entry entry = iterator.next();
+      size -= entry.size;
+      iterator.remove();
+      evictionCount++;
+    }
+  }
+
+  /**
+   * Removes all tiles.
+   */
+  public void evictAll() {
+    trimToSize(-1);
+  }
+
+  /**
+   * Trims to half of max size for moderate memory pressure,
+   * removes all tiles for critical memory pressure.
+   *
+   * @see LargeImage#trimMemory(int)
+   */
+  @Override
+  public void trimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      evictAll();
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+      trimToSize(maxSize / 2);
+    }
+  }
+
+  /**
+   * Returns the bytes of the stored pixels.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Returns the max bytes of the stored pixels.
+   */
+  public int maxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Returns the number of times tiles are stored.
+   */
+  public synchronized int putCount() {
+    return putCount;
+  }
+
+  /**
+   * Returns the number of times tiles are restored.
+   */
+  public synchronized int hitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the number of times tiles are requested but not stored.
+   */
+  public synchronized int missCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the number of tiles that have been evicted.
+   */
+  public synchronized int evictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * Returns the hit rate in {@code [0.0f, 1.0f]}.
+   */
+  public synchronized float hitRate() {
+    int accesses = hitCount + missCount;
+    return accesses != 0 ? (float) hitCount / (float) accesses : 0.0f;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "TileCache[size=" + size + ",maxSize=" + maxSize + ",hits=" + hitCount
+        + ",misses=" + missCount + ",hitRate=" + (int) (hitRate() * 100) + "%]";
+  }
+
+  private static class Key {
+    private final Object owner;
+    private final int left;
+    private final int top;
+    private final int right;
+    private final int bottom;
+    private final int sample;
+
+    private Key(Object owner, Rect rect, int sample) {
+      this.owner = owner;
+      this.left = rect.left;
+      this.top = rect.top;
+      this.right = rect.right;
+      this.bottom = rect.bottom;
+      this.sample = sample;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return owner == key.owner && left == key.left && top == key.top
+          && right == key.right && bottom == key.bottom && sample == key.sample;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = System.identityHashCode(owner);
+      result = 31 * result + left;
+      result = 31 * result + top;
+      result = 31 * result + right;
+      result = 31 * result + bottom;
+      result = 31 * result + sample;
+      return result;
+    }
+  }
+
+  private static class Entry {
+    private final ByteBuffer buffer;
+    private final int width;
+    private final int height;
+    private final Bitmap.Config config;
+    private final int rawSize;
+    private final boolean compressed;
+    private final int size;
+
+    private Entry(ByteBuffer buffer, int width, int height, Bitmap.Config config,
+        int rawSize, boolean compressed) {
+      this.buffer = buffer;
+      this.width = width;
+      this.height = height;
+      this.config = config;
+      this.rawSize = rawSize;
+      this.compressed = compressed;
+      this.size = buffer.capacity();
+    }
+  }
+
+  /*
+   * Per-thread scratch buffers for compressing.
+   */
+  private static class Buffers {
+    private byte[] raw = new byte[0];
+    private byte[] packed = new byte[0];
+    private final int[] hashTable = new int[LzCodec.HASH_TABLE_SIZE];
+
+    private byte[] raw(int size) {
+      if (raw.length < size) {
+        raw = new byte[size];
+      }
+      return raw;
+    }
+
+    private byte[] packed(int size) {
+      if (packed.length < size) {
+        packed = new byte[size];
+      }
+      return packed;
+    }
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+/**
+ * TileGrid tracks the visible tiles of a tile grid incrementally.
+ *
+ * The visible tiles are kept as a range of columns and rows. When the viewport
+ * moves, only the edge columns and rows entering or leaving the range are
+ * reported, so the cost is proportional to the changed tiles instead of
+ * all tiles. The range is found by binary search on tile edges.
+ */
+class TileGrid {
+
+  interface Callback {
+
+    /**
+     * Called when a tile enters the visible range.
+     */
+    void onTileEnter(int column, int row);
+
+    /**
+     * Called when a tile leaves the visible range.
+     */
+    void onTileLeave(int column, int row);
+  }
+
+  /**
+   * A range of columns and rows, {@code [left, right) x [top, bottom)}.
+   * It's empty if {@code left >= right || top >= bottom}.
+   */
+  static final class Range {
+    int left;
+    int top;
+    int right;
+    int bottom;
+
+    boolean isEmpty() {
+      return left >= right || top >= bottom;
+    }
+
+    boolean contains(int column, int row) {
+      return column >= left && column < right && row >= top && row < bottom;
+    }
+  }
+
+  private final int[] xEdges;
+  private final int[] yEdges;
+
+  /**
+   * Create a TileGrid. The edges must be ascending.
+   * The tile {@code (column, row)} is {@code [xEdges[column], xEdges[column + 1]) x
+   * [yEdges[row], yEdges[row + 1])}.
+   */
+  TileGrid(int[] xEdges, int[] yEdges) {
+    if (xEdges.length < 2 || yEdges.length < 2) {
+      throw new IllegalArgumentException("No tile");
+    }
+    this.xEdges = xEdges;
+    this.yEdges = yEdges;
+  }
+
+  int getColumnCount() {
+    return xEdges.length - 1;
+  }
+
+  int getRowCount() {
+    return yEdges.length - 1;
+  }
+
+  /*
+   * Returns the first tile index whose end edge is bigger than start.
+   */
+  private static int first(int[] edges, float start) {
+    int low = 1;
+    int high = edges.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (edges[mid] > start) {
+        high = mid - 1;
+      } else {
+        low = mid + 1;
+      }
+    }
+    return low - 1;
+  }
+
+  /*
+   * Returns the tile index after the last one whose start edge is smaller than end.
+   */
+  private static int last(int[] edges, float end) {
+    int low = 0;
+    int high = edges.length - 2;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (edges[mid] < end) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Sets the range to the tiles intersecting the rect, without reporting.
+   */
+  void find(Range range, float left, float top, float right, float bottom) {
+    range.left = first(xEdges, left);
+    range.top = first(yEdges, top);
+    range.right = last(xEdges, right);
+    range.bottom = last(yEdges, bottom);
+    if (left >= right || top >= bottom || range.isEmpty()) {
+      range.left = range.top = range.right = range.bottom = 0;
+    }
+  }
+
+  /**
+   * Updates the range to the tiles intersecting the rect. The tiles
+   * leaving the range are reported before the tiles entering it.
+   */
+  void update(Range range, float left, float top, float right, float bottom, Callback callback) {
+    int newLeft = first(xEdges, left);
+    int newTop = first(yEdges, top);
+    int newRight = last(xEdges, right);
+    int newBottom = last(yEdges, bottom);
+    if (left >= right || top >= bottom || newLeft >= newRight || newTop >= newBottom) {
+      newLeft = newTop = newRight = newBottom = 0;
+    }
+
+    int oldLeft = range.left;
+    int oldTop = range.top;
+    int oldRight = range.right;
+    int oldBottom = range.bottom;
+    if (oldLeft == newLeft && oldTop == newTop && oldRight == newRight && oldBottom == newBottom) {
+      return;
+    }
+
+    range.left = newLeft;
+    range.top = newTop;
+    range.right = newRight;
+    range.bottom = newBottom;
+
+    diff(oldLeft, oldTop, oldRight, oldBottom, newLeft, newTop, newRight, newBottom,
+        callback, false);
+    diff(newLeft, newTop, newRight, newBottom, oldLeft, oldTop, oldRight, oldBottom,
+        callback, true);
+  }
+
+  /*
+   * Reports the tiles in the first range but not in the second range.
+   */
+  private static void diff(int left, int top, int right, int bottom,
+      int otherLeft, int otherTop, int otherRight, int otherBottom,
+      Callback callback, boolean enter) {
+    boolean overlap = left < otherRight && otherLeft < right
+        && top < otherBottom && otherTop < bottom;
+    for (int column = left; column < right; column++) {
+      if (!overlap || column < otherLeft || column >= otherRight) {
+        report(column, top, bottom, callback, enter);
+      } else {
+        // Only the rows out of the other range
+        report(column, top, Math.min(bottom, otherTop), callback, enter);
+        report(column, Math.max(top, otherBottom), bottom, callback, enter);
+      }
+    }
+  }
+
+  private static void report(int column, int top, int bottom, Callback callback, boolean enter) {
+    for (int row = top; row < bottom; row++) {
+      if (enter) {
+        callback.onTileEnter(column, row);
+      } else {
+        callback.onTileLeave(column, row);
+      }
+    }
+  }
+
+  /**
+   * Moves the visible tiles from this grid to the other grid, like another
+   * sample level. The tiles of the other grid entering are reported before
+   * the tiles of this grid leaving, so that leaving tiles are still visible
+   * when entering tiles are requested. {@code range} is emptied, and
+   * {@code otherRange} must be empty before.
+   */
+  void switchTo(Range range, Callback callback, TileGrid other, Range otherRange,
+      float left, float top, float right, float bottom, Callback otherCallback) {
+    other.update(otherRange, left, top, right, bottom, otherCallback);
+    clear(range, callback);
+  }
+
+  /**
+   * Empties the range. All tiles in it are reported leaving.
+   */
+  void clear(Range range, Callback callback) {
+    int left = range.left;
+    int top = range.top;
+    int right = range.right;
+    int bottom = range.bottom;
+    range.left = range.top = range.right = range.bottom = 0;
+    if (left < right && top < bottom) {
+      for (int column = left; column < right; column++) {
+        report(column, top, bottom, callback, false);
+      }
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TileSlotPool keeps a pool of reusable tile bitmaps, called slots.
+ * Each slot is a mutable bitmap of the slot size, allocated on demand
+ * up to the max count of slots.
+ *
+ * Tiles at image edges and at different sample levels have different sizes.
+ * Allocating a bitmap for each of them fragments memory in long sessions.
+ * With TileSlotPool, tiles are decoded straight into the top-left corner
+ * of free slots, so the bitmaps are allocated once and reused.
+ *
+ * A slot is only written while it's obtained and not drawn, and
+ * it's handed to the main thread after the decoding, so no bitmap is shared
+ * by threads at the same time.
+ *
+ * A TileSlotPool can be shared by several TiledDrawables.
+ * If all slots are in use, or the decoder doesn't have
+ * {@link ImageRegionDecoder#CAPABILITY_DECODE_ONTO}, TiledDrawable falls back
+ * to standalone bitmaps.
+ *
+ * @see TiledDrawable#setTileStorage(TileSlotPool)
+ */
+public class TileSlotPool {
+
+  private static final String LOG_TAG = "TileSlotPool";
+
+  private final int slotSize;
+  private final int maxSlots;
+  private final Bitmap.Config config;
+
+  private final List<Bitmap> bitmaps = new ArrayList<>();
+  private final ArrayDeque<Slot> freeSlots = new ArrayDeque<>();
+  private boolean recycled;
+
+  /**
+   * Create a TileSlotPool.
+   *
+   * @param slotSize the width and height of each slot, it must not be smaller than tile size.
+   *                 It's capped at the max texture size, so that slots can be drawn
+   * @param maxSlots the max count of slots
+   * @param config the config of slot bitmaps
+   */
+  public TileSlotPool(int slotSize, int maxSlots, Bitmap.Config config) {
+    if (slotSize <= 0 || maxSlots <= 0) {
+      throw new IllegalArgumentException("Invalid slots: slotSize=" + slotSize
+          + ", maxSlots=" + maxSlots);
+    }
+    this.slotSize = Math.min(slotSize, LargeImage.getMaxTextureSize());
+    this.maxSlots = maxSlots;
+    this.config = config;
+  }
+
+  /**
+   * Returns the width and height of each slot.
+   */
+  public int getSlotSize() {
+    return slotSize;
+  }
+
+  /**
+   * Obtains a free slot. Returns {@code null} if all slots are in use.
+   * The bitmap of it can be written until it's released.
+   */
+  @Nullable
+  synchronized Slot obtain() {
+    if (recycled) {
+      return null;
+    }
+
+    if (freeSlots.isEmpty() && bitmaps.size() < maxSlots) {
+      Bitmap bitmap;
+      try {
+        bitmap = Bitmap.createBitmap(slotSize, slotSize, config);
+      } catch (OutOfMemoryError e) {
+        Log.e(LOG_TAG, "Can't allocate slot", e);
+        return null;
+      }
+      bitmaps.add(bitmap);
+      return new Slot(bitmap);
+    }
+
+    return freeSlots.poll();
+  }
+
+  /**
+   * Puts back the slot obtained from {@link #obtain()}.
+   * It must not be drawn any more.
+   */
+  synchronized void release(Slot slot) {
+    if (!recycled) {
+      freeSlots.add(slot);
+    }
+  }
+
+  /**
+   * Recycles all slots. The TiledDrawables which use it must be recycled before.
+   */
+  @MainThread
+  public synchronized void recycle() {
+    if (recycled) {
+      return;
+    }
+    recycled = true;
+
+    for (Bitmap bitmap : bitmaps) {
+      bitmap.recycle();
+    }
+    bitmaps.clear();
+    freeSlots.clear();
+  }
+
+  static class Slot {
+    final Bitmap bitmap;
+    // The region filled with pixels, at the top-left corner of the bitmap
+    final Rect rect = new Rect();
+
+    private Slot(Bitmap bitmap) {
+      this.bitmap = bitmap;
+    }
+  }
+}
@@ -20,22 +20,28 @@ package com.hippo.android.largeimage;
  * Created by Hippo on 2018/1/24.
  */
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.support.annotation.MainThread;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
 import android.util.Log;
 import android.util.SparseArray;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.Executor;
 
@@ -43,7 +49,8 @@ import java.util.concurrent.Executor;
  * TiledDrawable is designed for displaying huge images without OutOfMemoryErrors.
  * It can only be used with TransformableDrawable.
  */
-public class TiledDrawable extends Drawable implements PreciseDrawable {
+public class TiledDrawable extends Drawable
+    implements PreciseDrawable, AnimationAwareDrawable, MemoryGovernor.Trimmable {
 
   private static final String LOG_TAG = "TiledDrawable";
 
@@ -52,16 +59,66 @@ public class TiledDrawable extends Drawable implements PreciseDrawable {
   private final boolean sharedDecoder;
 
   private final SparseArray<List<Tile>> tilesMap;
+  private final SparseArray<TileGrid> gridsMap = new SparseArray<>();
   private final Matrix matrix;
 
   private final int width;
   private final int height;
-  private final Bitmap preview;
-  private final int previewSample;
+  // The sample of the preview before downgraded, the biggest sample level
+  private final int maxSample;
+  // The preview of the decoder, it might be replaced in trimMemory()
+  private Bitmap preview;
+  private int previewSample;
+  @Nullable
+  private RestorePreviewTask restoreTask;
+  @Nullable
+  private DowngradePreviewTask downgradeTask;
 
+  @Nullable
+  private TileCache tileCache;
+  @Nullable
+  private TileSlotPool tileStorage;
+  private Executor renderExecutor = AsyncTask.SERIAL_EXECUTOR;
+
+  private final DecodePolicy decodePolicy;
+  // The count of running tasks using the decoder
+  private int decodingCount;
+  // Tasks using the decoder waiting for running, like DecodeTileTasks and RenderTasks,
+  // the count of running ones is limited by the policy
+  private final ArrayDeque<AsyncTask<Void, ?, ?>> pendingTasks = new ArrayDeque<>();
+  private final ReusePool reusePool;
+
+  private final QualityGovernor qualityGovernor = new QualityGovernor();
+  private boolean adaptiveQuality;
+  // Paused by pause(), it's also paused if it's invisible
+  private boolean paused;
+  private int decodeCount;
+  private int restoreCount;
+  private int deriveCount;
+
+  // The sample level for the scale of the last frame of any view
+  private int requestedSample;
+  // The sample level of the last frame of any view
   private int currentSample;
-  private boolean recycled;
+  // The views drawing this TiledDrawable, it's itself unless split
+  private final List<Viewer> viewers = new ArrayList<>();
+  private final Viewer selfViewer;
+  // The max size of decoded tile bitmaps
+  private int tileSize;
+  // The anchor of the tile grids, tile edges are aligned to it
+  private int gridX;
+  private int gridY;
+  // The tile map is built when tiles are needed
+  private boolean hasTileMap;
+  // No tile until it's drawn bigger than the preview, the preview is downgraded to fit
+  private boolean gridMode;
+  // The preview sample this TiledDrawable needs, dropped if it's paused or recycled
+  private final PreviewDemands.Claim previewClaim;
+  // It's read in StoreTileTask
+  private volatile boolean recycled;
 
+  private final TileGrid.Range range1 = new TileGrid.Range();
+  private final Rect rect1 = new Rect();
   private final RectF rectF1 = new RectF();
   private final RectF rectF2 = new RectF();
   private final List<Tile> list1 = new ArrayList<>();
@@ -71,8 +128,10 @@ public class TiledDrawable extends Drawable implements PreciseDrawable {
    *
    * @param decoder the decoder to decode the image
    * @param executor The executor to execute decode tasks.
-   *                 Usually, ImageRegionDecoder can't be used parallel.
-   *                 One serial executor for one TiledDrawable should be enough.
+   *                 The count of running decode tasks is limited according to
+   *                 {@link ImageRegionDecoder#getCapabilities()}, so it can be shared.
+   *                 A {@link DecodeScheduler.Lane} shares threads with other
+   *                 TiledDrawables fairly.
    * @param sharedDecoder If it's true, the ImageRegionDecoder will not be recycled
    *                      in {@link #recycle()}, and the ImageRegionDecoder must not be
    *                      recycled before {@link #recycle()} called. If it's false,
@@ -84,6 +143,20 @@ public class TiledDrawable extends Drawable implements PreciseDrawable {
       @NonNull ImageRegionDecoder decoder,
       @NonNull Executor executor,
       boolean sharedDecoder
+  ) {
+    this(decoder, executor, sharedDecoder, true);
+  }
+
+  /*
+   * If publish is false, this TiledDrawable isn't trimmed by MemoryGovernor
+   * until publish() is called, so that it can be created and preloaded
+   * in a worker thread.
+   */
+  TiledDrawable(
+      @NonNull ImageRegionDecoder decoder,
+      @NonNull Executor executor,
+      boolean sharedDecoder,
+      boolean publish
   ) {
     this.decoder = decoder;
     this.executor = executor;
@@ -94,44 +167,554 @@ public class TiledDrawable extends Drawable implements PreciseDrawable {
 
     width = decoder.getWidth();
     height = decoder.getHeight();
-    preview = decoder.getPreview();
-    previewSample = decoder.getPreviewSample();
+    maxSample = decoder.getGeneratedPreviewSample();
+    previewClaim = decoder.newPreviewClaim();
+    syncPreview();
 
-    initTileMap(LargeImage.getMaxTextureSize());
+    decodePolicy = new DecodePolicy(decoder, Runtime.getRuntime().availableProcessors());
+    reusePool = new ReusePool(decoder, decodePolicy.getReusePoolSize());
+
+    selfViewer = new Viewer(this);
+    selfViewer.visible = isVisible();
+    viewers.add(selfViewer);
+
+    tileSize = LargeImage.getTileSize();
+    if (publish) {
+      MemoryGovernor.register(this);
+    }
   }
 
-  private void initTileMap(int maxTileSize) {
-    // The other sample levels except preview sample
-    int sample = decoder.getPreviewSample();
-    for (;;) {
-      if (sample == 1) {
-        break;
-      }
+  /*
+   * Hands this TiledDrawable created without publishing to the main thread.
+   */
+  @MainThread
+  void publish() {
+    if (!recycled) {
+      MemoryGovernor.register(this);
+    }
+  }
+
+  /*
+   * Builds the tile map if it's not built.
+   */
+  private void ensureTileMap() {
+    if (!hasTileMap) {
+      hasTileMap = true;
+      initTileMap(tileSize);
+    }
+  }
 
-      // Update sample
-      sample = sample / 2;
+  private void initTileMap(int maxTileSize) {
+    // All sample levels, the max sample level is used if the preview is downgraded
+    for (int sample = maxSample; sample >= 1; sample /= 2) {
       int maxTileMappingSize = maxTileSize * sample;
 
-      // Calculate tile count among x and y axis
-      int xTiles = Utils.ceilDiv(width, maxTileMappingSize);
-      int yTiles = Utils.ceilDiv(height, maxTileMappingSize);
+      // Snap tile edges to the alignment of the decoder, like JPEG MCUs,
+      // so that no block is decoded for two tiles
+      int alignment = Math.max(1, decoder.getPreferredAlignment(sample));
+      maxTileMappingSize = Math.max(alignment, maxTileMappingSize / alignment * alignment);
 
-      List<Tile> tiles = new ArrayList<>(xTiles * yTiles);
-      for (int x = 0; x < xTiles; x++) {
-        for (int y = 0; y < yTiles; y++) {
+      // Tile edges among x and y axis, the seam of split views is kept
+      int[] xEdges = getTileEdges(width, maxTileMappingSize, gridX, alignment);
+      int[] yEdges = getTileEdges(height, maxTileMappingSize, gridY, alignment);
+
+      List<Tile> tiles = new ArrayList<>((xEdges.length - 1) * (yEdges.length - 1));
+      for (int x = 0; x < xEdges.length - 1; x++) {
+        for (int y = 0; y < yEdges.length - 1; y++) {
           Tile tile = new Tile();
           tile.drawable = this;
-          tile.rect = new Rect(
-              x * maxTileMappingSize,
-              y * maxTileMappingSize,
-              x == xTiles - 1 ? width : (x + 1) * maxTileMappingSize,
-              y == yTiles - 1 ? height : (y + 1) * maxTileMappingSize
-          );
+          tile.rect = new Rect(xEdges[x], yEdges[y], xEdges[x + 1], yEdges[y + 1]);
           tiles.add(tile);
         }
       }
       tilesMap.put(sample, tiles);
+      gridsMap.put(sample, new TileGrid(xEdges, yEdges));
+    }
+  }
+
+  /*
+   * Returns the edges of tiles in [0, length], one of them is the anchor.
+   */
+  static int[] getTileEdges(int length, int tileSize, int anchor) {
+    int offset = anchor % tileSize;
+    int count = Utils.ceilDiv(length - offset, tileSize) + (offset != 0 ? 1 : 0);
+    int[] edges = new int[count + 1];
+    for (int i = 1; i < count; i++) {
+      edges[i] = offset != 0 ? offset + (i - 1) * tileSize : i * tileSize;
+    }
+    edges[count] = length;
+    return edges;
+  }
+
+  /*
+   * Returns the edges of tiles in [0, length], one of them is the anchor,
+   * and the others are multiples of the alignment. The tile size must be
+   * a multiple of the alignment. The two tiles beside an unaligned anchor
+   * are smaller, only the block at the anchor is decoded for both of them.
+   */
+  static int[] getTileEdges(int length, int tileSize, int anchor, int alignment) {
+    if (anchor % alignment == 0) {
+      return getTileEdges(length, tileSize, anchor);
+    }
+
+    int floor = anchor / alignment * alignment;
+    // The left edge of the tile ending at the anchor, and the right edge
+    // of the tile starting at the anchor, both aligned and within tileSize
+    int left = floor + alignment - tileSize;
+    int right = floor + tileSize;
+    int[] leftEdges = getTileEdges(anchor, tileSize, Math.max(0, left));
+    int[] rightEdges = getTileEdges(length - anchor, tileSize,
+        right < length ? right - anchor : 0);
+
+    int[] edges = new int[leftEdges.length + rightEdges.length - 1];
+    System.arraycopy(leftEdges, 0, edges, 0, leftEdges.length);
+    for (int i = 1; i < rightEdges.length; i++) {
+      edges[leftEdges.length - 1 + i] = anchor + rightEdges[i];
+    }
+    return edges;
+  }
+
+  /**
+   * Splits this TiledDrawable into several views, each shows a region of the image,
+   * like the two pages of a double-page spread. The views share the decoder,
+   * the preview and the tiles of this TiledDrawable. Each of them can be
+   * wrapped in a TransformableDrawable and shown in its own View.
+   *
+   * Tile grids are aligned to the first inner edge of the regions,
+   * so tiles along the seam are decoded once for both sides.
+   * Tiles are released when all views are invisible.
+   * This TiledDrawable should not be drawn directly after it's split.
+   *
+   * @param clips the regions in percent, {@code [0.0f, 1.0f]},
+   *              see {@link ClipDrawable#clipPercent(RectF)}
+   */
+  @MainThread
+  @NonNull
+  public ClipPreciseDrawable[] split(@NonNull RectF... clips) {
+    if (recycled) {
+      throw new IllegalStateException("The TiledDrawable is recycled");
+    }
+    if (!viewers.contains(selfViewer)) {
+      throw new IllegalStateException("The TiledDrawable is already split");
+    }
+
+    // Align tile grids to the seam, the same as ClipDrawable rounds the clip
+    int x = 0;
+    int y = 0;
+    for (RectF clip : clips) {
+      x = x != 0 ? x : getInnerEdge((int) (clip.left * width), (int) (clip.right * width), width);
+      y = y != 0 ? y : getInnerEdge((int) (clip.top * height), (int) (clip.bottom * height), height);
+    }
+    setGrid(x, y);
+
+    selfViewer.clearGrid();
+    viewers.remove(selfViewer);
+
+    ClipPreciseDrawable[] result = new ClipPreciseDrawable[clips.length];
+    for (int i = 0; i < clips.length; i++) {
+      SubDrawable sub = new SubDrawable(this);
+      viewers.add(sub.viewer);
+      result[i] = new ClipPreciseDrawable();
+      result[i].setDrawable(sub);
+      result[i].clipPercent(clips[i]);
+    }
+    return result;
+  }
+
+  private static int getInnerEdge(int start, int end, int length) {
+    if (start > 0 && start < length) {
+      return start;
+    } else if (end > 0 && end < length) {
+      return end;
+    } else {
+      return 0;
+    }
+  }
+
+  /*
+   * Rebuilds tile grids aligned to (x, y). Tiles are dropped.
+   */
+  private void setGrid(int x, int y) {
+    if (gridX == x && gridY == y) {
+      return;
+    }
+    gridX = x;
+    gridY = y;
+    rebuildTileMap();
+  }
+
+  /*
+   * Drops all tiles and rebuilds the tile map with the current grid and tile size.
+   */
+  private void rebuildTileMap() {
+    for (int i = 0, n = viewers.size(); i < n; i++) {
+      viewers.get(i).clearGrid();
+    }
+    for (int i = 0, len = tilesMap.size(); i < len; i++) {
+      List<Tile> list = tilesMap.valueAt(i);
+      for (int j = 0, n = list.size(); j < n; j++) {
+        Tile tile = list.get(j);
+        if (tile.pins == 0) {
+          dropTile(tile);
+        } else {
+          cancelDecoding(tile, false);
+        }
+        // RenderTask releases pinned tiles which are out of the grids
+        tile.drawable = null;
+      }
+    }
+    tilesMap.clear();
+    gridsMap.clear();
+    hasTileMap = false;
+  }
+
+  private void invalidateViews() {
+    for (int i = 0, n = viewers.size(); i < n; i++) {
+      viewers.get(i).drawable.invalidateSelf();
+    }
+  }
+
+  /*
+   * The preview might be downgraded by other TiledDrawables sharing the decoder.
+   */
+  private void syncPreview() {
+    preview = decoder.getPreview();
+    previewSample = decoder.getPreviewSample();
+  }
+
+  /*
+   * Decodes the tiles to show the whole image in a viewWidth x viewHeight view,
+   * so that the first frame is sharp. Returns the bytes of the decoded tiles.
+   *
+   * It must be called before this TiledDrawable is published to other threads,
+   * see publish().
+   */
+  @WorkerThread
+  int preloadTiles(int viewWidth, int viewHeight) {
+    float scale = Math.min((float) viewWidth / (float) width, (float) viewHeight / (float) height);
+    int sample = Utils.prevPow2(Math.max(1, (int) (1.0f / scale)));
+    if (sample >= previewSample) {
+      return 0;
+    }
+    ensureTileMap();
+    List<Tile> tiles = tilesMap.get(sample);
+    if (tiles == null) {
+      return 0;
+    }
+
+    int size = 0;
+    for (Tile tile : tiles) {
+      Bitmap bitmap = decoder.decode(tile.rect, sample);
+      if (bitmap != null) {
+        tile.bitmap = bitmap;
+        size += bitmap.getRowBytes() * bitmap.getHeight();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Sets the second-tier cache for the tiles. Tiles evicted from this TiledDrawable
+   * are stored in it, and they are restored from it before decoding.
+   * Set {@code null} to disable it.
+   */
+  @MainThread
+  public void setTileCache(@Nullable TileCache tileCache) {
+    if (this.tileCache != null && this.tileCache != tileCache) {
+      this.tileCache.evictAll(this);
+    }
+    this.tileCache = tileCache;
+  }
+
+  /**
+   * Sets the storage for tile pixels. Tiles are decoded straight into slots of it,
+   * so that no standalone bitmap is allocated for each tile. It only works with
+   * decoders which have {@link ImageRegionDecoder#CAPABILITY_DECODE_ONTO}.
+   * The slot size of the storage must not be smaller than the tile size.
+   * Set {@code null} to keep tiles in standalone bitmaps.
+   *
+   * It only affects tiles decoded after it's called.
+   */
+  @MainThread
+  public void setTileStorage(@Nullable TileSlotPool tileStorage) {
+    if (tileStorage != null && tileStorage.getSlotSize() < tileSize) {
+      Log.e(LOG_TAG, "The slot size of the TileSlotPool is smaller than tile size");
+      return;
+    }
+    this.tileStorage = tileStorage;
+  }
+
+  /**
+   * Sets the executor to execute render tasks. A render task decodes
+   * all tiles of the region, so it's kept out of the executor of decode tasks
+   * not to delay tiles for the views. It's {@link AsyncTask#SERIAL_EXECUTOR} by default.
+   * A {@link DecodeScheduler.Lane} of its own is fine too. A running render task
+   * counts in the limit of running decodings, so the decoder is never used by more
+   * threads than {@link ImageRegionDecoder#getCapabilities()} allows.
+   *
+   * @see #render(Rect, Bitmap, RenderCallback)
+   */
+  @MainThread
+  public void setRenderExecutor(@NonNull Executor renderExecutor) {
+    this.renderExecutor = renderExecutor;
+  }
+
+  /**
+   * Sets the max size of decoded tile bitmaps. Smaller tiles decode fewer pixels
+   * out of the view and show the first sharp tile sooner, but there are more
+   * tiles to decode and draw. All tiles are dropped if it changes.
+   * It's {@link LargeImage#getTileSize()} by default.
+   *
+   * The tile storage is removed if its slot size is smaller than the tile size.
+   */
+  @MainThread
+  public void setTileSize(int tileSize) {
+    if (tileSize <= 0) {
+      throw new IllegalArgumentException("Invalid tile size: " + tileSize);
+    }
+    if (recycled || this.tileSize == tileSize) {
+      return;
+    }
+    this.tileSize = tileSize;
+
+    if (tileStorage != null && tileStorage.getSlotSize() < tileSize) {
+      Log.w(LOG_TAG, "The slot size of the TileSlotPool is smaller than tile size, remove it");
+      tileStorage = null;
+    }
+    // Cached tiles don't match the new grid
+    if (tileCache != null) {
+      tileCache.evictAll(this);
+    }
+    rebuildTileMap();
+    invalidateViews();
+  }
+
+  /**
+   * Returns the max size of decoded tile bitmaps.
+   *
+   * @see #setTileSize(int)
+   */
+  public int getTileSize() {
+    return tileSize;
+  }
+
+  /**
+   * Sets whether to trade sample level for memory headroom and decode throughput.
+   * If it's enabled, tiles one or two sample levels coarser are shown
+   * when memory is low or decoding is slow, until they recover.
+   * It's disabled by default.
+   *
+   * @see #getMetrics()
+   */
+  @MainThread
+  public void setAdaptiveQuality(boolean adaptiveQuality) {
+    if (this.adaptiveQuality != adaptiveQuality) {
+      this.adaptiveQuality = adaptiveQuality;
+      invalidateViews();
+    }
+  }
+
+  /**
+   * Returns a snapshot of the metrics of this TiledDrawable.
+   */
+  @MainThread
+  @NonNull
+  public Metrics getMetrics() {
+    Metrics metrics = new Metrics();
+    metrics.requestedSample = requestedSample;
+    metrics.effectiveSample = currentSample;
+    metrics.qualityBias = adaptiveQuality ? qualityGovernor.getBias() : 0;
+    metrics.qualityStepUpCount = qualityGovernor.getStepUpCount();
+    metrics.qualityStepDownCount = qualityGovernor.getStepDownCount();
+    metrics.memoryHeadroom = MemoryGovernor.getHeadroom();
+    metrics.decodeNanosPerPixel = qualityGovernor.getNanosPerPixel();
+    metrics.decodeCount = decodeCount;
+    metrics.restoreCount = restoreCount;
+    metrics.deriveCount = deriveCount;
+    metrics.tileCacheHitRate = tileCache != null ? tileCache.hitRate() : 0.0f;
+    return metrics;
+  }
+
+  /**
+   * Pauses this TiledDrawable, like when its view is detached or offscreen.
+   * Queued decodings are cancelled. Tiles are released, or stored to the
+   * second-tier cache if it's set. The decoder and the preview are kept,
+   * and only the preview is drawn until {@link #resume()}.
+   *
+   * It's also paused while it's invisible, see {@link #setVisible(boolean, boolean)}.
+   * If it's split, it's paused while all views are invisible.
+   */
+  @MainThread
+  public void pause() {
+    boolean wasPaused = isPaused();
+    paused = true;
+    if (!wasPaused) {
+      onPause();
+    }
+  }
+
+  /**
+   * Resumes this TiledDrawable paused by {@link #pause()}.
+   * The tiles of the last viewport are requested at once.
+   */
+  @MainThread
+  public void resume() {
+    boolean wasPaused = isPaused();
+    paused = false;
+    if (wasPaused && !isPaused()) {
+      onResume();
+    }
+  }
+
+  /**
+   * Returns {@code true} if it's paused by {@link #pause()} or all views are invisible.
+   */
+  public boolean isPaused() {
+    if (paused) {
+      return true;
+    }
+    for (int i = 0, n = viewers.size(); i < n; i++) {
+      if (viewers.get(i).visible) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean setVisible(boolean visible, boolean restart) {
+    boolean changed = super.setVisible(visible, restart);
+    setViewerVisible(selfViewer, visible);
+    return changed;
+  }
+
+  private void setViewerVisible(Viewer viewer, boolean visible) {
+    if (viewer.visible == visible) {
+      return;
+    }
+    boolean wasPaused = isPaused();
+    viewer.visible = visible;
+    if (!wasPaused && isPaused()) {
+      onPause();
+    } else if (wasPaused && !isPaused()) {
+      onResume();
+    } else if (!visible && !recycled) {
+      // Other views are still visible, only release the tiles of this view
+      viewer.clearGrid();
+    }
+  }
+
+  private void onPause() {
+    if (recycled) {
+      return;
+    }
+
+    // Let other TiledDrawables downgrade the preview
+    updatePreviewDemand(0);
+
+    for (int i = 0, len = tilesMap.size(); i < len; i++) {
+      int sample = tilesMap.keyAt(i);
+      List<Tile> list = tilesMap.valueAt(i);
+      for (int j = 0, n = list.size(); j < n; j++) {
+        Tile tile = list.get(j);
+        cancelDecoding(tile, false);
+        tile.failed = false;
+        // Skip the tiles used by RenderTask
+        if (tile.pins == 0 && (tile.bitmap != null || tile.slot != null)) {
+          releaseTile(tile, sample);
+        }
+      }
+    }
+  }
+
+  private void onResume() {
+    if (recycled) {
+      return;
+    }
+
+    // The visible ranges of the last frame are kept
+    for (int i = 0, n = viewers.size(); i < n; i++) {
+      viewers.get(i).requestMissingTiles();
+    }
+    invalidateViews();
+  }
+
+  /**
+   * Sets whether it's in grid mode, for small cells like a thumbnail grid.
+   * It's {@code false} by default.
+   *
+   * In grid mode, the preview is downgraded in background to the smallest mip level
+   * which is not smaller than the drawn size, if all TiledDrawables sharing the decoder
+   * accept it. So the memory follows the cell size, not the screen size.
+   * The preview is restored when it's drawn bigger. Tiles are only built and decoded
+   * when it's drawn bigger than the full preview.
+   */
+  @MainThread
+  public void setGridMode(boolean gridMode) {
+    if (recycled || this.gridMode == gridMode) {
+      return;
+    }
+    this.gridMode = gridMode;
+    if (gridMode && currentSample >= maxSample) {
+      // Drop the tiles, they are built again when needed
+      rebuildTileMap();
+    }
+    invalidateViews();
+  }
+
+  /**
+   * Returns {@code true} if it's in grid mode.
+   *
+   * @see #setGridMode(boolean)
+   */
+  public boolean isGridMode() {
+    return gridMode;
+  }
+
+  /*
+   * Claims the preview sample this TiledDrawable needs in the decoder,
+   * {@code 0} to drop the claim.
+   */
+  private void updatePreviewDemand(int sample) {
+    previewClaim.set(sample);
+  }
+
+  /*
+   * Returns the preview sample a TiledDrawable needs to draw at the display sample.
+   * In grid mode, a coarser preview is enough for small cells.
+   */
+  static int getPreviewDemand(boolean gridMode, int displaySample, int maxSample) {
+    return gridMode ? Math.max(maxSample, displaySample) : maxSample;
+  }
+
+  /*
+   * Returns true if the preview is drawn instead of tiles at the sample.
+   * In grid mode, the downgraded preview is drawn until it's restored,
+   * so the tile map is only built when it's drawn bigger than the full preview.
+   */
+  static boolean drawsPreview(boolean gridMode, int sample, int displaySample,
+      int previewSample, int maxSample) {
+    return sample == previewSample || displaySample >= previewSample
+        || (gridMode && displaySample >= maxSample);
+  }
+
+  /**
+   * Decodes the visible tiles which weren't decodable before, and redraws
+   * the views for the preview which might be patched. Call it when more
+   * regions are decodable.
+   *
+   * @see ImageRegionDecoder#isRegionDecodable(Rect, int)
+   */
+  @MainThread
+  public void onRegionsAvailable() {
+    if (recycled || isPaused()) {
+      return;
+    }
+    for (int i = 0, n = viewers.size(); i < n; i++) {
+      viewers.get(i).requestMissingTiles();
     }
+    // The arrived rows might be drawn onto the preview
+    invalidateViews();
   }
 
   /**
@@ -143,20 +726,55 @@ public class TiledDrawable extends Drawable implements PreciseDrawable {
       return;
     }
     recycled = true;
+    MemoryGovernor.unregister(this);
+    updatePreviewDemand(0);
 
+    if (restoreTask != null) {
+      restoreTask.cancel(false);
+      restoreTask = null;
+    }
+    if (downgradeTask != null) {
+      downgradeTask.cancel(false);
+      downgradeTask = null;
+    }
+
+    for (int i = 0, n = viewers.size(); i < n; i++) {
+      viewers.get(i).clearGrid();
+    }
     for (int i = 0, len = tilesMap.size(); i < len; i++) {
       for (Tile tile : tilesMap.valueAt(i)) {
+        cancelDecoding(tile, false);
         tile.drawable = null;
-        if (tile.task != null) {
-          tile.task.cancel(false);
+        if (tile.pins != 0) {
+          // RenderTask releases it
+          continue;
         }
         if (tile.bitmap != null) {
           tile.bitmap.recycle();
           tile.bitmap = null;
         }
+        if (tile.slot != null) {
+          tile.storage.release(tile.slot);
+          tile.slot = null;
+          tile.storage = null;
+        }
       }
     }
     tilesMap.clear();
+    gridsMap.clear();
+    reusePool.close();
+
+    // Finish the other waiting tasks as cancelled, like RenderTasks calling back
+    while (!pendingTasks.isEmpty()) {
+      AsyncTask<Void, ?, ?> task = pendingTasks.pollFirst();
+      task.cancel(false);
+      startDecoding(task);
+    }
+
+    if (tileCache != null) {
+      tileCache.evictAll(this);
+      tileCache = null;
+    }
 
     if (!sharedDecoder) {
       // decoder.recycle() might block the main thread
@@ -180,14 +798,18 @@ public class TiledDrawable extends Drawable implements PreciseDrawable {
     throw new IllegalStateException("Please call draw(Canvas, RectF, RectF)!");
   }
 
+  private int calculateSample(RectF src, RectF dst) {
+    return calculateSample(src.width(), src.height(), dst.width(), dst.height());
+  }
+
   /*
    * Returns the result which is the biggest value
    * that is smaller than or equal to the sample
    * and is power of 2.
    */
-  private int calculateSample(RectF src, RectF dst) {
-    float scaleX = src.width() / dst.width();
-    float scaleY = src.height() / dst.height();
+  static int calculateSample(float srcWidth, float srcHeight, float dstWidth, float dstHeight) {
+    float scaleX = srcWidth / dstWidth;
+    float scaleY = srcHeight / dstHeight;
     int sample = Math.min((int) scaleX, (int) scaleY);
     sample = Math.max(1, sample);
     return Utils.prevPow2(sample);
@@ -204,37 +826,171 @@ public class TiledDrawable extends Drawable implements PreciseDrawable {
   }
 
   private void decodeTile(Tile tile, int sample) {
-    if (tile.task == null && !tile.failed) {
-      new DecodeTileTask(decoder, tile, sample).executeOnExecutor(executor);
+    if (tile.task == null && !tile.failed && !isPaused()
+        // It's requested again in onRegionsAvailable()
+        && decoder.isRegionDecodable(tile.rect, sample)) {
+      DecodeTileTask task = new DecodeTileTask(this, decoder, tileCache, tileStorage, tile, sample);
+      if (sample > 1) {
+        // Zooming out, derive it from the resident finer tiles
+        task.children = pinChildren(tile, sample);
+      }
+      tile.task = task;
+      startOrQueue(task);
     }
   }
 
-  private void drawTiles(Canvas canvas, RectF src, RectF dst, List<Tile> tiles, int sample) {
-    List<Tile> toDraw = this.list1;
-    boolean missTiles = false;
+  /*
+   * Starts the task using the decoder if the policy allows, otherwise queues it.
+   */
+  private void startOrQueue(AsyncTask<Void, ?, ?> task) {
+    if (decodingCount < decodePolicy.getParallelism()) {
+      startDecoding(task);
+    } else {
+      pendingTasks.addLast(task);
+    }
+  }
 
-    for (Tile tile : tiles) {
-      Rect rect = tile.rect;
-      tile.visible = src.intersects(rect.left, rect.top, rect.right, rect.bottom);
-      if (!tile.visible) {
-        continue;
+  private void startDecoding(AsyncTask<Void, ?, ?> task) {
+    decodingCount++;
+    task.executeOnExecutor(task instanceof RenderTask ? renderExecutor : executor);
+  }
+
+  /*
+   * Called when a running task using the decoder finishes or is cancelled.
+   */
+  private void onDecodingFinished() {
+    decodingCount--;
+    while (decodingCount < decodePolicy.getParallelism() && !pendingTasks.isEmpty()) {
+      startDecoding(pendingTasks.pollFirst());
+    }
+  }
+
+  /*
+   * Cancels the decoding of the tile. A waiting decoding is removed.
+   * A running decoding is left to finish if finishRunning is true and
+   * the decoder can't cancel it cheaply.
+   */
+  private void cancelDecoding(Tile tile, boolean finishRunning) {
+    DecodeTileTask task = tile.task;
+    if (task == null) {
+      return;
+    }
+    if (pendingTasks.remove(task)) {
+      tile.task = null;
+      task.releaseChildren();
+      return;
+    }
+    if (finishRunning && !decodePolicy.isRunningCancelled()) {
+      return;
+    }
+    task.cancel(false);
+    // Abort the decoding, so that the thread is free for other tiles soon
+    task.token.cancel();
+  }
+
+  /*
+   * Applies the quality policy to the sample from the scale.
+   */
+  private int adjustSample(int sample, RectF src) {
+    sample = Math.min(maxSample, sample);
+    requestedSample = sample;
+    if (!adaptiveQuality) {
+      return sample;
+    }
+    long area = getVisibleArea(src.left, src.top, src.right, src.bottom, width, height);
+    return qualityGovernor.apply(sample, maxSample, area, MemoryGovernor.getHeadroom(),
+        SystemClock.uptimeMillis());
+  }
+
+  /*
+   * Returns the area of the rect in a width x height image.
+   */
+  static long getVisibleArea(float left, float top, float right, float bottom,
+      int width, int height) {
+    float w = Math.min(right, width) - Math.max(left, 0);
+    float h = Math.min(bottom, height) - Math.max(top, 0);
+    return w > 0 && h > 0 ? (long) (w * h) : 0;
+  }
+
+  /*
+   * Returns true if the tile is needed for the target of the animation of any view.
+   */
+  private boolean isTargetTile(Tile tile, int sample) {
+    Rect rect = tile.rect;
+    for (int i = 0, n = viewers.size(); i < n; i++) {
+      Viewer viewer = viewers.get(i);
+      if (viewer.animating && sample == viewer.targetSample
+          && viewer.targetRect.intersects(rect.left, rect.top, rect.right, rect.bottom)) {
+        return true;
       }
+    }
+    return false;
+  }
 
-      if (tile.bitmap == null) {
-        missTiles = true;
-        decodeTile(tile, sample);
-      } else {
-        toDraw.add(tile);
+  /*
+   * Returns true if the sample level is drawn by any view.
+   */
+  private boolean isDrawnSample(int sample) {
+    for (int i = 0, n = viewers.size(); i < n; i++) {
+      if (viewers.get(i).sample == sample) {
+        return true;
       }
     }
+    return false;
+  }
 
-    if (missTiles) {
-      drawPreview(canvas, src, dst);
+  private void drawTiles(Viewer viewer, Canvas canvas, RectF src, RectF dst, int sample) {
+    List<Tile> toDraw = this.list1;
+    boolean missTiles = false;
+
+    // Tiles entering the view are requested in the callback
+    viewer.updateGrid(sample, src);
+    GridViewport<Tile> viewport = viewer.viewport;
+    TileGrid.Range range = viewport.getRange();
+    for (int column = range.left; column < range.right; column++) {
+      for (int row = range.top; row < range.bottom; row++) {
+        Tile tile = viewport.getTile(column, row);
+        if (tile.bitmap == null && tile.slot == null) {
+          missTiles = true;
+        } else {
+          toDraw.add(tile);
+        }
+      }
     }
 
     RectF tSrc = rectF1;
     RectF tDst = rectF2;
-    for (final Tile tile : toDraw) {
+    if (missTiles) {
+      drawPreview(canvas, src, dst);
+
+      // Draw the finished rows of the tiles decoded in strips over the preview
+      for (int column = range.left; column < range.right; column++) {
+        for (int row = range.top; row < range.bottom; row++) {
+          Tile tile = viewport.getTile(column, row);
+          Bitmap partial = tile.partial;
+          if (partial == null || tile.bitmap != null || tile.slot != null) {
+            continue;
+          }
+          Rect tRect = tile.rect;
+          tSrc.set(tRect);
+          tSrc.bottom = tRect.top + (float) tRect.height() * tile.partialRows / partial.getHeight();
+          Utils.mapRect(src, dst, tSrc, tDst);
+          rect1.set(0, 0, partial.getWidth(), tile.partialRows);
+          canvas.drawBitmap(partial, rect1, tDst, null);
+        }
+      }
+    }
+
+    for (int i = 0, n = toDraw.size(); i < n; i++) {
+      Tile tile = toDraw.get(i);
+      TileSlotPool.Slot slot = tile.slot;
+      if (slot != null) {
+        tSrc.set(tile.rect);
+        Utils.mapRect(src, dst, tSrc, tDst);
+        canvas.drawBitmap(slot.bitmap, slot.rect, tDst, null);
+        continue;
+      }
+
       Bitmap bitmap = tile.bitmap;
       if (bitmap == null) {
         continue;
@@ -250,53 +1006,331 @@ public class TiledDrawable extends Drawable implements PreciseDrawable {
     toDraw.clear();
   }
 
+  /*
+   * Releases all tiles which aren't drawn by any view.
+   * Tiles leaving views are released at once, it only needs to be called
+   * if other conditions to keep tiles change.
+   */
   private void gc() {
     for (int i = 0, len = tilesMap.size(); i < len; i++) {
       int sample = tilesMap.keyAt(i);
       List<Tile> list = tilesMap.valueAt(i);
-
-      for (Tile tile : list) {
-        // Skip current sample and visible
-        if (sample == currentSample && tile.visible) {
-          continue;
+      for (int j = 0, n = list.size(); j < n; j++) {
+        Tile tile = list.get(j);
+        if (tile.views == 0) {
+          gcTile(tile, sample);
         }
+      }
+    }
+  }
 
-        if (tile.bitmap != null) {
-          decoder.recycle(tile.bitmap);
-          tile.bitmap = null;
+  /*
+   * Releases the tile which isn't drawn by any view.
+   */
+  private void gcTile(Tile tile, int sample) {
+    // Skip the tiles used by RenderTask
+    if (recycled || tile.pins != 0) {
+      return;
+    }
+    // Skip the tiles for the target of the animation
+    if (isTargetTile(tile, sample)) {
+      return;
+    }
+
+    if (tile.bitmap != null || tile.slot != null) {
+      releaseTile(tile, sample);
+    }
+
+    // The result is kept if it can't be cancelled cheaply
+    cancelDecoding(tile, true);
+
+    if (!isDrawnSample(sample)) {
+      tile.failed = false;
+    }
+  }
+
+  /**
+   * Renders the {@code src} region of the image to {@code out} in background.
+   * The region is scaled to fill {@code out}.
+   *
+   * The best sample level for the output size is used. The output is built tile by tile,
+   * so the memory overhead is about one tile whatever the output size is.
+   * Tiles which are already decoded are reused.
+   *
+   * @param src the region of the image
+   * @param out a mutable bitmap to receive the result
+   * @param callback called in the main thread when finished
+   * @see #setRenderExecutor(Executor)
+   */
+  @MainThread
+  public void render(@NonNull Rect src, @NonNull Bitmap out, @NonNull RenderCallback callback) {
+    if (!out.isMutable()) {
+      throw new IllegalArgumentException("The output bitmap must be mutable");
+    }
+    if (recycled || src.isEmpty()) {
+      callback.onRenderFinished(out, false);
+      return;
+    }
+
+    syncPreview();
+    ensureTileMap();
+    RectF srcRectF = new RectF(src);
+    RectF outRectF = new RectF(0, 0, out.getWidth(), out.getHeight());
+    int sample = Math.min(maxSample, calculateSample(srcRectF, outRectF));
+    // The decoder might not decode concurrently, it counts as a decoding
+    startOrQueue(new RenderTask(this, srcRectF, outRectF, out, sample, callback));
+  }
+
+  /*
+   * Releases the pixels of the tile. They are stored to the second-tier cache if possible.
+   */
+  private void releaseTile(Tile tile, int sample) {
+    if (tileCache != null) {
+      // Store it to the second-tier cache before recycled
+      new StoreTileTask(decoder, tileCache, this, tile.rect, sample, tile.bitmap,
+          tile.storage, tile.slot).executeOnExecutor(executor);
+    } else if (tile.slot != null) {
+      tile.storage.release(tile.slot);
+    } else {
+      reusePool.recycle(tile.bitmap, tile.rect, sample);
+    }
+    tile.bitmap = null;
+    tile.slot = null;
+    tile.storage = null;
+  }
+
+  /*
+   * Releases a pin of the tile. The tile is freed if it's out of the tile grids,
+   * or collected if it left views while pinned.
+   */
+  private void unpinTile(Tile tile, int sample) {
+    tile.pins--;
+    // The tile is out of the tile grids if it's recycled or split
+    if (tile.pins == 0 && tile.drawable == null) {
+      if (tile.bitmap != null) {
+        tile.bitmap.recycle();
+        tile.bitmap = null;
+      }
+      if (tile.slot != null) {
+        tile.storage.release(tile.slot);
+        tile.slot = null;
+        tile.storage = null;
+      }
+    } else if (tile.pins == 0 && tile.views == 0) {
+      gcTile(tile, sample);
+    }
+  }
+
+  /*
+   * Returns the tiles of the finer sample level covering the tile, and pins
+   * the resident ones. Returns null if none of them is resident.
+   */
+  @Nullable
+  private List<Piece> pinChildren(Tile tile, int sample) {
+    int childSample = sample / 2;
+    List<Tile> tiles = tilesMap.get(childSample);
+    TileGrid grid = gridsMap.get(childSample);
+    if (tiles == null || grid == null) {
+      return null;
+    }
+
+    Rect rect = tile.rect;
+    TileGrid.Range range = range1;
+    grid.find(range, rect.left, rect.top, rect.right, rect.bottom);
+    int rows = grid.getRowCount();
+    List<Piece> pieces = null;
+    for (int column = range.left; column < range.right && pieces == null; column++) {
+      for (int row = range.top; row < range.bottom; row++) {
+        Tile child = tiles.get(column * rows + row);
+        if (child.bitmap != null || child.slot != null) {
+          pieces = new ArrayList<>((range.right - range.left) * (range.bottom - range.top));
+          break;
         }
+      }
+    }
+    if (pieces == null) {
+      return null;
+    }
 
-        if (tile.task != null) {
-          tile.task.cancel(false);
+    for (int column = range.left; column < range.right; column++) {
+      for (int row = range.top; row < range.bottom; row++) {
+        Tile child = tiles.get(column * rows + row);
+        Piece piece = new Piece(child.rect);
+        if (child.bitmap != null || child.slot != null) {
+          // Pin it to keep the pixels until derived
+          child.pins++;
+          piece.tile = child;
+          piece.bitmap = child.bitmap;
+          piece.slot = child.slot;
         }
+        pieces.add(piece);
+      }
+    }
+    return pieces;
+  }
+
+  /*
+   * Drops the pixels of the tile without storing them.
+   */
+  private void dropTile(Tile tile) {
+    cancelDecoding(tile, false);
+    if (tile.slot != null) {
+      tile.storage.release(tile.slot);
+    } else if (tile.bitmap != null) {
+      decoder.recycle(tile.bitmap);
+    }
+    tile.bitmap = null;
+    tile.slot = null;
+    tile.storage = null;
+    tile.failed = false;
+  }
+
+  /**
+   * Releases memory for the trim level. It's called automatically
+   * if {@link LargeImage#initialize(android.content.Context)} is called.
+   * <ul>
+   * <li>{@code >= TRIM_MEMORY_RUNNING_MODERATE}: drops the tiles which aren't drawn,
+   * including the tiles prefetched for animations</li>
+   * <li>{@code >= TRIM_MEMORY_UI_HIDDEN}: drops all tiles</li>
+   * <li>{@code >= TRIM_MEMORY_MODERATE}: downgrades the preview to a 2x coarser one.
+   * The preview is restored when it's drawn next time.</li>
+   * </ul>
+   * Trimmed tiles are not stored to the second-tier cache.
+   *
+   * @see LargeImage#trimMemory(int)
+   */
+  @MainThread
+  @Override
+  public void trimMemory(int level) {
+    if (recycled || level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+      return;
+    }
 
-        if (sample != currentSample) {
-          tile.failed = false;
+    reusePool.evictAll();
+    boolean dropAll = level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN;
+    for (int i = 0, len = tilesMap.size(); i < len; i++) {
+      int sample = tilesMap.keyAt(i);
+      List<Tile> list = tilesMap.valueAt(i);
+      for (int j = 0, n = list.size(); j < n; j++) {
+        Tile tile = list.get(j);
+        // Skip the tiles used by RenderTask
+        if (tile.pins != 0) {
+          continue;
+        }
+        if (!dropAll && tile.views != 0) {
+          continue;
         }
+        dropTile(tile);
+      }
+    }
+    if (dropAll) {
+      // Make the tiles enter views again in the next frame
+      for (int i = 0, n = viewers.size(); i < n; i++) {
+        viewers.get(i).clearGrid();
       }
     }
+
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE && decoder.downgradePreview()) {
+      syncPreview();
+    }
+
+    invalidateViews();
   }
 
   @Override
   public void draw(@NonNull Canvas canvas, @NonNull RectF src, @NonNull RectF dst) {
+    draw(selfViewer, canvas, src, dst);
+  }
+
+  private void draw(Viewer viewer, Canvas canvas, RectF src, RectF dst) {
     if (recycled) {
       return;
     }
 
-    int sample = calculateSample(src, dst);
-    sample = Math.min(previewSample, sample);
+    syncPreview();
+    int displaySample = calculateSample(src, dst);
+    updatePreviewDemand(getPreviewDemand(gridMode, displaySample, maxSample));
+    int demand = decoder.getPreviewDemand();
+    if (previewSample > demand) {
+      if (restoreTask == null && !isPaused()) {
+        // The preview is downgraded, restore it since it's shown bigger
+        restoreTask = new RestorePreviewTask(this, decoder, demand);
+        startOrQueue(restoreTask);
+      }
+    } else if (previewSample < demand) {
+      if (downgradeTask == null && restoreTask == null && !isPaused()) {
+        // All TiledDrawables of the decoder are drawn small, like in a grid.
+        // Scaling the preview takes a while, it's swapped in once it's done.
+        downgradeTask = new DowngradePreviewTask(this, decoder, demand);
+        startOrQueue(downgradeTask);
+      }
+    }
+
+    int sample = adjustSample(displaySample, src);
     currentSample = sample;
+    viewer.sample = sample;
 
     int saved = canvas.save();
     canvas.clipRect(dst);
-    if (sample == previewSample) {
+    if (drawsPreview(gridMode, sample, displaySample, previewSample, maxSample)) {
+      viewer.clearGrid();
       drawPreview(canvas, src, dst);
     } else {
-      drawTiles(canvas, src, dst, tilesMap.get(sample, Collections.<Tile>emptyList()), sample);
+      ensureTileMap();
+      drawTiles(viewer, canvas, src, dst, sample);
     }
     canvas.restoreToCount(saved);
+  }
 
-    gc();
+  @Override
+  public void onAnimationStart(@NonNull RectF src, @NonNull RectF dst) {
+    onAnimationStart(selfViewer, src, dst);
+  }
+
+  private void onAnimationStart(Viewer viewer, RectF src, RectF dst) {
+    if (recycled) {
+      return;
+    }
+
+    syncPreview();
+    int displaySample = calculateSample(src, dst);
+    int targetSample = Math.min(maxSample, displaySample);
+    if (adaptiveQuality) {
+      // Don't step the policy for a frame in the future
+      targetSample = Math.min(maxSample, targetSample << qualityGovernor.getBias());
+    }
+    viewer.animating = true;
+    viewer.targetSample = targetSample;
+    viewer.targetRect.set(src);
+
+    // Request the tiles for the end of the animation at once
+    if (targetSample != previewSample && displaySample < previewSample) {
+      ensureTileMap();
+      List<Tile> tiles = tilesMap.get(targetSample);
+      for (int i = 0, n = tiles != null ? tiles.size() : 0; i < n; i++) {
+        Tile tile = tiles.get(i);
+        Rect rect = tile.rect;
+        if (tile.bitmap == null && tile.slot == null
+            && src.intersects(rect.left, rect.top, rect.right, rect.bottom)) {
+          decodeTile(tile, targetSample);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void onAnimationEnd() {
+    onAnimationEnd(selfViewer);
+  }
+
+  private void onAnimationEnd(Viewer viewer) {
+    if (viewer.animating) {
+      viewer.animating = false;
+      // Decode the missing tiles, release the tiles for the target
+      viewer.requestMissingTiles();
+      gc();
+      viewer.drawable.invalidateSelf();
+    }
   }
 
   @Override
@@ -310,47 +1344,614 @@ public class TiledDrawable extends Drawable implements PreciseDrawable {
     return PixelFormat.TRANSLUCENT;
   }
 
+  /**
+   * Callback for {@link #render(Rect, Bitmap, RenderCallback)}.
+   */
+  public interface RenderCallback {
+
+    /**
+     * Called in the main thread when rendering finished.
+     *
+     * @param bitmap the output bitmap
+     * @param success false if any part of the region can't be rendered
+     */
+    @MainThread
+    void onRenderFinished(@NonNull Bitmap bitmap, boolean success);
+  }
+
+  /**
+   * A snapshot of the metrics of a TiledDrawable.
+   *
+   * @see #getMetrics()
+   */
+  public static final class Metrics {
+
+    private int requestedSample;
+    private int effectiveSample;
+    private int qualityBias;
+    private int qualityStepUpCount;
+    private int qualityStepDownCount;
+    private float memoryHeadroom;
+    private float decodeNanosPerPixel;
+    private int decodeCount;
+    private int restoreCount;
+    private int deriveCount;
+    private float tileCacheHitRate;
+
+    private Metrics() {}
+
+    /**
+     * Returns the sample level for the scale of the last frame.
+     */
+    public int getRequestedSample() {
+      return requestedSample;
+    }
+
+    /**
+     * Returns the sample level actually drawn in the last frame.
+     * It's bigger than the requested one if the quality is lowered.
+     */
+    public int getEffectiveSample() {
+      return effectiveSample;
+    }
+
+    /**
+     * Returns how many sample levels the quality is lowered.
+     */
+    public int getQualityBias() {
+      return qualityBias;
+    }
+
+    /**
+     * Returns the number of times the quality is lowered.
+     */
+    public int getQualityStepUpCount() {
+      return qualityStepUpCount;
+    }
+
+    /**
+     * Returns the number of times the quality is raised back.
+     */
+    public int getQualityStepDownCount() {
+      return qualityStepDownCount;
+    }
+
+    /**
+     * Returns the free fraction of memory which bitmap pixels are allocated in,
+     * {@code 0} if the system reported low memory recently.
+     */
+    public float getMemoryHeadroom() {
+      return memoryHeadroom;
+    }
+
+    /**
+     * Returns the moving average of decoding time per pixel, in nanoseconds.
+     */
+    public float getDecodeNanosPerPixel() {
+      return decodeNanosPerPixel;
+    }
+
+    /**
+     * Returns the number of tiles decoded by the ImageRegionDecoder.
+     */
+    public int getDecodeCount() {
+      return decodeCount;
+    }
+
+    /**
+     * Returns the number of tiles restored from the second-tier cache.
+     */
+    public int getRestoreCount() {
+      return restoreCount;
+    }
+
+    /**
+     * Returns the number of tiles derived from the resident tiles of the finer
+     * sample level on zooming out.
+     */
+    public int getDeriveCount() {
+      return deriveCount;
+    }
+
+    /**
+     * Returns the hit rate of the second-tier cache, which might be shared
+     * by other TiledDrawables. Returns {@code 0} if it's not set.
+     */
+    public float getTileCacheHitRate() {
+      return tileCacheHitRate;
+    }
+
+    @Override
+    public String toString() {
+      return "TiledDrawable.Metrics[sample=" + requestedSample + "->" + effectiveSample
+          + ",bias=" + qualityBias + ",stepUps=" + qualityStepUpCount
+          + ",stepDowns=" + qualityStepDownCount + ",headroom=" + (int) (memoryHeadroom * 100)
+          + "%,nsPerPixel=" + decodeNanosPerPixel + ",decodes=" + decodeCount
+          + ",restores=" + restoreCount + ",derives=" + deriveCount
+          + ",tileCacheHitRate=" + (int) (tileCacheHitRate * 100) + "%]";
+    }
+  }
+
+  /*
+   * A view drawing a TiledDrawable.
+   */
+  private class Viewer implements GridViewport.Listener<Tile> {
+    // The drawable to invalidate
+    private final Drawable drawable;
+    private boolean visible = true;
+    // The sample level of the last frame
+    private int sample;
+    // The visible tiles, they are marked in Tile.views
+    private final GridViewport<Tile> viewport = new GridViewport<>(this);
+    // Only decode tiles for the target while animating
+    private boolean animating;
+    private int targetSample;
+    private final RectF targetRect = new RectF();
+
+    private Viewer(Drawable drawable) {
+      this.drawable = drawable;
+    }
+
+    private void updateGrid(int sample, RectF src) {
+      viewport.update(sample, src.left, src.top, src.right, src.bottom);
+    }
+
+    private void clearGrid() {
+      viewport.clear();
+    }
+
+    private void requestMissingTiles() {
+      if (!viewport.hasGrid()) {
+        return;
+      }
+      TileGrid.Range range = viewport.getRange();
+      for (int column = range.left; column < range.right; column++) {
+        for (int row = range.top; row < range.bottom; row++) {
+          Tile tile = viewport.getTile(column, row);
+          if (tile.bitmap == null && tile.slot == null) {
+            decodeTile(tile, viewport.getSample());
+          }
+        }
+      }
+    }
+
+    @Override
+    public TileGrid getGrid(int sample) {
+      return gridsMap.get(sample);
+    }
+
+    @Override
+    public List<Tile> getTiles(int sample) {
+      return tilesMap.get(sample);
+    }
+
+    @Override
+    public void onTileEnter(Tile tile, int sample) {
+      tile.views++;
+      // Don't decode tiles for intermediate frames of the animation
+      if (tile.bitmap == null && tile.slot == null && (!animating || isInTarget(tile, sample))) {
+        decodeTile(tile, sample);
+      }
+    }
+
+    /*
+     * Returns true if the tile of the sample level is drawn when the animation ends.
+     */
+    private boolean isInTarget(Tile tile, int sample) {
+      Rect rect = tile.rect;
+      return sample == targetSample
+          && targetRect.intersects(rect.left, rect.top, rect.right, rect.bottom);
+    }
+
+    @Override
+    public void onTileLeave(Tile tile, int sample) {
+      tile.views--;
+      if (tile.views == 0) {
+        gcTile(tile, sample);
+      }
+    }
+  }
+
+  /*
+   * A view of a split TiledDrawable.
+   */
+  private static class SubDrawable extends Drawable
+      implements PreciseDrawable, AnimationAwareDrawable {
+
+    private final TiledDrawable parent;
+    private final Viewer viewer;
+
+    private SubDrawable(TiledDrawable parent) {
+      this.parent = parent;
+      this.viewer = parent.new Viewer(this);
+      viewer.visible = isVisible();
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+      return parent.width;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+      return parent.height;
+    }
+
+    @Override
+    public boolean setVisible(boolean visible, boolean restart) {
+      boolean changed = super.setVisible(visible, restart);
+      parent.setViewerVisible(viewer, visible);
+      return changed;
+    }
+
+    @Override
+    public void draw(@NonNull Canvas canvas) {
+      throw new IllegalStateException("Please call draw(Canvas, RectF, RectF)!");
+    }
+
+    @Override
+    public void draw(@NonNull Canvas canvas, @NonNull RectF src, @NonNull RectF dst) {
+      parent.draw(viewer, canvas, src, dst);
+    }
+
+    @Override
+    public void onAnimationStart(@NonNull RectF src, @NonNull RectF dst) {
+      parent.onAnimationStart(viewer, src, dst);
+    }
+
+    @Override
+    public void onAnimationEnd() {
+      parent.onAnimationEnd(viewer);
+    }
+
+    @Override
+    public void setAlpha(int alpha) {}
+
+    @Override
+    public void setColorFilter(@Nullable ColorFilter colorFilter) {}
+
+    @Override
+    public int getOpacity() {
+      return PixelFormat.TRANSLUCENT;
+    }
+  }
+
   private static class Tile {
-    private Drawable drawable;
+    private TiledDrawable drawable;
     // Source rect, the rect of the source image
     private Rect rect;
+    // Either bitmap or slot holds the pixels
     private Bitmap bitmap;
-    // Mark the tile can be seen in the screen
-    // It's only valid for the tiles in current sample
-    private boolean visible;
-    private AsyncTask task;
+    // The bitmap being decoded in strips, only the first partialRows rows are finished
+    @Nullable
+    private Bitmap partial;
+    private int partialRows;
+    private TileSlotPool.Slot slot;
+    private TileSlotPool storage;
+    // The count of views which drew it in the last frame
+    private int views;
+    // The count of RenderTasks reading the pixels
+    private int pins;
+    private DecodeTileTask task;
     private boolean failed;
   }
 
-  private static class DecodeTileTask extends AsyncTask<Void, Void, Bitmap> {
+  /*
+   * Keeps the bitmaps of released tiles to decode other tiles into.
+   * A bitmap is only reused for a region of the same size at the same sample,
+   * so that the decoded bitmap has the same size. It's used in both
+   * the main thread and decoding threads.
+   */
+  private static class ReusePool {
 
     private final ImageRegionDecoder decoder;
+    private final int maxSize;
+    private final List<Bitmap> bitmaps = new ArrayList<>();
+    private final List<Rect> rects = new ArrayList<>();
+    private final List<Integer> samples = new ArrayList<>();
+    private boolean closed;
+
+    private ReusePool(ImageRegionDecoder decoder, int maxSize) {
+      this.decoder = decoder;
+      this.maxSize = maxSize;
+    }
+
+    /*
+     * Returns a bitmap for the region, null if there is no one.
+     */
+    @Nullable
+    private synchronized Bitmap poll(Rect rect, int sample) {
+      for (int i = 0, n = bitmaps.size(); i < n; i++) {
+        Rect r = rects.get(i);
+        if (samples.get(i) == sample && r.width() == rect.width() && r.height() == rect.height()) {
+          rects.remove(i);
+          samples.remove(i);
+          return bitmaps.remove(i);
+        }
+      }
+      return null;
+    }
+
+    /*
+     * Keeps the bitmap decoded from the region, or recycles it if the pool is full.
+     */
+    private void recycle(Bitmap bitmap, Rect rect, int sample) {
+      synchronized (this) {
+        if (!closed && bitmaps.size() < maxSize && bitmap.isMutable()) {
+          bitmaps.add(bitmap);
+          rects.add(rect);
+          samples.add(sample);
+          return;
+        }
+      }
+      decoder.recycle(bitmap);
+    }
+
+    private synchronized void evictAll() {
+      for (int i = 0, n = bitmaps.size(); i < n; i++) {
+        decoder.recycle(bitmaps.get(i));
+      }
+      bitmaps.clear();
+      rects.clear();
+      samples.clear();
+    }
+
+    /*
+     * Evicts all bitmaps, and recycles all bitmaps passed in later.
+     */
+    private synchronized void close() {
+      closed = true;
+      evictAll();
+    }
+  }
+
+  private static class DecodeTileTask extends AsyncTask<Void, Integer, Bitmap>
+      implements ImageRegionDecoder.StripListener {
+
+    private final TiledDrawable drawable;
+    private final ImageRegionDecoder decoder;
+    @Nullable
+    private final TileCache tileCache;
+    @Nullable
+    private final TileSlotPool tileStorage;
+    @Nullable
+    private final Object owner;
     private final Tile tile;
     private final int sample;
+    @Nullable
+    private TileSlotPool.Slot slot;
+    // The tiles of the finer sample level to derive it from, the resident ones are pinned
+    @Nullable
+    private List<Piece> children;
+    // Cancelled with the task, to abort the decoding
+    private final CancellationToken token = new CancellationToken();
+    private boolean restored;
+    private boolean derived;
+    private long decodeNanos;
+    // The bitmap decoded in strips, it's recycled in the main thread
+    // since it might be drawn as the partial bitmap of the tile
+    @Nullable
+    private volatile Bitmap partial;
 
-    public DecodeTileTask(ImageRegionDecoder decoder, Tile tile, int sample) {
+    public DecodeTileTask(TiledDrawable drawable, ImageRegionDecoder decoder,
+        @Nullable TileCache tileCache, @Nullable TileSlotPool tileStorage, Tile tile, int sample) {
+      this.drawable = drawable;
       this.decoder = decoder;
+      this.tileCache = tileCache;
+      this.tileStorage = tileStorage;
+      this.owner = tile.drawable;
       this.tile = tile;
       this.sample = sample;
     }
 
     @Override
-    protected void onPreExecute() {
-      tile.task = this;
+    protected Bitmap doInBackground(Void... params) {
+      // Keep the decoder from being recycled, like by ImageRegionDecoderRegistry
+      if (!decoder.acquire()) {
+        return null;
+      }
+      try {
+        return decodeTile();
+      } finally {
+        decoder.release();
+      }
+    }
+
+    private Bitmap decodeTile() {
+      Bitmap bitmap = null;
+      if (tileCache != null && owner != null) {
+        bitmap = tileCache.get(owner, tile.rect, sample);
+        restored = bitmap != null;
+      }
+      if (bitmap == null && children != null) {
+        // A failed child fails the tile, decoding the whole tile would fail too
+        bitmap = derive();
+        derived = bitmap != null;
+        return bitmap;
+      }
+      if (bitmap == null) {
+        long start = System.nanoTime();
+        int decodeSample = drawable.decodePolicy.getDecodeSample(sample);
+        if (decoder.getStripHeight() > 0) {
+          bitmap = decoder.decode(tile.rect, decodeSample, this, token);
+        } else if (decodeOntoSlot(decodeSample)) {
+          decodeNanos = System.nanoTime() - start;
+          // The pixels are in the slot, return the slot bitmap as a non-null mark
+          return slot.bitmap;
+        } else {
+          Bitmap reuse = drawable.reusePool.poll(tile.rect, sample);
+          bitmap = decoder.decodeInto(tile.rect, decodeSample, reuse, token);
+          if (reuse != null && reuse != bitmap) {
+            decoder.recycle(reuse);
+          }
+        }
+        decodeNanos = System.nanoTime() - start;
+      }
+
+      return bitmap;
+    }
+
+    /*
+     * Decodes the tile straight into a slot of the tile storage.
+     * Returns false if there is no free slot or the decoder can't do it.
+     */
+    private boolean decodeOntoSlot(int decodeSample) {
+      if (tileStorage == null
+          || (decoder.getCapabilities() & ImageRegionDecoder.CAPABILITY_DECODE_ONTO) == 0) {
+        return false;
+      }
+      Rect rect = tile.rect;
+      int width = Utils.ceilDiv(rect.width(), decodeSample);
+      int height = Utils.ceilDiv(rect.height(), decodeSample);
+      int slotSize = tileStorage.getSlotSize();
+      if (width > slotSize || height > slotSize) {
+        return false;
+      }
+
+      TileSlotPool.Slot slot = tileStorage.obtain();
+      if (slot == null) {
+        return false;
+      }
+      if (!decoder.decodeOnto(rect, decodeSample, slot.bitmap, token)) {
+        tileStorage.release(slot);
+        return false;
+      }
+      slot.rect.set(0, 0, width, height);
+      this.slot = slot;
+      return true;
+    }
+
+    /*
+     * Builds the tile from the tiles of the finer sample level. Resident ones are
+     * drawn at half scale with bilinear filtering, which is a 2x2 box filter.
+     * Only the missing ones are decoded, at the sample of the tile.
+     */
+    @Nullable
+    private Bitmap derive() {
+      Rect rect = tile.rect;
+      Bitmap bitmap;
+      try {
+        bitmap = Bitmap.createBitmap(Utils.ceilDiv(rect.width(), sample),
+            Utils.ceilDiv(rect.height(), sample), Bitmap.Config.ARGB_8888);
+      } catch (OutOfMemoryError e) {
+        Log.e(LOG_TAG, "Can't create bitmap to derive region " + rect + " at sample " + sample, e);
+        return null;
+      }
+
+      Canvas canvas = new Canvas(bitmap);
+      Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+      Rect part = new Rect();
+      Rect src = new Rect();
+      RectF dst = new RectF();
+      int childSample = sample / 2;
+      int decodeSample = drawable.decodePolicy.getDecodeSample(sample);
+
+      for (Piece piece : children) {
+        if (isCancelled() || !part.setIntersect(piece.rect, rect)) {
+          continue;
+        }
+        dst.set((float) (part.left - rect.left) / sample, (float) (part.top - rect.top) / sample,
+            (float) (part.right - rect.left) / sample, (float) (part.bottom - rect.top) / sample);
+
+        if (piece.bitmap != null || piece.slot != null) {
+          Rect childRect = piece.rect;
+          src.set((part.left - childRect.left) / childSample,
+              (part.top - childRect.top) / childSample,
+              Utils.ceilDiv(part.right - childRect.left, childSample),
+              Utils.ceilDiv(part.bottom - childRect.top, childSample));
+          if (piece.slot != null) {
+            src.offset(piece.slot.rect.left, piece.slot.rect.top);
+            canvas.drawBitmap(piece.slot.bitmap, src, dst, paint);
+          } else {
+            canvas.drawBitmap(piece.bitmap, src, dst, paint);
+          }
+        } else {
+          Bitmap decoded = decoder.decodeInto(part, decodeSample, null, token);
+          if (decoded == null) {
+            bitmap.recycle();
+            return null;
+          }
+          canvas.drawBitmap(decoded, null, dst, paint);
+          decoder.recycle(decoded);
+        }
+      }
+
+      return bitmap;
+    }
+
+    /*
+     * Releases the pins of the children.
+     */
+    private void releaseChildren() {
+      if (children != null) {
+        for (Piece piece : children) {
+          if (piece.tile != null) {
+            drawable.unpinTile(piece.tile, sample / 2);
+          }
+        }
+        children = null;
+      }
     }
 
     @Override
-    protected Bitmap doInBackground(Void... params) {
-      return decoder.decode(tile.rect, sample);
+    public void onRowsDecoded(@NonNull Bitmap bitmap, int rows) {
+      partial = bitmap;
+      publishProgress(rows);
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+      if (isCancelled()) {
+        return;
+      }
+      tile.partial = partial;
+      tile.partialRows = values[0];
+      if (tile.drawable != null) {
+        tile.drawable.invalidateViews();
+      }
+    }
+
+    /*
+     * Recycles the partial bitmap if it's not the result.
+     */
+    private void releasePartial(@Nullable Bitmap result) {
+      tile.partial = null;
+      tile.partialRows = 0;
+      Bitmap partial = this.partial;
+      if (partial != null && partial != result) {
+        decoder.recycle(partial);
+      }
     }
 
     @Override
     protected void onPostExecute(Bitmap bitmap) {
       tile.task = null;
-      tile.bitmap = bitmap;
+      drawable.onDecodingFinished();
+      releaseChildren();
+      releasePartial(slot != null ? null : bitmap);
+      if (slot != null) {
+        tile.slot = slot;
+        tile.storage = tileStorage;
+      } else {
+        tile.bitmap = bitmap;
+      }
       if (bitmap != null) {
+        if (restored) {
+          drawable.restoreCount++;
+        } else if (derived) {
+          drawable.deriveCount++;
+        } else {
+          drawable.decodeCount++;
+          Rect rect = tile.rect;
+          drawable.qualityGovernor.onDecoded(
+              (long) rect.width() * rect.height() / ((long) sample * sample), decodeNanos);
+        }
         if (tile.drawable != null) {
-          tile.drawable.invalidateSelf();
+          if (tile.views == 0) {
+            // It's left to finish after its views left, keep it in the second-tier cache
+            tile.drawable.gcTile(tile, sample);
+          }
+          tile.drawable.invalidateViews();
         }
       } else {
         tile.failed = true;
@@ -361,12 +1962,403 @@ public class TiledDrawable extends Drawable implements PreciseDrawable {
     @Override
     protected void onCancelled(Bitmap bitmap) {
       tile.task = null;
+      drawable.onDecodingFinished();
+      releaseChildren();
+      releasePartial(slot != null ? null : bitmap);
+      if (slot != null) {
+        tileStorage.release(slot);
+      } else if (bitmap != null) {
+        drawable.reusePool.recycle(bitmap, tile.rect, sample);
+      }
+    }
+  }
+
+  private static class StoreTileTask extends AsyncTask<Void, Void, Void> {
+
+    private final ImageRegionDecoder decoder;
+    private final TileCache tileCache;
+    private final TiledDrawable owner;
+    private final Rect rect;
+    private final int sample;
+    @Nullable
+    private final Bitmap bitmap;
+    @Nullable
+    private final TileSlotPool storage;
+    @Nullable
+    private final TileSlotPool.Slot slot;
+
+    private StoreTileTask(ImageRegionDecoder decoder, TileCache tileCache,
+        TiledDrawable owner, Rect rect, int sample, @Nullable Bitmap bitmap,
+        @Nullable TileSlotPool storage, @Nullable TileSlotPool.Slot slot) {
+      this.decoder = decoder;
+      this.tileCache = tileCache;
+      this.owner = owner;
+      this.rect = rect;
+      this.sample = sample;
+      this.bitmap = bitmap;
+      this.storage = storage;
+      this.slot = slot;
+    }
+
+    @Override
+    protected Void doInBackground(Void... voids) {
+      if (!owner.recycled) {
+        if (slot != null) {
+          Rect r = slot.rect;
+          Bitmap copy = null;
+          try {
+            // The slot is released after it, no one writes the slot bitmap now
+            copy = Bitmap.createBitmap(slot.bitmap, r.left, r.top, r.width(), r.height());
+          } catch (OutOfMemoryError e) {
+            Log.e(LOG_TAG, "Can't copy tile from slot", e);
+          }
+          if (copy != null) {
+            tileCache.put(owner, rect, sample, copy);
+            copy.recycle();
+          }
+        } else if (bitmap != null) {
+          tileCache.put(owner, rect, sample, bitmap);
+        }
+        // The owner might be recycled while putting
+        if (owner.recycled) {
+          tileCache.evictAll(owner);
+        }
+      }
+
+      if (slot != null) {
+        storage.release(slot);
+      } else if (bitmap != null) {
+        owner.reusePool.recycle(bitmap, rect, sample);
+      }
+      return null;
+    }
+  }
+
+  private static class RenderTask extends AsyncTask<Void, Void, Boolean> {
+
+    private final TiledDrawable drawable;
+    private final ImageRegionDecoder decoder;
+    private final RectF src;
+    private final RectF dst;
+    private final Bitmap out;
+    private final int sample;
+    private final RenderCallback callback;
+
+    // The pieces to draw, in row-major order
+    private final List<Piece> pieces = new ArrayList<>();
+    // The preview to copy the region from, pinned until finished
+    @Nullable
+    private Bitmap preview;
+    @Nullable
+    private RectF previewRegion;
+
+    private RenderTask(TiledDrawable drawable, RectF src, RectF dst, Bitmap out,
+        int sample, RenderCallback callback) {
+      this.drawable = drawable;
+      this.decoder = drawable.decoder;
+      this.src = src;
+      this.dst = dst;
+      this.out = out;
+      this.sample = sample;
+      this.callback = callback;
+    }
+
+    @Override
+    protected void onPreExecute() {
+      RectF region = new RectF(src);
+      if (!region.intersect(0, 0, drawable.width, drawable.height)) {
+        return;
+      }
+
+      if (sample == drawable.previewSample) {
+        // The preview might be replaced in the main thread, copy the region in background
+        preview = decoder.pinPreview();
+        previewRegion = region;
+        return;
+      }
+
+      for (Tile tile : drawable.tilesMap.get(sample, Collections.<Tile>emptyList())) {
+        Rect rect = tile.rect;
+        if (!region.intersects(rect.left, rect.top, rect.right, rect.bottom)) {
+          continue;
+        }
+        Piece piece = new Piece(rect);
+        if (tile.bitmap != null || tile.slot != null) {
+          // Pin it to keep the pixels until finished
+          tile.pins++;
+          piece.tile = tile;
+          piece.bitmap = tile.bitmap;
+          piece.slot = tile.slot;
+        }
+        pieces.add(piece);
+      }
+
+      Collections.sort(pieces, new Comparator<Piece>() {
+        @Override
+        public int compare(Piece p1, Piece p2) {
+          return p1.rect.top != p2.rect.top ? p1.rect.top - p2.rect.top : p1.rect.left - p2.rect.left;
+        }
+      });
+    }
+
+    /*
+     * Copies the region of the preview as a piece.
+     */
+    private void copyPreview(Bitmap preview, RectF region) {
+      float scaleX = (float) preview.getWidth() / (float) drawable.width;
+      float scaleY = (float) preview.getHeight() / (float) drawable.height;
+      Rect pRect = new Rect();
+      new RectF(region.left * scaleX, region.top * scaleY,
+          region.right * scaleX, region.bottom * scaleY).roundOut(pRect);
+      if (!pRect.intersect(0, 0, preview.getWidth(), preview.getHeight())) {
+        return;
+      }
+      Piece piece = new Piece(new Rect((int) (pRect.left / scaleX), (int) (pRect.top / scaleY),
+          (int) Math.ceil(pRect.right / scaleX), (int) Math.ceil(pRect.bottom / scaleY)));
+      try {
+        piece.bitmap = Bitmap.createBitmap(preview, pRect.left, pRect.top, pRect.width(), pRect.height());
+      } catch (OutOfMemoryError e) {
+        Log.e(LOG_TAG, "Can't copy preview", e);
+      }
+      pieces.add(piece);
+    }
+
+    @Override
+    protected Boolean doInBackground(Void... voids) {
+      if (!decoder.acquire()) {
+        return false;
+      }
+      try {
+        return render();
+      } finally {
+        decoder.release();
+      }
+    }
+
+    private boolean render() {
+      if (preview != null && previewRegion != null) {
+        copyPreview(preview, previewRegion);
+      }
+
+      Canvas canvas = new Canvas(out);
+      Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+      RectF rectF = new RectF();
+      RectF pieceDst = new RectF();
+      Rect region = new Rect();
+      boolean success = !pieces.isEmpty();
+
+      for (Piece piece : pieces) {
+        if (isCancelled()) {
+          return false;
+        }
+
+        if (piece.bitmap != null || piece.slot != null) {
+          // Decoded pixels, draw the whole tile clipped by the output
+          rectF.set(piece.rect);
+          Utils.mapRect(src, dst, rectF, pieceDst);
+          int saved = canvas.save();
+          canvas.clipRect(dst);
+          if (piece.slot != null) {
+            canvas.drawBitmap(piece.slot.bitmap, piece.slot.rect, pieceDst, paint);
+          } else {
+            canvas.drawBitmap(piece.bitmap, null, pieceDst, paint);
+          }
+          canvas.restoreToCount(saved);
+          continue;
+        }
+
+        // Only decode the part in the region
+        rectF.set(piece.rect);
+        if (!rectF.intersect(src)) {
+          continue;
+        }
+        rectF.roundOut(region);
+        if (!region.intersect(piece.rect)) {
+          continue;
+        }
+        Bitmap bitmap = decoder.decode(region, sample);
+        if (bitmap == null) {
+          Log.e(LOG_TAG, "Can't decode region " + region + " at sample " + sample);
+          success = false;
+          continue;
+        }
+        rectF.set(region);
+        Utils.mapRect(src, dst, rectF, pieceDst);
+        canvas.drawBitmap(bitmap, null, pieceDst, paint);
+        decoder.recycle(bitmap);
+      }
+
+      return success;
+    }
+
+    private void release() {
+      for (Piece piece : pieces) {
+        Tile tile = piece.tile;
+        if (tile != null) {
+          drawable.unpinTile(tile, sample);
+        } else if (piece.bitmap != null) {
+          // The copy of the preview
+          piece.bitmap.recycle();
+        }
+      }
+      pieces.clear();
+      if (preview != null) {
+        decoder.unpinPreview(preview);
+        preview = null;
+      }
+    }
+
+    @Override
+    protected void onPostExecute(Boolean success) {
+      drawable.onDecodingFinished();
+      release();
+      callback.onRenderFinished(out, success);
+    }
+
+    @Override
+    protected void onCancelled(Boolean success) {
+      drawable.onDecodingFinished();
+      release();
+      callback.onRenderFinished(out, false);
+    }
+  }
+
+  /*
+   * A region to draw, with the pixels of a pinned tile if it's resident.
+   */
+  private static class Piece {
+    // Source rect
+    private final Rect rect;
+    @Nullable
+    private Tile tile;
+    @Nullable
+    private Bitmap bitmap;
+    @Nullable
+    private TileSlotPool.Slot slot;
+
+    private Piece(Rect rect) {
+      this.rect = rect;
+    }
+  }
+
+  private static class RestorePreviewTask extends AsyncTask<Void, Void, Bitmap> {
+
+    private final TiledDrawable drawable;
+    private final ImageRegionDecoder decoder;
+    private final int sample;
+
+    private RestorePreviewTask(TiledDrawable drawable, ImageRegionDecoder decoder, int sample) {
+      this.drawable = drawable;
+      this.decoder = decoder;
+      this.sample = sample;
+    }
+
+    @Override
+    protected Bitmap doInBackground(Void... voids) {
+      if (!decoder.acquire()) {
+        return null;
+      }
+      try {
+        return decoder.loadPreview(sample);
+      } finally {
+        decoder.release();
+      }
+    }
+
+    @Override
+    protected void onPostExecute(Bitmap bitmap) {
+      drawable.restoreTask = null;
+      drawable.onDecodingFinished();
+      if (bitmap == null) {
+        Log.e(LOG_TAG, "Can't restore preview at sample " + sample);
+        return;
+      }
+      // The decoder isn't recycled if the drawable isn't recycled
+      if (drawable.recycled || decoder.getPreviewSample() <= sample) {
+        // Already restored by other TiledDrawables sharing the decoder
+        decoder.recycle(bitmap);
+        return;
+      }
+      decoder.setPreview(bitmap, sample);
+      drawable.invalidateViews();
+    }
+
+    @Override
+    protected void onCancelled(Bitmap bitmap) {
+      drawable.onDecodingFinished();
       if (bitmap != null) {
         decoder.recycle(bitmap);
       }
     }
   }
 
+  /*
+   * Scales the preview down to a coarser mip level in background.
+   */
+  private static class DowngradePreviewTask extends AsyncTask<Void, Void, Bitmap> {
+
+    private final TiledDrawable drawable;
+    private final ImageRegionDecoder decoder;
+    private final int sample;
+    @Nullable
+    private Bitmap preview;
+    private int previewSample;
+
+    private DowngradePreviewTask(TiledDrawable drawable, ImageRegionDecoder decoder, int sample) {
+      this.drawable = drawable;
+      this.decoder = decoder;
+      this.sample = sample;
+    }
+
+    @Override
+    protected void onPreExecute() {
+      // The preview might be replaced in the main thread, read it in background
+      previewSample = decoder.getPreviewSample();
+      preview = decoder.pinPreview();
+    }
+
+    @Override
+    protected Bitmap doInBackground(Void... voids) {
+      return preview != null ? ImageRegionDecoder.scalePreview(preview, previewSample, sample)
+          : null;
+    }
+
+    @Override
+    protected void onPostExecute(Bitmap bitmap) {
+      drawable.downgradeTask = null;
+      drawable.onDecodingFinished();
+      release();
+      if (bitmap == null) {
+        return;
+      }
+      // The decoder isn't recycled if the drawable isn't recycled
+      if (drawable.recycled || decoder.getPreviewSample() >= sample
+          || decoder.getPreviewDemand() < sample) {
+        // Already downgraded, or it's needed bigger now
+        decoder.recycle(bitmap);
+        return;
+      }
+      decoder.setPreview(bitmap, sample);
+      drawable.invalidateViews();
+    }
+
+    @Override
+    protected void onCancelled(Bitmap bitmap) {
+      drawable.onDecodingFinished();
+      release();
+      if (bitmap != null) {
+        decoder.recycle(bitmap);
+      }
+    }
+
+    private void release() {
+      if (preview != null) {
+        decoder.unpinPreview(preview);
+        preview = null;
+      }
+    }
+  }
+
   private static class RecycleDecoderTask extends AsyncTask<Void, Void, Void> {
 
     private ImageRegionDecoder decoder;
@@ -377,7 +2369,8 @@ public class TiledDrawable extends Drawable implements PreciseDrawable {
 
     @Override
     protected Void doInBackground(Void... voids) {
-      decoder.recycle();
+      // Tasks of the drawable might still be decoding
+      decoder.recycleWhenIdle();
       return null;
     }
   }
@@ -28,6 +28,7 @@ import android.graphics.drawable.Drawable;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.view.animation.AnimationUtils;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.Arrays;
@@ -40,6 +41,16 @@ public class TransformableDrawable extends WrapperDrawable {
   private static final float MIN_SCALE = 1.0f;
   private static final float MAX_SCALE = 3.0f;
 
+  private static final int ANIMATION_NONE = 0;
+  private static final int ANIMATION_FLING = 1;
+  private static final int ANIMATION_SCALE = 2;
+
+  // The bigger, the faster fling velocity decays, in 1/s
+  private static final float FLING_FRICTION = 4.0f;
+  // Fling stops if the velocity is smaller than it, in px/s
+  private static final float FLING_MIN_VELOCITY = 20.0f;
+  private static final long SCALE_DURATION = 300;
+
   @IntDef({SCALE_TYPE_ORIGIN, SCALE_TYPE_FIT_WIDTH, SCALE_TYPE_FIT_HEIGHT,
       SCALE_TYPE_FIT, SCALE_TYPE_FIXED})
   @Retention(RetentionPolicy.SOURCE)
@@ -82,10 +93,28 @@ public class TransformableDrawable extends WrapperDrawable {
 
   private float minScale;
   private float maxScale;
-  private float[] scaleLevels;
+  // Reused, only the first scaleLevelCount values are valid
+  private final float[] scaleLevels = new float[4];
+  private int scaleLevelCount;
+
+  private int animation = ANIMATION_NONE;
+  private long animationStart;
+  private long animationDuration;
+  private float animationStartX;
+  private float animationStartY;
+  private float flingVelocityX;
+  private float flingVelocityY;
+  private float scaleFrom;
+  private float scaleTo;
+  private float scalePivotX;
+  private float scalePivotY;
+  private RectF targetSrcRectF = new RectF();
+  private RectF targetDstRectF = new RectF();
 
   @Override
   public void onSetWrappedDrawable(@Nullable Drawable oldDrawable, @Nullable Drawable newDrawable) {
+    // The old drawable is gone, don't notify it
+    animation = ANIMATION_NONE;
     if (newDrawable != null) {
       newDrawable.setCallback(this);
       updateWrapperDrawableBounds();
@@ -121,7 +150,8 @@ public class TransformableDrawable extends WrapperDrawable {
    */
   public float getNextScaleLevel() {
     float result = scaleLevels[0];
-    for (float value: scaleLevels) {
+    for (int i = 0; i < scaleLevelCount; i++) {
+      float value = scaleLevels[i];
       if (scale < value - 0.01f) {
         result = value;
         break;
@@ -179,14 +209,14 @@ public class TransformableDrawable extends WrapperDrawable {
 
     float wScale = (float) vWidth / (float) dWidth;
     float hScale = (float) vHeight / (float) dHeight;
-    if (Math.max(wScale, hScale) < MAX_SCALE) {
-      scaleLevels = new float[] {MIN_SCALE, wScale, hScale, MAX_SCALE};
-    } else {
-      scaleLevels = new float[] {MIN_SCALE, wScale, hScale};
-    }
-    Arrays.sort(scaleLevels);
+    scaleLevels[0] = MIN_SCALE;
+    scaleLevels[1] = wScale;
+    scaleLevels[2] = hScale;
+    scaleLevels[3] = MAX_SCALE;
+    scaleLevelCount = Math.max(wScale, hScale) < MAX_SCALE ? 4 : 3;
+    Arrays.sort(scaleLevels, 0, scaleLevelCount);
     minScale = scaleLevels[0];
-    maxScale = scaleLevels[scaleLevels.length - 1];
+    maxScale = scaleLevels[scaleLevelCount - 1];
   }
 
   /*
@@ -282,22 +312,25 @@ public class TransformableDrawable extends WrapperDrawable {
     float tWidth = width * scale;
     float tHeight = height * scale;
 
-    if (tWidth > vWidth) {
-      offsetX = Utils.clamp(offsetX, vWidth - tWidth, 0);
-    } else {
-      offsetX = (vWidth - tWidth) / 2;
-    }
+    offsetX = fixOffset(offsetX, vWidth, tWidth);
+    offsetY = fixOffset(offsetY, vHeight, tHeight);
 
-    if (tHeight > vHeight) {
-      offsetY = Utils.clamp(offsetY, vHeight - tHeight, 0);
+    drawRectFDirty = true;
+  }
+
+  /*
+   * Keeps content in view if it's bigger than view, or centers it.
+   */
+  private static float fixOffset(float offset, float viewSize, float contentSize) {
+    if (contentSize > viewSize) {
+      return Utils.clamp(offset, viewSize - contentSize, 0);
     } else {
-      offsetY = (vHeight - tHeight) / 2;
+      return (viewSize - contentSize) / 2;
     }
-
-    drawRectFDirty = true;
   }
 
   public void setScale(float scale) {
+    stopAnimation();
     if (scaleType != SCALE_TYPE_FIXED || this.scale != scale) {
       this.scale = scale;
       scaleType = SCALE_TYPE_FIXED;
@@ -308,6 +341,7 @@ public class TransformableDrawable extends WrapperDrawable {
   }
 
   public void setScaleType(int scaleType) {
+    stopAnimation();
     if (this.scaleType != scaleType) {
       this.scaleType = scaleType;
       resetLayout();
@@ -316,6 +350,7 @@ public class TransformableDrawable extends WrapperDrawable {
   }
 
   public void setStartPosition(int startPosition) {
+    stopAnimation();
     if (this.startPosition != startPosition) {
       this.startPosition = startPosition;
       resetLayout();
@@ -332,6 +367,8 @@ public class TransformableDrawable extends WrapperDrawable {
       return;
     }
 
+    stopAnimation();
+
     float oldOffsetX = offsetX;
     float oldOffsetY = offsetY;
     offsetX += dx;
@@ -357,6 +394,8 @@ public class TransformableDrawable extends WrapperDrawable {
       return;
     }
 
+    stopAnimation();
+
     float oldScale = scale;
     scale = Utils.clamp(scale * factor, minScale, maxScale);
     float actualFactor = scale / oldScale;
@@ -377,6 +416,184 @@ public class TransformableDrawable extends WrapperDrawable {
     invalidateSelf();
   }
 
+  /**
+   * Flings the drawable. The velocity decays until the drawable stops.
+   * The velocity is in the same direction as {@link #scroll(float, float)}, in pixels per second.
+   *
+   * Any other transformation stops the fling.
+   */
+  public void fling(float velocityX, float velocityY) {
+    if (width <= 0 || height <= 0) {
+      return;
+    }
+
+    stopAnimation();
+
+    float velocity = (float) Math.hypot(velocityX, velocityY);
+    if (velocity <= FLING_MIN_VELOCITY) {
+      return;
+    }
+
+    animation = ANIMATION_FLING;
+    animationStart = AnimationUtils.currentAnimationTimeMillis();
+    animationDuration = (long) (Math.log(velocity / FLING_MIN_VELOCITY) / FLING_FRICTION * 1000);
+    animationStartX = offsetX;
+    animationStartY = offsetY;
+    flingVelocityX = velocityX;
+    flingVelocityY = velocityY;
+
+    float distance = flingDistance(animationDuration);
+    notifyAnimationStart(scale, offsetX + velocityX * distance, offsetY + velocityY * distance);
+
+    invalidateSelf();
+  }
+
+  /*
+   * Returns the distance a fling with 1 px/s velocity goes in the time.
+   */
+  private static float flingDistance(long time) {
+    return (float) (1.0 - Math.exp(-FLING_FRICTION * time / 1000.0)) / FLING_FRICTION;
+  }
+
+  /**
+   * Scales the drawable to the target scale with an animation.
+   * {@code (x, y)} is the pivot, the same as {@link #scale(float, float, float)}.
+   *
+   * Any other transformation stops the animation.
+   */
+  public void animateScale(float x, float y, float targetScale) {
+    if (width <= 0 || height <= 0) {
+      return;
+    }
+
+    stopAnimation();
+
+    targetScale = Utils.clamp(targetScale, minScale, maxScale);
+    if (targetScale == scale) {
+      return;
+    }
+
+    animation = ANIMATION_SCALE;
+    animationStart = AnimationUtils.currentAnimationTimeMillis();
+    animationDuration = SCALE_DURATION;
+    scaleFrom = scale;
+    scaleTo = targetScale;
+    scalePivotX = x;
+    scalePivotY = y;
+
+    float factor = targetScale / scale;
+    notifyAnimationStart(targetScale, x - (x - offsetX) * factor, y - (y - offsetY) * factor);
+
+    invalidateSelf();
+  }
+
+  /**
+   * Scales the drawable to {@link #getNextScaleLevel()} with an animation.
+   *
+   * @see #animateScale(float, float, float)
+   */
+  public void animateToNextScaleLevel(float x, float y) {
+    if (scaleLevelCount != 0) {
+      animateScale(x, y, getNextScaleLevel());
+    }
+  }
+
+  /**
+   * Returns true if a fling or a scale animation is running.
+   */
+  public boolean isAnimating() {
+    return animation != ANIMATION_NONE;
+  }
+
+  /**
+   * Stops the running fling or scale animation.
+   */
+  public void stopAnimation() {
+    if (animation != ANIMATION_NONE) {
+      animation = ANIMATION_NONE;
+      Drawable drawable = getDrawable();
+      if (drawable instanceof AnimationAwareDrawable) {
+        ((AnimationAwareDrawable) drawable).onAnimationEnd();
+      }
+    }
+  }
+
+  /*
+   * Tells AnimationAwareDrawable the regions to draw when the animation ends.
+   */
+  private void notifyAnimationStart(float targetScale, float targetOffsetX, float targetOffsetY) {
+    Drawable drawable = getDrawable();
+    if (!(drawable instanceof AnimationAwareDrawable)) {
+      return;
+    }
+
+    float oldScale = scale;
+    float oldOffsetX = offsetX;
+    float oldOffsetY = offsetY;
+    scale = targetScale;
+    offsetX = targetOffsetX;
+    offsetY = targetOffsetY;
+    fixLayout();
+    computeDrawRectF(targetSrcRectF, targetDstRectF);
+    scale = oldScale;
+    offsetX = oldOffsetX;
+    offsetY = oldOffsetY;
+    drawRectFDirty = true;
+
+    ((AnimationAwareDrawable) drawable).onAnimationStart(targetSrcRectF, targetDstRectF);
+  }
+
+  /*
+   * Applies the animation at current time.
+   */
+  private void stepAnimation() {
+    long elapsed = AnimationUtils.currentAnimationTimeMillis() - animationStart;
+    boolean finished = elapsed >= animationDuration;
+    if (finished) {
+      elapsed = animationDuration;
+    }
+
+    switch (animation) {
+      case ANIMATION_FLING: {
+        float distance = flingDistance(elapsed);
+        float x = animationStartX + flingVelocityX * distance;
+        float y = animationStartY + flingVelocityY * distance;
+        offsetX = x;
+        offsetY = y;
+        fixLayout();
+        // Stop the axes which reach the edges
+        if (offsetX != x) {
+          animationStartX = offsetX;
+          flingVelocityX = 0.0f;
+        }
+        if (offsetY != y) {
+          animationStartY = offsetY;
+          flingVelocityY = 0.0f;
+        }
+        if (flingVelocityX == 0.0f && flingVelocityY == 0.0f) {
+          finished = true;
+        }
+        break;
+      }
+      case ANIMATION_SCALE: {
+        float fraction = (float) elapsed / (float) animationDuration;
+        // Decelerate
+        fraction = 1.0f - (1.0f - fraction) * (1.0f - fraction);
+        float newScale = scaleFrom + (scaleTo - scaleFrom) * fraction;
+        float factor = newScale / scale;
+        offsetX = scalePivotX - (scalePivotX - offsetX) * factor;
+        offsetY = scalePivotY - (scalePivotY - offsetY) * factor;
+        scale = newScale;
+        fixLayout();
+        break;
+      }
+    }
+
+    if (finished) {
+      stopAnimation();
+    }
+  }
+
   /*
    * Apply bounds, visibleRect, scale, offsetX, offsetY to
    * srcRectF and dstRectF.
@@ -386,10 +603,11 @@ public class TransformableDrawable extends WrapperDrawable {
       return;
     }
     drawRectFDirty = false;
+    computeDrawRectF(srcRectF, dstRectF);
+  }
 
+  private void computeDrawRectF(RectF srcRectF, RectF dstRectF) {
     Rect bounds = getBounds();
-    RectF srcRectF = this.srcRectF;
-    RectF dstRectF = this.dstRectF;
 
     dstRectF.set(bounds);
 
@@ -428,6 +646,10 @@ public class TransformableDrawable extends WrapperDrawable {
     Drawable drawable = getDrawable();
 
     if (drawable != null && width > 0 && height > 0 && !bounds.isEmpty()) {
+      if (animation != ANIMATION_NONE) {
+        stepAnimation();
+      }
+
       if (drawable instanceof PreciseDrawable) {
         updateDrawRectF();
         ((PreciseDrawable) drawable).draw(canvas, srcRectF, dstRectF);
@@ -439,6 +661,11 @@ public class TransformableDrawable extends WrapperDrawable {
         drawable.draw(canvas);
         canvas.restoreToCount(saved);
       }
+
+      if (animation != ANIMATION_NONE) {
+        // Next frame
+        invalidateSelf();
+      }
     }
   }
 
@@ -21,6 +21,8 @@ package com.hippo.android.largeimage;
  */
 
 import android.graphics.RectF;
+import java.io.Closeable;
+import java.io.IOException;
 
 class Utils {
 
@@ -111,6 +113,54 @@ class Utils {
     return -floorDiv(-a, b);
   }
 
+  /**
+   * Returns the effective sample of a {@code previewWidth x previewHeight} preview
+   * of a {@code width x height} image, the smallest power of 2 which samples
+   * the image to a size not bigger than the preview. Returns 0 if the aspect ratio
+   * of the preview doesn't match the image, like a thumbnail with black bars.
+   *
+   * @param width the width of the image
+   * @param height the height of the image
+   * @param previewWidth the width of the preview
+   * @param previewHeight the height of the preview
+   * @return the effective sample
+   */
+  public static int effectiveSample(int width, int height, int previewWidth, int previewHeight) {
+    if (width <= 0 || height <= 0 || previewWidth <= 0 || previewHeight <= 0) {
+      return 0;
+    }
+
+    // Allow one pixel of rounding error in the preview
+    long error = Math.abs((long) previewHeight * width - (long) previewWidth * height);
+    if (error > Math.max(width, height)) {
+      return 0;
+    }
+
+    int sample = 1;
+    while (ceilDiv(width, sample) > previewWidth || ceilDiv(height, sample) > previewHeight) {
+      sample *= 2;
+    }
+    return sample;
+  }
+
+  /**
+   * Returns {@code true} if a {@code previewWidth x previewHeight} preview of
+   * a {@code width x height} image isn't bigger than the image sampled at
+   * {@code sample}, and the aspect ratio of it matches the image.
+   *
+   * @param width the width of the image
+   * @param height the height of the image
+   * @param previewWidth the width of the preview
+   * @param previewHeight the height of the preview
+   * @param sample the sample which limits the size of the preview
+   * @return whether the preview can be used at the sample
+   */
+  public static boolean fitsSample(int width, int height, int previewWidth, int previewHeight,
+      int sample) {
+    return effectiveSample(width, height, previewWidth, previewHeight) != 0
+        && previewWidth <= ceilDiv(width, sample) && previewHeight <= ceilDiv(height, sample);
+  }
+
   /**
    *                                            dst
    *        src                          +---------------+
@@ -134,4 +184,19 @@ class Utils {
         dX + (s.right - sX) * scaleX,
         dY + (s.bottom - sY) * scaleY);
   }
+
+  /**
+   * Closes the closeable, ignores any exception.
+   *
+   * @param closeable the closeable to close, might be {@code null}
+   */
+  public static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+    }
+  }
 }
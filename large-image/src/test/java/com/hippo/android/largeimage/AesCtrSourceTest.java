@@ -0,0 +1,166 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AesCtrSourceTest {
+
+  private static final int LENGTH = 100000;
+
+  private final byte[] key = new byte[16];
+  // Close to overflow, the counter carries
+  private final byte[] iv = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11,
+      (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xF0};
+  private final byte[] plain = new byte[LENGTH];
+  private File file;
+
+  /*
+   * Counts the bytes read from the source.
+   */
+  private static class CountingSource implements SeekableSource {
+
+    private final SeekableSource source;
+    private long count;
+
+    private CountingSource(SeekableSource source) {
+      this.source = source;
+    }
+
+    @Override
+    public long length() throws IOException {
+      return source.length();
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+      int read = source.read(position, buffer, offset, length);
+      count += Math.max(0, read);
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      source.close();
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    Random random = new Random(0);
+    random.nextBytes(key);
+    random.nextBytes(plain);
+
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+    byte[] encrypted = cipher.doFinal(plain);
+
+    file = File.createTempFile("image", ".enc");
+    OutputStream os = new FileOutputStream(file);
+    try {
+      os.write(encrypted);
+    } finally {
+      os.close();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testRandomRead() throws IOException {
+    CountingSource counting = new CountingSource(new FileSource(file));
+    SeekableSource source = new AesCtrSource(counting, key, iv);
+    try {
+      assertEquals(LENGTH, source.length());
+
+      Random random = new Random(1);
+      for (int i = 0; i < 200; i++) {
+        int position = random.nextInt(LENGTH);
+        int length = random.nextInt(5000);
+        byte[] buffer = new byte[length + 2];
+        int read = source.read(position, buffer, 1, length);
+        assertEquals(Math.min(length, LENGTH - position), read);
+        assertArrayEquals(Arrays.copyOfRange(plain, position, position + read),
+            Arrays.copyOfRange(buffer, 1, 1 + read));
+      }
+
+      // Only the requested range is read
+      counting.count = 0;
+      byte[] buffer = new byte[10];
+      assertEquals(10, source.read(LENGTH - 10, buffer, 0, 10));
+      assertEquals(10, counting.count);
+      assertArrayEquals(Arrays.copyOfRange(plain, LENGTH - 10, LENGTH), buffer);
+
+      assertEquals(-1, source.read(LENGTH, buffer, 0, 10));
+    } finally {
+      source.close();
+    }
+  }
+
+  @Test
+  public void testInputStream() throws IOException {
+    SeekableSource source = new AesCtrSource(new FileSource(file), key, iv);
+    try {
+      InputStream is = new SourceInputStream(source);
+      assertEquals(plain[0] & 0xFF, is.read());
+      is.mark(0);
+      assertEquals(plain[1] & 0xFF, is.read());
+      assertEquals(50000, is.skip(50000));
+      is.reset();
+
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      byte[] buffer = new byte[3000];
+      int n;
+      while ((n = is.read(buffer)) >= 0) {
+        os.write(buffer, 0, n);
+      }
+      assertArrayEquals(Arrays.copyOfRange(plain, 1, LENGTH), os.toByteArray());
+      assertEquals(-1, is.read());
+    } finally {
+      source.close();
+    }
+  }
+
+  @Test
+  public void testCounter() {
+    byte[] iv = new byte[16];
+    Arrays.fill(iv, 4, 16, (byte) 0xFF);
+    byte[] expected = new byte[16];
+    expected[3] = 1;
+    expected[15] = 1;
+    assertArrayEquals(expected, AesCtrSource.counter(iv, 2));
+  }
+}
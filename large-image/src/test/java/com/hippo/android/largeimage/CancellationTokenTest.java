@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class CancellationTokenTest {
+
+  private static final int ROWS = 100000;
+
+  private static class PlainDecoder extends ImageRegionDecoder {
+
+    private int decodeCount;
+
+    @Override
+    public int getWidth() {
+      return 1;
+    }
+
+    @Override
+    public int getHeight() {
+      return ROWS;
+    }
+
+    @Override
+    public Bitmap decode(Rect rect, int sample) {
+      decodeCount++;
+      return null;
+    }
+
+    @Override
+    public void recycle(Bitmap bitmap) {}
+  }
+
+  @Test
+  public void testListener() {
+    final AtomicInteger count = new AtomicInteger();
+    Runnable listener = new Runnable() {
+      @Override
+      public void run() {
+        count.incrementAndGet();
+      }
+    };
+
+    CancellationToken token = new CancellationToken();
+    token.setOnCancelListener(listener);
+    assertFalse(token.isCancelled());
+    token.cancel();
+    token.cancel();
+    assertTrue(token.isCancelled());
+    assertEquals(1, count.get());
+
+    // Called immediately if it's cancelled
+    token.setOnCancelListener(listener);
+    assertEquals(2, count.get());
+
+    // Removed
+    token = new CancellationToken();
+    token.setOnCancelListener(listener);
+    token.setOnCancelListener(null);
+    token.cancel();
+    assertEquals(2, count.get());
+  }
+
+  @Test
+  public void testDefaultChecksBeforeDecoding() {
+    PlainDecoder decoder = new PlainDecoder();
+    CancellationToken token = new CancellationToken();
+    decoder.decodeInto(null, 1, null, token);
+    assertEquals(1, decoder.decodeCount);
+
+    token.cancel();
+    assertNull(decoder.decodeInto(null, 1, null, token));
+    assertEquals(1, decoder.decodeCount);
+  }
+}
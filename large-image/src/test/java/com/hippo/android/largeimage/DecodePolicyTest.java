@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertEquals;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import org.junit.Test;
+
+public class DecodePolicyTest {
+
+  private static final int PROCESSORS = 4;
+
+  private static class TestDecoder extends ImageRegionDecoder {
+
+    private final int capabilities;
+    private final int maxConcurrency;
+
+    private TestDecoder(int capabilities, int maxConcurrency) {
+      this.capabilities = capabilities;
+      this.maxConcurrency = maxConcurrency;
+    }
+
+    @Override
+    public int getWidth() {
+      return 1;
+    }
+
+    @Override
+    public int getHeight() {
+      return 1;
+    }
+
+    @Override
+    public Bitmap decode(Rect rect, int sample) {
+      return null;
+    }
+
+    @Override
+    public void recycle(Bitmap bitmap) {}
+
+    @Override
+    public int getCapabilities() {
+      return capabilities;
+    }
+
+    @Override
+    public int getMaxConcurrency() {
+      return maxConcurrency;
+    }
+  }
+
+  @Test
+  public void testAllCombinations() {
+    int all = ImageRegionDecoder.CAPABILITY_CONCURRENT_DECODE
+        | ImageRegionDecoder.CAPABILITY_REUSE_BITMAP
+        | ImageRegionDecoder.CAPABILITY_ANY_SAMPLE
+        | ImageRegionDecoder.CAPABILITY_CHEAP_CANCEL;
+
+    for (int capabilities = 0; capabilities <= all; capabilities++) {
+      DecodePolicy policy = new DecodePolicy(
+          new TestDecoder(capabilities, Integer.MAX_VALUE), PROCESSORS);
+
+      boolean concurrent = (capabilities & ImageRegionDecoder.CAPABILITY_CONCURRENT_DECODE) != 0;
+      boolean reuse = (capabilities & ImageRegionDecoder.CAPABILITY_REUSE_BITMAP) != 0;
+      boolean anySample = (capabilities & ImageRegionDecoder.CAPABILITY_ANY_SAMPLE) != 0;
+      boolean cancel = (capabilities & ImageRegionDecoder.CAPABILITY_CHEAP_CANCEL) != 0;
+
+      int parallelism = concurrent ? PROCESSORS : 1;
+      assertEquals(parallelism, policy.getParallelism());
+      assertEquals(reuse, policy.isBitmapReused());
+      assertEquals(reuse ? parallelism + 1 : 0, policy.getReusePoolSize());
+      assertEquals(cancel, policy.isRunningCancelled());
+
+      assertEquals(1, policy.getDecodeSample(0));
+      assertEquals(4, policy.getDecodeSample(4));
+      assertEquals(anySample ? 3 : 2, policy.getDecodeSample(3));
+      assertEquals(anySample ? 7 : 4, policy.getDecodeSample(7));
+    }
+  }
+
+  @Test
+  public void testMaxConcurrency() {
+    int capabilities = ImageRegionDecoder.CAPABILITY_CONCURRENT_DECODE;
+    assertEquals(2, new DecodePolicy(new TestDecoder(capabilities, 2), PROCESSORS).getParallelism());
+    assertEquals(1, new DecodePolicy(new TestDecoder(capabilities, 0), PROCESSORS).getParallelism());
+    // Limited by the decoder only if it's concurrent
+    assertEquals(1, new DecodePolicy(new TestDecoder(0, 8), PROCESSORS).getParallelism());
+  }
+}
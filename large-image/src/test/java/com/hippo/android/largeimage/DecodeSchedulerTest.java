@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class DecodeSchedulerTest {
+
+  private static class CountingThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      count.incrementAndGet();
+      Thread thread = new Thread(r);
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  private static Runnable record(final List<String> order, final String name,
+      final CountDownLatch done) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        order.add(name);
+        done.countDown();
+      }
+    };
+  }
+
+  private static Runnable block(final CountDownLatch started, final CountDownLatch release) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+  }
+
+  @Test
+  public void testFocusAndFairness() throws InterruptedException {
+    DecodeScheduler scheduler = new DecodeScheduler(1, new CountingThreadFactory());
+    DecodeScheduler.Lane blocker = scheduler.newLane();
+    DecodeScheduler.Lane a = scheduler.newLane();
+    DecodeScheduler.Lane b = scheduler.newLane();
+    DecodeScheduler.Lane focused = scheduler.newLane();
+    focused.setFocused(true);
+
+    // Hold the only thread until all tasks are queued
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    blocker.execute(block(started, release));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch done = new CountDownLatch(8);
+    for (int i = 1; i <= 3; i++) {
+      a.execute(record(order, "a" + i, done));
+    }
+    for (int i = 1; i <= 3; i++) {
+      b.execute(record(order, "b" + i, done));
+    }
+    for (int i = 1; i <= 2; i++) {
+      focused.execute(record(order, "f" + i, done));
+    }
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+
+    assertEquals(Arrays.asList("f1", "f2", "a1", "b1", "a2", "b2", "a3", "b3"), order);
+    scheduler.shutdown();
+  }
+
+  @Test
+  public void testThreadCount() throws InterruptedException {
+    CountingThreadFactory factory = new CountingThreadFactory();
+    DecodeScheduler scheduler = new DecodeScheduler(2, factory);
+    DecodeScheduler.Lane a = scheduler.newLane();
+    DecodeScheduler.Lane b = scheduler.newLane();
+    DecodeScheduler.Lane c = scheduler.newLane();
+
+    CountDownLatch started = new CountDownLatch(2);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(10);
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    a.execute(block(started, release));
+    b.execute(block(started, release));
+    for (int i = 0; i < 10; i++) {
+      c.execute(record(order, Integer.toString(i), done));
+    }
+    // Both threads are running
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(2, factory.count.get());
+
+    scheduler.shutdown();
+    try {
+      a.execute(record(order, "rejected", done));
+      fail();
+    } catch (RejectedExecutionException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testLaneIsSerial() throws InterruptedException {
+    DecodeScheduler scheduler = new DecodeScheduler(4, new CountingThreadFactory());
+    DecodeScheduler.Lane lane = scheduler.newLane();
+    DecodeScheduler.Lane other = scheduler.newLane();
+
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch done = new CountDownLatch(20);
+    for (int i = 0; i < 20; i++) {
+      final String name = Integer.toString(i);
+      lane.execute(new Runnable() {
+        @Override
+        public void run() {
+          int count = running.incrementAndGet();
+          maxRunning.set(Math.max(maxRunning.get(), count));
+          try {
+            Thread.sleep(1);
+          } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+          }
+          order.add(name);
+          running.decrementAndGet();
+          done.countDown();
+        }
+      });
+    }
+    // Other lanes still run on free threads
+    CountDownLatch otherDone = new CountDownLatch(1);
+    other.execute(record(Collections.synchronizedList(new ArrayList<String>()), "o", otherDone));
+    assertTrue(otherDone.await(5, TimeUnit.SECONDS));
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+
+    assertEquals(1, maxRunning.get());
+    for (int i = 0; i < 20; i++) {
+      assertEquals(Integer.toString(i), order.get(i));
+    }
+    scheduler.shutdown();
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Runs the per-frame code of TiledDrawable.draw(), sample selection, QualityGovernor
+ * and GridViewport, across a scripted pan and zoom sequence, and checks that
+ * no object is allocated. Canvas drawing needs the Android framework,
+ * so it isn't covered here.
+ */
+public class FrameLogicAllocationTest {
+
+  private static final int IMAGE_WIDTH = 20000;
+  private static final int IMAGE_HEIGHT = 15000;
+  private static final int VIEW_WIDTH = 1080;
+  private static final int VIEW_HEIGHT = 1920;
+  private static final int TILE_SIZE = 1920;
+  private static final int MAX_SAMPLE = 16;
+  private static final int FRAMES = 600;
+  private static final int RUNS = 5;
+
+  private final TileGrid[] grids = new TileGrid[MAX_SAMPLE + 1];
+  private final List<List<Cell>> cells = new ArrayList<>();
+  private final QualityGovernor governor = new QualityGovernor();
+  private final Counter counter = new Counter();
+  private final GridViewport<Cell> viewport = new GridViewport<>(counter);
+
+  private static class Cell {
+    private int views;
+  }
+
+  private class Counter implements GridViewport.Listener<Cell> {
+    private int visible;
+    private int changes;
+
+    @Override
+    public TileGrid getGrid(int sample) {
+      return grids[sample];
+    }
+
+    @Override
+    public List<Cell> getTiles(int sample) {
+      return cells.get(sample);
+    }
+
+    @Override
+    public void onTileEnter(Cell cell, int sample) {
+      cell.views++;
+      visible++;
+      changes++;
+    }
+
+    @Override
+    public void onTileLeave(Cell cell, int sample) {
+      cell.views--;
+      assertTrue(cell.views >= 0);
+      visible--;
+      changes++;
+    }
+  }
+
+  private static int[] edges(int length, int tileSize) {
+    int count = Utils.ceilDiv(length, tileSize);
+    int[] edges = new int[count + 1];
+    for (int i = 1; i < count; i++) {
+      edges[i] = i * tileSize;
+    }
+    edges[count] = length;
+    return edges;
+  }
+
+  public FrameLogicAllocationTest() {
+    for (int sample = 0; sample <= MAX_SAMPLE; sample++) {
+      cells.add(null);
+    }
+    for (int sample = MAX_SAMPLE; sample >= 1; sample /= 2) {
+      int size = TILE_SIZE * sample;
+      TileGrid grid = new TileGrid(edges(IMAGE_WIDTH, size), edges(IMAGE_HEIGHT, size));
+      grids[sample] = grid;
+      List<Cell> list = new ArrayList<>();
+      for (int i = 0, n = grid.getColumnCount() * grid.getRowCount(); i < n; i++) {
+        list.add(new Cell());
+      }
+      cells.set(sample, list);
+    }
+  }
+
+  /*
+   * One frame of TiledDrawable.draw() with the src rect of TransformableDrawable.
+   */
+  private void frame(float scale, float centerX, float centerY, long now) {
+    float srcWidth = VIEW_WIDTH / scale;
+    float srcHeight = VIEW_HEIGHT / scale;
+    float left = centerX - srcWidth / 2;
+    float top = centerY - srcHeight / 2;
+    float right = left + srcWidth;
+    float bottom = top + srcHeight;
+
+    int displaySample = TiledDrawable.calculateSample(srcWidth, srcHeight, VIEW_WIDTH, VIEW_HEIGHT);
+    int sample = Math.min(MAX_SAMPLE, displaySample);
+    long area = TiledDrawable.getVisibleArea(left, top, right, bottom, IMAGE_WIDTH, IMAGE_HEIGHT);
+    sample = governor.apply(sample, MAX_SAMPLE, area, 0.5f, now);
+
+    if (TiledDrawable.drawsPreview(false, sample, displaySample, MAX_SAMPLE, MAX_SAMPLE)) {
+      viewport.clear();
+    } else {
+      viewport.update(sample, left, top, right, bottom);
+    }
+    governor.onDecoded(TILE_SIZE * TILE_SIZE, 20000000L);
+  }
+
+  /*
+   * Zooms in from fit, pans across the image, then zooms out.
+   */
+  private void script() {
+    float fit = (float) VIEW_WIDTH / IMAGE_WIDTH;
+    long now = 0;
+    for (int i = 0; i < FRAMES; i++, now += 16) {
+      float t = (float) i / FRAMES;
+      float scale;
+      float centerX;
+      if (t < 0.3f) {
+        scale = fit + (1.0f - fit) * (t / 0.3f);
+        centerX = IMAGE_WIDTH / 2;
+      } else if (t < 0.7f) {
+        scale = 1.0f;
+        centerX = IMAGE_WIDTH / 2 + (t - 0.5f) * IMAGE_WIDTH;
+      } else {
+        scale = 1.0f - (1.0f - fit) * ((t - 0.7f) / 0.3f);
+        centerX = IMAGE_WIDTH * 0.7f;
+      }
+      frame(scale, centerX, IMAGE_HEIGHT / 2 + (t - 0.5f) * 2000, now);
+    }
+  }
+
+  @Test
+  public void testNoAllocation() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(sunBean.isThreadAllocatedMemorySupported());
+    sunBean.setThreadAllocatedMemoryEnabled(true);
+    long id = Thread.currentThread().getId();
+
+    // Warm up, and get the allocation of the counter itself
+    script();
+    long start = sunBean.getThreadAllocatedBytes(id);
+    long overhead = sunBean.getThreadAllocatedBytes(id) - start;
+
+    // The JVM itself might allocate in the thread sometimes, like compiling,
+    // take the least of some runs. An allocation in the path shows in every run.
+    long allocated = Long.MAX_VALUE;
+    for (int i = 0; i < RUNS; i++) {
+      counter.changes = 0;
+      start = sunBean.getThreadAllocatedBytes(id);
+      script();
+      allocated = Math.min(allocated, sunBean.getThreadAllocatedBytes(id) - start);
+      assertTrue(counter.changes > 0);
+    }
+
+    // The script ends at fit, which draws the preview
+    assertEquals(0, counter.visible);
+    assertEquals(overhead, allocated);
+  }
+}
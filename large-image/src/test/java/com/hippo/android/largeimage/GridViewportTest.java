@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class GridViewportTest {
+
+  private static class Recorder implements GridViewport.Listener<String> {
+
+    private final List<String> events = new ArrayList<>();
+
+    @Override
+    public TileGrid getGrid(int sample) {
+      switch (sample) {
+        case 1:
+          return new TileGrid(new int[] {0, 100, 200, 300, 400}, new int[] {0, 100, 200});
+        case 2:
+          return new TileGrid(new int[] {0, 200, 400}, new int[] {0, 200});
+        default:
+          return null;
+      }
+    }
+
+    @Override
+    public List<String> getTiles(int sample) {
+      TileGrid grid = getGrid(sample);
+      if (grid == null) {
+        return null;
+      }
+      // Column-major order
+      List<String> tiles = new ArrayList<>();
+      for (int column = 0; column < grid.getColumnCount(); column++) {
+        for (int row = 0; row < grid.getRowCount(); row++) {
+          tiles.add(column + "," + row);
+        }
+      }
+      return tiles;
+    }
+
+    @Override
+    public void onTileEnter(String tile, int sample) {
+      events.add("+" + sample + ":" + tile);
+    }
+
+    @Override
+    public void onTileLeave(String tile, int sample) {
+      events.add("-" + sample + ":" + tile);
+    }
+
+    private void assertEvents(String... expected) {
+      assertEquals(Arrays.asList(expected), events);
+      events.clear();
+    }
+  }
+
+  @Test
+  public void testSwitch() {
+    Recorder recorder = new Recorder();
+    GridViewport<String> viewport = new GridViewport<>(recorder);
+
+    viewport.update(1, 50, 50, 150, 150);
+    recorder.assertEvents("+1:0,0", "+1:0,1", "+1:1,0", "+1:1,1");
+    assertEquals(1, viewport.getSample());
+    assertEquals("1,1", viewport.getTile(1, 1));
+
+    viewport.update(1, 150, 50, 250, 150);
+    recorder.assertEvents("-1:0,0", "-1:0,1", "+1:2,0", "+1:2,1");
+
+    // The new tiles enter before the old tiles leave
+    viewport.update(2, 150, 50, 250, 150);
+    recorder.assertEvents("+2:0,0", "+2:1,0", "-1:1,0", "-1:1,1", "-1:2,0", "-1:2,1");
+    assertTrue(viewport.hasGrid());
+    assertEquals("1,0", viewport.getTile(1, 0));
+
+    // No grid at the sample
+    viewport.update(4, 150, 50, 250, 150);
+    recorder.assertEvents("-2:0,0", "-2:1,0");
+    assertFalse(viewport.hasGrid());
+    assertTrue(viewport.getRange().isEmpty());
+
+    viewport.clear();
+    recorder.assertEvents();
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import java.util.Random;
+import org.junit.Test;
+
+public class ImageRegionDecoderTest {
+
+  @Test
+  public void testBandEdges() {
+    assertArrayEquals(new int[] {0, 256, 512, 768, 1000},
+        ImageRegionDecoder.getBandEdges(1000, 16, 4));
+    // The last band is shorter
+    assertArrayEquals(new int[] {0, 336, 672, 1001},
+        ImageRegionDecoder.getBandEdges(1001, 16, 3));
+    // Too short to split
+    assertArrayEquals(new int[] {0, 30}, ImageRegionDecoder.getBandEdges(30, 16, 4));
+    assertArrayEquals(new int[] {0, 1000}, ImageRegionDecoder.getBandEdges(1000, 16, 1));
+
+    Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      int height = 1 + random.nextInt(5000);
+      int unit = 1 << random.nextInt(8);
+      int count = 1 + random.nextInt(16);
+      int[] edges = ImageRegionDecoder.getBandEdges(height, unit, count);
+      assertEquals(0, edges[0]);
+      assertEquals(height, edges[edges.length - 1]);
+      assertTrue(edges.length - 1 <= count);
+      for (int j = 1; j < edges.length; j++) {
+        assertTrue(edges[j] > edges[j - 1]);
+        if (j < edges.length - 1) {
+          assertEquals(0, edges[j] % unit);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testRecycleWhenIdle() {
+    StubDecoder decoder = new StubDecoder();
+    decoder.recycleWhenIdle();
+    assertTrue(decoder.isRecycled());
+    assertFalse(decoder.acquire());
+
+    decoder = new StubDecoder();
+    assertTrue(decoder.acquire());
+    assertTrue(decoder.acquire());
+    // Tasks are still decoding
+    decoder.recycleWhenIdle();
+    assertFalse(decoder.isRecycled());
+    // No new task after it
+    assertFalse(decoder.acquire());
+    decoder.release();
+    assertFalse(decoder.isRecycled());
+    // The last task recycles it
+    decoder.release();
+    assertTrue(decoder.isRecycled());
+    assertEquals(1, decoder.recycleCount);
+  }
+
+  private static class StubDecoder extends ImageRegionDecoder {
+
+    private int recycleCount;
+
+    @Override
+    public int getWidth() {
+      return 100;
+    }
+
+    @Override
+    public int getHeight() {
+      return 100;
+    }
+
+    @Override
+    public Bitmap decode(Rect rect, int sample) {
+      return null;
+    }
+
+    @Override
+    public void recycle(Bitmap bitmap) {}
+
+    @Override
+    public void recycle() {
+      super.recycle();
+      recycleCount++;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Compares tile grids snapped to JPEG MCUs with unaligned ones on a large
+ * baseline JPEG, in decoded MCUs and in decoding time with ImageIO.
+ * It takes seconds and depends on the machine, so run it manually.
+ */
+@Ignore("Benchmark")
+public class JpegAlignmentBenchmarkTest {
+
+  private static final int WIDTH = 2048;
+  private static final int HEIGHT = 1536;
+  private static final int TILE_SIZE = 500;
+  private static final int RUNS = 2;
+
+  private static byte[] encodeJpeg() throws IOException {
+    BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    Random random = new Random(0);
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        image.setRGB(x, y, (x * 255 / WIDTH) << 16 | (y * 255 / HEIGHT) << 8 | random.nextInt(64));
+      }
+    }
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    assertTrue(ImageIO.write(image, "jpg", os));
+    return os.toByteArray();
+  }
+
+  private static int[] alignedEdges(int length, int alignment) {
+    int tileSize = Math.max(alignment, TILE_SIZE / alignment * alignment);
+    return TiledDrawable.getTileEdges(length, tileSize, 0);
+  }
+
+  /*
+   * Returns the count of MCUs decoded for all tiles.
+   */
+  private static long countMcus(int[] xEdges, int[] yEdges, int mcuSize) {
+    long count = 0;
+    for (int x = 0; x < xEdges.length - 1; x++) {
+      for (int y = 0; y < yEdges.length - 1; y++) {
+        int columns = Utils.ceilDiv(xEdges[x + 1], mcuSize) - xEdges[x] / mcuSize;
+        int rows = Utils.ceilDiv(yEdges[y + 1], mcuSize) - yEdges[y] / mcuSize;
+        count += (long) columns * rows;
+      }
+    }
+    return count;
+  }
+
+  /*
+   * Decodes all tiles, returns the best time of some runs in nanoseconds.
+   */
+  private static long decodeTiles(byte[] jpeg, int[] xEdges, int[] yEdges) throws IOException {
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < RUNS; i++) {
+      long start = System.nanoTime();
+      for (int x = 0; x < xEdges.length - 1; x++) {
+        for (int y = 0; y < yEdges.length - 1; y++) {
+          ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg));
+          Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+          ImageReader reader = readers.next();
+          try {
+            reader.setInput(iis);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(xEdges[x], yEdges[y],
+                xEdges[x + 1] - xEdges[x], yEdges[y + 1] - yEdges[y]));
+            reader.read(0, param);
+          } finally {
+            reader.dispose();
+            iis.close();
+          }
+        }
+      }
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best;
+  }
+
+  @Test
+  public void testAlignment() throws IOException {
+    byte[] jpeg;
+    try {
+      jpeg = encodeJpeg();
+    } catch (UnsatisfiedLinkError | NoClassDefFoundError e) {
+      assumeTrue("No ImageIO", false);
+      return;
+    }
+
+    // ImageIO writes baseline JPEG with 4:2:0 chroma subsampling
+    int mcuSize = JpegHeader.readMcuSize(new ByteArrayInputStream(jpeg), JpegHeader.MAX_HEADER_SIZE);
+    assertEquals(16, mcuSize);
+
+    int[] xEdges = alignedEdges(WIDTH, 1);
+    int[] yEdges = alignedEdges(HEIGHT, 1);
+    int[] alignedXEdges = alignedEdges(WIDTH, mcuSize);
+    int[] alignedYEdges = alignedEdges(HEIGHT, mcuSize);
+
+    long totalMcus = (long) Utils.ceilDiv(WIDTH, mcuSize) * Utils.ceilDiv(HEIGHT, mcuSize);
+    long mcus = countMcus(xEdges, yEdges, mcuSize);
+    long alignedMcus = countMcus(alignedXEdges, alignedYEdges, mcuSize);
+    // Aligned tiles decode each MCU once
+    assertEquals(totalMcus, alignedMcus);
+    assertTrue(mcus > totalMcus);
+
+    long nanos = decodeTiles(jpeg, xEdges, yEdges);
+    long alignedNanos = decodeTiles(jpeg, alignedXEdges, alignedYEdges);
+    assertTrue("aligned " + alignedNanos + " ns, unaligned " + nanos + " ns", alignedNanos < nanos);
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+
+public class JpegHeaderTest {
+
+  private static final byte[] THUMBNAIL =
+      {(byte) 0xFF, (byte) 0xD8, 1, 2, 3, (byte) 0xFF, (byte) 0xD9};
+
+  private static void writeShort(ByteArrayOutputStream os, int value, boolean littleEndian) {
+    if (littleEndian) {
+      os.write(value);
+      os.write(value >> 8);
+    } else {
+      os.write(value >> 8);
+      os.write(value);
+    }
+  }
+
+  private static void writeInt(ByteArrayOutputStream os, int value, boolean littleEndian) {
+    if (littleEndian) {
+      writeShort(os, value, true);
+      writeShort(os, value >> 16, true);
+    } else {
+      writeShort(os, value >> 16, false);
+      writeShort(os, value, false);
+    }
+  }
+
+  private static void writeEntry(ByteArrayOutputStream os, int tag, int value,
+      boolean littleEndian) {
+    writeShort(os, tag, littleEndian);
+    // LONG, count 1
+    writeShort(os, 4, littleEndian);
+    writeInt(os, 1, littleEndian);
+    writeInt(os, value, littleEndian);
+  }
+
+  /*
+   * SOI, APP1 with an empty IFD0 and a thumbnail in IFD1, then SOS.
+   */
+  private static byte[] jpeg(boolean littleEndian, boolean withThumbnail) {
+    ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+    tiff.write(littleEndian ? 'I' : 'M');
+    tiff.write(littleEndian ? 'I' : 'M');
+    writeShort(tiff, 42, littleEndian);
+    // IFD0 at 8, no entry
+    writeInt(tiff, 8, littleEndian);
+    writeShort(tiff, 0, littleEndian);
+    // IFD1 at 14
+    writeInt(tiff, withThumbnail ? 14 : 0, littleEndian);
+    if (withThumbnail) {
+      writeShort(tiff, 2, littleEndian);
+      // Thumbnail after IFD1, 14 + 2 + 2 * 12 + 4
+      writeEntry(tiff, 0x0201, 44, littleEndian);
+      writeEntry(tiff, 0x0202, THUMBNAIL.length, littleEndian);
+      writeInt(tiff, 0, littleEndian);
+      tiff.write(THUMBNAIL, 0, THUMBNAIL.length);
+    }
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    os.write(0xFF);
+    os.write(0xD8);
+    os.write(0xFF);
+    os.write(0xE1);
+    writeShort(os, 2 + 6 + tiff.size(), false);
+    os.write('E');
+    os.write('x');
+    os.write('i');
+    os.write('f');
+    os.write(0);
+    os.write(0);
+    byte[] bytes = tiff.toByteArray();
+    os.write(bytes, 0, bytes.length);
+    os.write(0xFF);
+    os.write(0xDA);
+    return os.toByteArray();
+  }
+
+  private static byte[] read(byte[] jpeg, int limit) throws IOException {
+    return JpegHeader.readExifThumbnail(new ByteArrayInputStream(jpeg), limit);
+  }
+
+  @Test
+  public void testReadExifThumbnail() throws IOException {
+    assertArrayEquals(THUMBNAIL, read(jpeg(true, true), JpegHeader.MAX_HEADER_SIZE));
+    assertArrayEquals(THUMBNAIL, read(jpeg(false, true), JpegHeader.MAX_HEADER_SIZE));
+  }
+
+  @Test
+  public void testNoExifThumbnail() throws IOException {
+    assertNull(read(jpeg(true, false), JpegHeader.MAX_HEADER_SIZE));
+    // Out of the limit
+    assertNull(read(jpeg(true, true), 32));
+    // Not JPEG
+    assertNull(read(new byte[] {0x00, 0x01, 0x02}, JpegHeader.MAX_HEADER_SIZE));
+  }
+
+  @Test
+  public void testReadMcuSize() throws IOException {
+    byte[] png = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    assertEquals(0, JpegHeader.readMcuSize(new ByteArrayInputStream(png), JpegHeader.MAX_HEADER_SIZE));
+
+    // Progressive
+    byte[] progressive = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xC2, 0, 17,
+        8, 0, 16, 0, 16, 3, 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1};
+    assertEquals(0, JpegHeader.readMcuSize(new ByteArrayInputStream(progressive), 100));
+
+    // Header out of the limit
+    byte[] baseline = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 4, 0, 0,
+        (byte) 0xFF, (byte) 0xC0, 0, 17, 8, 0, 16, 0, 16, 3, 1, 0x21, 0, 2, 0x11, 1, 3, 0x11, 1};
+    assertEquals(16, JpegHeader.readMcuSize(new ByteArrayInputStream(baseline), 100));
+    assertEquals(0, JpegHeader.readMcuSize(new ByteArrayInputStream(baseline), 10));
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+
+public class JpegRestartIndexTest {
+
+  private static void writeSegment(ByteArrayOutputStream os, int marker, byte[] segment) {
+    os.write(0xFF);
+    os.write(marker);
+    os.write((segment.length + 2) >> 8);
+    os.write(segment.length + 2);
+    os.write(segment, 0, segment.length);
+  }
+
+  /*
+   * The header of a 3-component JPEG image with 16x16 MCUs,
+   * the tables are blank.
+   */
+  static byte[] header(int width, int height, int interval, boolean exif) {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    os.write(0xFF);
+    os.write(0xD8);
+    if (exif) {
+      writeSegment(os, 0xE1, new byte[] {'E', 'x', 'i', 'f', 0, 0, 'M', 'M', 0, 42, 0, 0, 0, 8});
+    }
+    writeSegment(os, 0xDB, new byte[65]);
+    writeSegment(os, 0xC0, new byte[] {8, (byte) (height >> 8), (byte) height,
+        (byte) (width >> 8), (byte) width, 3, 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+    writeSegment(os, 0xC4, new byte[17]);
+    writeSegment(os, 0xDD, new byte[] {(byte) (interval >> 8), (byte) interval});
+    writeSegment(os, 0xDA, new byte[] {3, 1, 0, 2, 0x11, 3, 0x11, 0, 63, 0});
+    return os.toByteArray();
+  }
+
+  /*
+   * Random entropy-coded intervals, 0xFF is stuffed.
+   */
+  static byte[][] intervals(int count, int size, Random random) {
+    byte[][] intervals = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      for (int j = 0; j < size; j++) {
+        int b = random.nextInt(256);
+        os.write(b);
+        if (b == 0xFF) {
+          os.write(0);
+        }
+      }
+      intervals[i] = os.toByteArray();
+    }
+    return intervals;
+  }
+
+  /*
+   * The image with the intervals from first to last, restart markers are numbered
+   * from first. Patches the height if it's positive.
+   */
+  static byte[] jpeg(byte[] header, byte[][] intervals, int first, int last, int height) {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    os.write(header, 0, header.length);
+    for (int i = first; i <= last; i++) {
+      os.write(intervals[i], 0, intervals[i].length);
+      if (i != last) {
+        os.write(0xFF);
+        os.write(0xD0 + (i - first) % 8);
+      }
+    }
+    os.write(0xFF);
+    os.write(0xD9);
+    byte[] bytes = os.toByteArray();
+
+    if (height > 0) {
+      for (int i = 0; ; i++) {
+        if ((bytes[i] & 0xFF) == 0xFF && (bytes[i + 1] & 0xFF) == 0xC0) {
+          // Marker, length and precision
+          bytes[i + 5] = (byte) (height >> 8);
+          bytes[i + 6] = (byte) height;
+          break;
+        }
+      }
+    }
+    return bytes;
+  }
+
+  static byte[] jpeg(byte[] header, byte[][] intervals) {
+    return jpeg(header, intervals, 0, intervals.length - 1, 0);
+  }
+
+  private static JpegRestartIndex read(byte[] jpeg) throws IOException {
+    return JpegHeader.readRestartIndex(new ByteArrayInputStream(jpeg),
+        JpegHeader.MAX_HEADER_SIZE);
+  }
+
+  private static class MemoryFetcher implements RangeFetcher {
+
+    private final byte[] data;
+    private int fetches;
+
+    private MemoryFetcher(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public long length() {
+      return data.length;
+    }
+
+    @Override
+    public void fetch(long position, byte[] buffer, int offset, int length) {
+      fetches++;
+      System.arraycopy(data, (int) position, buffer, offset, length);
+    }
+  }
+
+  @Test
+  public void testReadRestartIndex() throws IOException {
+    Random random = new Random(0);
+
+    // 7 x 5 MCUs, an interval for each MCU row
+    JpegRestartIndex index = read(jpeg(header(100, 70, 7, true), intervals(5, 10, random)));
+    assertNotNull(index);
+    assertEquals(100, index.getWidth());
+    assertEquals(70, index.getHeight());
+    assertEquals(16, index.getMcuSize());
+    assertEquals(5, index.getBandCount());
+    assertEquals(4, index.getBand(69));
+
+    // Bands must start at intervals
+    index = read(jpeg(header(100, 70, 14, true), intervals(3, 10, random)));
+    assertEquals(3, index.getBandCount());
+    index = read(jpeg(header(100, 70, 3, true), intervals(12, 10, random)));
+    assertEquals(2, index.getBandCount());
+    assertEquals(0, index.getBand(47));
+    assertEquals(1, index.getBand(48));
+    assertEquals(48, index.getBandTop(1));
+    assertEquals(70, index.getBandBottom(1));
+
+    // No restart markers
+    assertNull(read(jpeg(header(100, 70, 0, true), intervals(1, 10, random))));
+  }
+
+  @Test
+  public void testScanAndReadBands() throws IOException {
+    Random random = new Random(0);
+    byte[] header = header(100, 70, 7, true);
+    byte[][] intervals = intervals(5, 30 * 1000, random);
+    byte[] jpeg = jpeg(header, intervals);
+
+    MemoryFetcher fetcher = new MemoryFetcher(jpeg);
+    File cacheFile = File.createTempFile("image", ".cache");
+    RangeSource source = new RangeSource(fetcher, cacheFile, null);
+    try {
+      // Only the header is read
+      JpegRestartIndex index = JpegHeader.readRestartIndex(new SourceInputStream(source),
+          JpegHeader.MAX_HEADER_SIZE);
+      assertEquals(1, fetcher.fetches);
+
+      // The first chunk has the first two intervals
+      assertTrue(index.scan(source));
+      assertTrue(index.isIndexed(1));
+      assertFalse(index.isIndexed(2));
+      assertEquals(2, index.getIndexedBandCount());
+      assertFalse(index.scan(source));
+
+      assertEquals(jpeg.length, source.read(0, new byte[jpeg.length], 0, jpeg.length));
+      assertTrue(index.scan(source));
+      assertTrue(index.isIndexed(4));
+      assertEquals(index.getBandCount(), index.getIndexedBandCount());
+      assertEquals(jpeg.length, index.getScannedPosition());
+
+      // No EXIF, the height is the height of bands, restart markers are renumbered
+      byte[] plainHeader = header(100, 70, 7, false);
+      assertArrayEquals(jpeg(plainHeader, intervals, 2, 3, 32), index.readBands(source, 2, 3));
+      assertArrayEquals(jpeg(plainHeader, intervals, 4, 4, 6), index.readBands(source, 4, 4));
+      assertArrayEquals(jpeg(plainHeader, intervals), index.readBands(source, 0, 4));
+    } finally {
+      source.close();
+      cacheFile.delete();
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class LzCodecTest {
+
+  private static byte[] roundTrip(byte[] data) {
+    byte[] packed = new byte[LzCodec.maxCompressedLength(data.length)];
+    int packedLength = LzCodec.compress(data, data.length, packed, new int[LzCodec.HASH_TABLE_SIZE]);
+    byte[] unpacked = new byte[data.length];
+    assertEquals(data.length, LzCodec.decompress(packed, packedLength, unpacked));
+    return unpacked;
+  }
+
+  @Test
+  public void testEmptyAndShort() {
+    assertArrayEquals(new byte[0], roundTrip(new byte[0]));
+    assertArrayEquals(new byte[] {1}, roundTrip(new byte[] {1}));
+    assertArrayEquals(new byte[] {1, 2, 3, 4, 5}, roundTrip(new byte[] {1, 2, 3, 4, 5}));
+  }
+
+  @Test
+  public void testRandom() {
+    Random random = new Random(0);
+    for (int length : new int[] {7, 100, 4096, 65536 * 3 + 17}) {
+      byte[] data = new byte[length];
+      random.nextBytes(data);
+      assertArrayEquals(data, roundTrip(data));
+    }
+  }
+
+  @Test
+  public void testPixels() {
+    // Gradient rows with flat regions, like a decoded tile
+    int width = 512;
+    int height = 256;
+    byte[] data = new byte[width * height * 4];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int i = (y * width + x) * 4;
+        data[i] = (byte) (x < width / 2 ? 0 : x);
+        data[i + 1] = (byte) (y / 8);
+        data[i + 2] = (byte) 0x80;
+        data[i + 3] = (byte) 0xff;
+      }
+    }
+
+    byte[] packed = new byte[LzCodec.maxCompressedLength(data.length)];
+    int packedLength = LzCodec.compress(data, data.length, packed, new int[LzCodec.HASH_TABLE_SIZE]);
+    assertTrue(packedLength < data.length / 4);
+
+    byte[] unpacked = new byte[data.length];
+    assertEquals(data.length, LzCodec.decompress(packed, packedLength, unpacked));
+    assertArrayEquals(data, unpacked);
+  }
+
+  @Test
+  public void testLongRun() {
+    byte[] data = new byte[100000];
+    Arrays.fill(data, (byte) 7);
+    data[50000] = 8;
+    assertArrayEquals(data, roundTrip(data));
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PreviewDemandsTest {
+
+  @Test
+  public void testClaims() {
+    PreviewDemands demands = new PreviewDemands();
+    assertEquals(0, demands.getMinSample());
+
+    // Three TiledDrawables sharing a decoder, two of them in grid cells
+    PreviewDemands.Claim cell1 = new PreviewDemands.Claim(demands);
+    PreviewDemands.Claim cell2 = new PreviewDemands.Claim(demands);
+    PreviewDemands.Claim page = new PreviewDemands.Claim(demands);
+    cell1.set(32);
+    cell2.set(16);
+    // Claiming again every frame counts once
+    cell2.set(16);
+    assertEquals(16, demands.getMinSample());
+    page.set(4);
+    assertEquals(4, demands.getMinSample());
+
+    // Paused
+    page.set(0);
+    assertEquals(16, demands.getMinSample());
+    // Drawn smaller
+    cell2.set(64);
+    assertEquals(32, demands.getMinSample());
+    // Recycled
+    cell1.set(0);
+    assertEquals(64, demands.getMinSample());
+    cell2.set(0);
+    assertEquals(0, demands.getMinSample());
+    assertEquals(0, cell2.get());
+  }
+
+  @Test
+  public void testGridMode() {
+    // The full preview is at sample 4
+    int maxSample = 4;
+    assertEquals(4, TiledDrawable.getPreviewDemand(false, 32, maxSample));
+    assertEquals(32, TiledDrawable.getPreviewDemand(true, 32, maxSample));
+    assertEquals(4, TiledDrawable.getPreviewDemand(true, 1, maxSample));
+
+    // A cell with the downgraded preview
+    assertTrue(TiledDrawable.drawsPreview(true, 32, 32, 32, maxSample));
+    // Drawn bigger, the preview is drawn until it's restored, no tile is needed
+    assertTrue(TiledDrawable.drawsPreview(true, 8, 8, 32, maxSample));
+    assertTrue(TiledDrawable.drawsPreview(true, 4, 4, 32, maxSample));
+    // Bigger than the full preview
+    assertFalse(TiledDrawable.drawsPreview(true, 2, 2, 32, maxSample));
+    assertFalse(TiledDrawable.drawsPreview(true, 2, 2, 4, maxSample));
+
+    // Not in grid mode, tiles replace a preview downgraded to save memory
+    assertFalse(TiledDrawable.drawsPreview(false, 4, 4, 8, maxSample));
+    assertTrue(TiledDrawable.drawsPreview(false, 4, 8, 8, maxSample));
+  }
+}
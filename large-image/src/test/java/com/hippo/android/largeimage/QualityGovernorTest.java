@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class QualityGovernorTest {
+
+  private static final long AREA = 4000L * 3000L;
+
+  @Test
+  public void testNoPressure() {
+    QualityGovernor governor = new QualityGovernor();
+    assertEquals(1, governor.apply(1, 8, AREA, 0.5f, 0));
+    assertEquals(4, governor.apply(4, 8, AREA, 0.5f, 5000));
+    assertEquals(0, governor.getBias());
+  }
+
+  @Test
+  public void testMemoryPressure() {
+    QualityGovernor governor = new QualityGovernor();
+    assertEquals(2, governor.apply(1, 8, AREA, 0.05f, 0));
+    // Held
+    assertEquals(2, governor.apply(1, 8, AREA, 0.05f, 500));
+    assertEquals(4, governor.apply(1, 8, AREA, 0.05f, 1000));
+    // Max bias
+    assertEquals(4, governor.apply(1, 8, AREA, 0.05f, 2000));
+    // Never coarser than max sample
+    assertEquals(8, governor.apply(4, 8, AREA, 0.05f, 3000));
+
+    // Between thresholds, keep the bias
+    assertEquals(4, governor.apply(1, 8, AREA, 0.2f, 4000));
+    // Recovered
+    assertEquals(2, governor.apply(1, 8, AREA, 0.5f, 5000));
+    assertEquals(2, governor.apply(1, 8, AREA, 0.5f, 5500));
+    assertEquals(1, governor.apply(1, 8, AREA, 0.5f, 6000));
+    assertEquals(2, governor.getStepUpCount());
+    assertEquals(2, governor.getStepDownCount());
+  }
+
+  @Test
+  public void testThroughputPressure() {
+    QualityGovernor governor = new QualityGovernor();
+    // 200ns per pixel, 2.4s for the whole viewport at sample 1
+    governor.onDecoded(1000000, 200000000L);
+    assertEquals(200.0f, governor.getNanosPerPixel(), 0.001f);
+    assertEquals(2, governor.apply(1, 8, AREA, 0.5f, 0));
+    // 0.6s at sample 2, it's not slow, but not fast enough to step down
+    assertEquals(2, governor.apply(1, 8, AREA, 0.5f, 2000));
+
+    // Faster decoding
+    for (int i = 0; i < 20; i++) {
+      governor.onDecoded(1000000, 20000000L);
+    }
+    assertEquals(1, governor.apply(1, 8, AREA, 0.5f, 4000));
+  }
+
+  @Test
+  public void testInvalidDecoding() {
+    QualityGovernor governor = new QualityGovernor();
+    governor.onDecoded(0, 100);
+    governor.onDecoded(100, -1);
+    assertEquals(0.0f, governor.getNanosPerPixel(), 0.0f);
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests RangeSource with HttpRangeFetcher against a local HTTP server.
+ */
+public class RangeSourceTest {
+
+  private static final int LENGTH = 1000 * 1000;
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+  // The bytes served, random by default
+  private byte[] data;
+  // The start positions of the fetched ranges
+  private final List<Long> fetched = Collections.synchronizedList(new ArrayList<Long>());
+  private HttpServer server;
+  private URL url;
+  private File cacheFile;
+
+  /*
+   * Runs tasks when asked, so the order of fetching is deterministic.
+   */
+  private static class ManualExecutor implements Executor {
+
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    private void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    data = new byte[LENGTH];
+    new Random(0).nextBytes(data);
+
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/image", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+          exchange.getResponseHeaders().set("Content-Length", Integer.toString(data.length));
+          exchange.sendResponseHeaders(200, -1);
+          exchange.close();
+          return;
+        }
+
+        Matcher matcher = RANGE.matcher(exchange.getRequestHeaders().getFirst("Range"));
+        assertTrue(matcher.matches());
+        int start = Integer.parseInt(matcher.group(1));
+        int end = Integer.parseInt(matcher.group(2));
+        fetched.add((long) start);
+
+        exchange.getResponseHeaders().set("Content-Range",
+            "bytes " + start + "-" + end + "/" + data.length);
+        exchange.sendResponseHeaders(206, end - start + 1);
+        OutputStream os = exchange.getResponseBody();
+        os.write(data, start, end - start + 1);
+        os.close();
+      }
+    });
+    server.start();
+
+    url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/image");
+    cacheFile = File.createTempFile("image", ".cache");
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    cacheFile.delete();
+  }
+
+  @Test
+  public void testReadOnDemand() throws IOException {
+    RangeSource source = new RangeSource(new HttpRangeFetcher(url), cacheFile, null);
+    try {
+      assertEquals(LENGTH, source.length());
+      assertFalse(source.isAvailable(0, 1));
+
+      byte[] buffer = new byte[100];
+      assertEquals(100, source.read(LENGTH - 200, buffer, 0, 100));
+      assertArrayEquals(Arrays.copyOfRange(data, LENGTH - 200, LENGTH - 100), buffer);
+      assertTrue(source.isAvailable(LENGTH - 200, 100));
+      assertFalse(source.isAvailable(0, LENGTH));
+
+      // Only the chunk read is fetched, and it's fetched once
+      assertEquals(100, source.read(LENGTH - 100, buffer, 0, 100));
+      assertEquals(1, fetched.size());
+      assertEquals(-1, source.read(LENGTH, buffer, 0, 100));
+    } finally {
+      source.close();
+    }
+  }
+
+  @Test
+  public void testRequestFirst() throws IOException {
+    ManualExecutor executor = new ManualExecutor();
+    RangeSource source = new RangeSource(new HttpRangeFetcher(url), cacheFile, executor);
+    final List<Long> arrived = new ArrayList<>();
+    source.setListener(new RangeSource.Listener() {
+      @Override
+      public void onRangeAvailable(long position, long length) {
+        arrived.add(position);
+      }
+    });
+
+    try {
+      // Like the bytes of a region at the bottom of the image
+      long position = LENGTH - 300 * 1000;
+      source.request(position, 1000);
+      executor.runAll();
+
+      assertTrue(source.isComplete());
+      assertEquals(fetched, arrived);
+      // The requested range is fetched first, then the rest in order
+      assertTrue(fetched.get(0) <= position);
+      assertTrue(fetched.get(0) > position - 64 * 1024);
+      for (int i = 2; i < fetched.size(); i++) {
+        assertTrue(fetched.get(i - 1) < fetched.get(i));
+      }
+
+      byte[] buffer = new byte[LENGTH];
+      assertEquals(LENGTH, source.read(0, buffer, 0, LENGTH));
+      assertArrayEquals(data, buffer);
+    } finally {
+      source.close();
+    }
+  }
+
+  @Test
+  public void testReadInOneFetch() throws IOException {
+    RangeSource source = new RangeSource(new HttpRangeFetcher(url), cacheFile, null);
+    try {
+      byte[] buffer = new byte[300 * 1000];
+      assertEquals(buffer.length, source.read(100, buffer, 0, buffer.length));
+      assertArrayEquals(Arrays.copyOfRange(data, 100, 100 + buffer.length), buffer);
+      // Adjacent missing chunks are fetched together
+      assertEquals(1, fetched.size());
+
+      // Only the missing chunks after the fetched ones
+      assertEquals(buffer.length, source.read(200 * 1000, buffer, 0, buffer.length));
+      assertArrayEquals(Arrays.copyOfRange(data, 200 * 1000, 500 * 1000), buffer);
+      assertEquals(2, fetched.size());
+      assertTrue(fetched.get(1) > 300 * 1000);
+    } finally {
+      source.close();
+    }
+  }
+
+  @Test
+  public void testRequestAgain() throws IOException {
+    ManualExecutor executor = new ManualExecutor();
+    RangeSource source = new RangeSource(new HttpRangeFetcher(url), cacheFile, executor);
+    source.setSequential(false);
+
+    try {
+      long chunk = 64 * 1024;
+      for (int i = 0; i < 1000; i++) {
+        source.request(10 * chunk, LENGTH - 10 * chunk);
+        source.request(5 * chunk, 5 * chunk);
+      }
+      // Requesting again moves it to the front
+      source.request(10 * chunk, LENGTH - 10 * chunk);
+      executor.runAll();
+
+      // Each range is fetched once in one fetch
+      assertEquals(Arrays.asList(10 * chunk, 5 * chunk), fetched);
+      assertTrue(source.isAvailable(5 * chunk, LENGTH - 5 * chunk));
+      assertFalse(source.isAvailable(0, 5 * chunk));
+    } finally {
+      source.close();
+    }
+  }
+
+  @Test
+  public void testRequestBand() throws IOException {
+    // 20 bands of one MCU row
+    Random random = new Random(0);
+    byte[] header = JpegRestartIndexTest.header(100, 320, 7, false);
+    byte[][] intervals = JpegRestartIndexTest.intervals(20, 20 * 1000, random);
+    data = JpegRestartIndexTest.jpeg(header, intervals);
+
+    ManualExecutor executor = new ManualExecutor();
+    final RangeSource source = new RangeSource(new HttpRangeFetcher(url), cacheFile, executor);
+    source.setSequential(false);
+
+    try {
+      final JpegRestartIndex index = JpegHeader.readRestartIndex(new SourceInputStream(source),
+          JpegHeader.MAX_HEADER_SIZE);
+      assertEquals(1, fetched.size());
+      // Scan bytes once they arrive, like RangeImageRegionDecoder
+      source.setListener(new RangeSource.Listener() {
+        @Override
+        public void onRangeAvailable(long position, long length) {
+          try {
+            index.scan(source);
+          } catch (IOException e) {
+            throw new AssertionError(e);
+          }
+        }
+      });
+
+      // Like a region in the middle of the screen
+      int band = index.getBand(160);
+      for (int i = 0; !index.requestBand(source, band); i++) {
+        assertTrue(i < 3);
+        executor.runAll();
+      }
+
+      // The bytes below the region aren't fetched
+      assertFalse(source.isComplete());
+      assertFalse(source.isAvailable(data.length - 1, 1));
+      assertEquals(fetched.size(), new HashSet<>(fetched).size());
+      assertArrayEquals(JpegRestartIndexTest.jpeg(header, intervals, band, band, 16),
+          index.readBands(source, band, band));
+    } finally {
+      source.close();
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class TileGridTest {
+
+  private static final int[] X_EDGES = {0, 100, 200, 300, 400, 450};
+  private static final int[] Y_EDGES = {0, 50, 250, 300};
+
+  private static class Recorder implements TileGrid.Callback {
+
+    private final boolean[][] visible;
+    private int changes;
+
+    private Recorder(int columns, int rows) {
+      visible = new boolean[columns][rows];
+    }
+
+    @Override
+    public void onTileEnter(int column, int row) {
+      assertFalse(visible[column][row]);
+      visible[column][row] = true;
+      changes++;
+    }
+
+    @Override
+    public void onTileLeave(int column, int row) {
+      assertTrue(visible[column][row]);
+      visible[column][row] = false;
+      changes++;
+    }
+  }
+
+  private static boolean intersects(int column, int row,
+      float left, float top, float right, float bottom) {
+    return left < right && top < bottom
+        && X_EDGES[column] < right && left < X_EDGES[column + 1]
+        && Y_EDGES[row] < bottom && top < Y_EDGES[row + 1];
+  }
+
+  private static void assertVisible(Recorder recorder, TileGrid.Range range,
+      float left, float top, float right, float bottom) {
+    for (int column = 0; column < X_EDGES.length - 1; column++) {
+      for (int row = 0; row < Y_EDGES.length - 1; row++) {
+        boolean expected = intersects(column, row, left, top, right, bottom);
+        assertEquals(expected, recorder.visible[column][row]);
+        assertEquals(expected, range.contains(column, row));
+      }
+    }
+  }
+
+  @Test
+  public void testRandom() {
+    TileGrid grid = new TileGrid(X_EDGES, Y_EDGES);
+    TileGrid.Range range = new TileGrid.Range();
+    Recorder recorder = new Recorder(grid.getColumnCount(), grid.getRowCount());
+    Random random = new Random(0);
+
+    for (int i = 0; i < 2000; i++) {
+      float left = random.nextInt(600) - 75;
+      float top = random.nextInt(400) - 50;
+      float right = left + random.nextInt(300);
+      float bottom = top + random.nextInt(200);
+      grid.update(range, left, top, right, bottom, recorder);
+      assertVisible(recorder, range, left, top, right, bottom);
+    }
+
+    grid.clear(range, recorder);
+    assertTrue(range.isEmpty());
+    assertVisible(recorder, range, 0, 0, 0, 0);
+  }
+
+  @Test
+  public void testScrollReportsEdgesOnly() {
+    TileGrid grid = new TileGrid(X_EDGES, Y_EDGES);
+    TileGrid.Range range = new TileGrid.Range();
+    Recorder recorder = new Recorder(grid.getColumnCount(), grid.getRowCount());
+
+    grid.update(range, 10, 10, 210, 260, recorder);
+    assertEquals(3 * 3, recorder.changes);
+
+    // Moving inside the same tiles reports nothing
+    recorder.changes = 0;
+    grid.update(range, 20, 20, 220, 270, recorder);
+    assertEquals(0, recorder.changes);
+
+    // One column leaves, one column enters
+    recorder.changes = 0;
+    grid.update(range, 120, 20, 320, 270, recorder);
+    assertEquals(3 + 3, recorder.changes);
+    assertVisible(recorder, range, 120, 20, 320, 270);
+  }
+
+  @Test
+  public void testFind() {
+    TileGrid grid = new TileGrid(X_EDGES, Y_EDGES);
+    TileGrid.Range range = new TileGrid.Range();
+    Random random = new Random(1);
+
+    for (int i = 0; i < 500; i++) {
+      float left = random.nextInt(600) - 75;
+      float top = random.nextInt(400) - 50;
+      float right = left + random.nextInt(300);
+      float bottom = top + random.nextInt(200);
+      grid.find(range, left, top, right, bottom);
+      for (int column = 0; column < grid.getColumnCount(); column++) {
+        for (int row = 0; row < grid.getRowCount(); row++) {
+          assertEquals(intersects(column, row, left, top, right, bottom),
+              range.contains(column, row));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testEdges() {
+    TileGrid grid = new TileGrid(X_EDGES, Y_EDGES);
+    TileGrid.Range range = new TileGrid.Range();
+    Recorder recorder = new Recorder(grid.getColumnCount(), grid.getRowCount());
+
+    // Touching edges don't intersect
+    grid.update(range, 100, 50, 200, 250, recorder);
+    assertEquals(1, recorder.changes);
+    assertTrue(range.contains(1, 1));
+
+    // Out of the grid
+    grid.update(range, 500, 0, 600, 100, recorder);
+    assertTrue(range.isEmpty());
+    assertVisible(recorder, range, 500, 0, 600, 100);
+  }
+
+  @Test
+  public void testSwitchTo() {
+    TileGrid grid = new TileGrid(X_EDGES, Y_EDGES);
+    TileGrid.Range range = new TileGrid.Range();
+    final Recorder recorder = new Recorder(grid.getColumnCount(), grid.getRowCount());
+    // A coarser level, like the next sample level
+    TileGrid other = new TileGrid(new int[] {0, 200, 450}, new int[] {0, 250, 300});
+    TileGrid.Range otherRange = new TileGrid.Range();
+    final Recorder otherRecorder = new Recorder(other.getColumnCount(), other.getRowCount());
+
+    grid.update(range, 50, 0, 350, 280, recorder);
+    final int visible = recorder.changes;
+    // Entering tiles are reported while the leaving tiles are still visible
+    TileGrid.Callback checker = new TileGrid.Callback() {
+      @Override
+      public void onTileEnter(int column, int row) {
+        assertEquals(visible, recorder.changes);
+        otherRecorder.onTileEnter(column, row);
+      }
+
+      @Override
+      public void onTileLeave(int column, int row) {
+        otherRecorder.onTileLeave(column, row);
+      }
+    };
+    grid.switchTo(range, recorder, other, otherRange, 50, 0, 350, 280, checker);
+
+    assertTrue(range.isEmpty());
+    assertEquals(2 * visible, recorder.changes);
+    assertEquals(4, otherRecorder.changes);
+    assertTrue(otherRange.contains(1, 1));
+  }
+
+  @Test
+  public void testAlignedTileEdges() {
+    // Aligned anchor
+    assertArrayEquals(new int[] {0, 64, 160, 256, 300},
+        TiledDrawable.getTileEdges(300, 96, 64, 32));
+    // The anchor is kept, other edges are aligned
+    assertArrayEquals(new int[] {0, 50, 128, 224, 300},
+        TiledDrawable.getTileEdges(300, 96, 50, 32));
+    assertArrayEquals(new int[] {0, 64, 150, 224, 300},
+        TiledDrawable.getTileEdges(300, 96, 150, 32));
+
+    Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      int alignment = 1 << random.nextInt(5);
+      int tileSize = alignment * (1 + random.nextInt(8));
+      int length = 1 + random.nextInt(500);
+      int anchor = random.nextInt(length);
+      int[] edges = TiledDrawable.getTileEdges(length, tileSize, anchor, alignment);
+      assertEquals(0, edges[0]);
+      assertEquals(length, edges[edges.length - 1]);
+      boolean hasAnchor = false;
+      for (int j = 1; j < edges.length; j++) {
+        assertTrue(edges[j] > edges[j - 1]);
+        assertTrue(edges[j] - edges[j - 1] <= tileSize);
+        if (j < edges.length - 1 && edges[j] != anchor) {
+          assertEquals(0, edges[j] % alignment);
+        }
+        hasAnchor |= edges[j - 1] == anchor;
+      }
+      assertTrue(hasAnchor);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Compares decoded pixels with displayed pixels for different tile sizes.
+ * Tiles are laid out like TiledDrawable at sample 1, and the pixels of
+ * the tiles entering the view are counted. It's slow, so run it manually.
+ */
+@Ignore("Benchmark")
+public class TileSizeBenchmarkTest {
+
+  private static final int IMAGE_WIDTH = 20000;
+  private static final int IMAGE_HEIGHT = 15000;
+  private static final int VIEW_WIDTH = 1080;
+  private static final int VIEW_HEIGHT = 1920;
+  private static final int[] TILE_SIZES = {256, 512, 1024, 1920};
+  private static final int POSITIONS = 1000;
+  private static final int FRAMES = 600;
+
+  /*
+   * Counts the tiles entering the view and their pixels.
+   */
+  private static class PixelCounter implements TileGrid.Callback {
+
+    private final int[] xEdges;
+    private final int[] yEdges;
+    private long pixels;
+    private int tiles;
+
+    private PixelCounter(int[] xEdges, int[] yEdges) {
+      this.xEdges = xEdges;
+      this.yEdges = yEdges;
+    }
+
+    @Override
+    public void onTileEnter(int column, int row) {
+      pixels += (long) (xEdges[column + 1] - xEdges[column]) * (yEdges[row + 1] - yEdges[row]);
+      tiles++;
+    }
+
+    @Override
+    public void onTileLeave(int column, int row) {}
+  }
+
+  private static class Result {
+    // Decoded pixels / displayed pixels for the first frame
+    private double firstFrameRatio;
+    // Decoded pixels / displayed pixels of a pan
+    private double panRatio;
+    private int panTiles;
+  }
+
+  private static Result run(int tileSize) {
+    int[] xEdges = TiledDrawable.getTileEdges(IMAGE_WIDTH, tileSize, 0);
+    int[] yEdges = TiledDrawable.getTileEdges(IMAGE_HEIGHT, tileSize, 0);
+    TileGrid grid = new TileGrid(xEdges, yEdges);
+    Result result = new Result();
+
+    // First frames at random positions
+    Random random = new Random(0);
+    long decoded = 0;
+    long displayed = 0;
+    for (int i = 0; i < POSITIONS; i++) {
+      PixelCounter counter = new PixelCounter(xEdges, yEdges);
+      TileGrid.Range range = new TileGrid.Range();
+      int left = random.nextInt(IMAGE_WIDTH - VIEW_WIDTH);
+      int top = random.nextInt(IMAGE_HEIGHT - VIEW_HEIGHT);
+      grid.update(range, left, top, left + VIEW_WIDTH, top + VIEW_HEIGHT, counter);
+      decoded += counter.pixels;
+      displayed += (long) VIEW_WIDTH * VIEW_HEIGHT;
+    }
+    result.firstFrameRatio = (double) decoded / displayed;
+
+    // A diagonal pan, displayed pixels are the pixels entering the view
+    PixelCounter counter = new PixelCounter(xEdges, yEdges);
+    TileGrid.Range range = new TileGrid.Range();
+    float dx = (float) (IMAGE_WIDTH - VIEW_WIDTH) / FRAMES;
+    float dy = (float) (IMAGE_HEIGHT - VIEW_HEIGHT) / FRAMES;
+    for (int i = 0; i <= FRAMES; i++) {
+      float left = i * dx;
+      float top = i * dy;
+      grid.update(range, left, top, left + VIEW_WIDTH, top + VIEW_HEIGHT, counter);
+    }
+    // Each frame shows a dx wide column and a dy high row more
+    displayed = (long) VIEW_WIDTH * VIEW_HEIGHT
+        + (long) (FRAMES * (dx * VIEW_HEIGHT + dy * VIEW_WIDTH - dx * dy));
+    result.panRatio = (double) counter.pixels / displayed;
+    result.panTiles = counter.tiles;
+
+    return result;
+  }
+
+  @Test
+  public void testDecodedPixels() {
+    Result[] results = new Result[TILE_SIZES.length];
+    for (int i = 0; i < TILE_SIZES.length; i++) {
+      results[i] = run(TILE_SIZES[i]);
+    }
+
+    for (int i = 1; i < TILE_SIZES.length; i++) {
+      // Smaller tiles decode fewer pixels, but more tiles
+      assertTrue(results[i - 1].firstFrameRatio < results[i].firstFrameRatio);
+      assertTrue(results[i - 1].panRatio < results[i].panRatio);
+      assertTrue(results[i - 1].panTiles > results[i].panTiles);
+    }
+    // Screen sized tiles decode about twice the pixels shown or more
+    assertTrue(results[TILE_SIZES.length - 1].firstFrameRatio > 2.0);
+    assertTrue(results[0].firstFrameRatio < 1.5);
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.android.largeimage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.AsyncTask;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class TiledDrawableTest {
+
+  // Runs tasks in the calling thread
+  private static final Executor DIRECT_EXECUTOR = new Executor() {
+    @Override
+    public void execute(@NonNull Runnable command) {
+      command.run();
+    }
+  };
+
+  @Test
+  public void testTrimMemoryDuringPreload() {
+    StubDecoder decoder = new StubDecoder(4000, 4000);
+    decoder.onDecode = new Runnable() {
+      @Override
+      public void run() {
+        // Like the main thread trims memory while a worker thread preloads tiles
+        LargeImage.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+      }
+    };
+
+    TiledDrawable drawable =
+        new TiledDrawable(decoder, AsyncTask.SERIAL_EXECUTOR, false, false);
+    drawable.preloadTiles(2000, 2000);
+    // 2x2 tiles at sample 2, trimMemory() in the middle doesn't drop them
+    assertEquals(4, decoder.decodeCount);
+    assertEquals(0, decoder.recycleCount);
+
+    decoder.onDecode = null;
+    drawable.publish();
+    LargeImage.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+    assertEquals(4, decoder.recycleCount);
+
+    drawable.recycle();
+  }
+
+  @Test
+  public void testCancelDecodingOntoSlot() {
+    StubDecoder decoder = new StubDecoder(4000, 4000);
+    decoder.capabilities = ImageRegionDecoder.CAPABILITY_DECODE_ONTO
+        | ImageRegionDecoder.CAPABILITY_CHEAP_CANCEL;
+    final TiledDrawable drawable = new TiledDrawable(decoder, DIRECT_EXECUTOR, false);
+    TileSlotPool storage = new TileSlotPool(1024, 1, Bitmap.Config.ARGB_8888);
+    drawable.setTileStorage(storage);
+    decoder.onDecode = new Runnable() {
+      @Override
+      public void run() {
+        // Like the main thread cancels the tile while it's decoding
+        drawable.pause();
+      }
+    };
+
+    // One tile at sample 1
+    RectF rect = new RectF(0, 0, 1000, 1000);
+    drawable.draw(new Canvas(), rect, rect);
+    assertEquals(1, decoder.decodeOntoCount);
+    // The slot is released, and the tile isn't decoded again into a bitmap
+    assertNotNull(storage.obtain());
+    assertEquals(0, decoder.decodeCount);
+
+    drawable.recycle();
+    storage.recycle();
+  }
+
+  static class StubDecoder extends ImageRegionDecoder {
+
+    private final int width;
+    private final int height;
+    int capabilities;
+    // Called in each decoding
+    @Nullable
+    Runnable onDecode;
+    int decodeCount;
+    int decodeOntoCount;
+    int recycleCount;
+
+    StubDecoder(int width, int height) {
+      this.width = width;
+      this.height = height;
+      generatePreview(new PreviewProvider() {
+        @Override
+        public Bitmap getPreview(@NonNull ImageRegionDecoder decoder, int minSample) {
+          return Bitmap.createBitmap(getWidth() / minSample, getHeight() / minSample,
+              Bitmap.Config.ARGB_8888);
+        }
+
+        @Override
+        public void onPreviewGenerated(@NonNull ImageRegionDecoder decoder,
+            @NonNull Bitmap preview, int sample) {}
+      }, null);
+    }
+
+    @Override
+    public int getWidth() {
+      return width;
+    }
+
+    @Override
+    public int getHeight() {
+      return height;
+    }
+
+    @Override
+    public int getCapabilities() {
+      return capabilities;
+    }
+
+    @Override
+    public Bitmap decode(Rect rect, int sample) {
+      decodeCount++;
+      if (onDecode != null) {
+        onDecode.run();
+      }
+      return Bitmap.createBitmap(rect.width() / sample, rect.height() / sample,
+          Bitmap.Config.ARGB_8888);
+    }
+
+    @Override
+    public boolean decodeOnto(Rect rect, int sample, Bitmap dst,
+        @Nullable CancellationToken token) {
+      decodeOntoCount++;
+      if (onDecode != null) {
+        onDecode.run();
+      }
+      // Aborted if it's cancelled
+      return token == null || !token.isCancelled();
+    }
+
+    @Override
+    public void recycle(Bitmap bitmap) {
+      recycleCount++;
+      bitmap.recycle();
+    }
+  }
+}
@@ -21,6 +21,8 @@ package com.hippo.android.largeimage;
  */
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -32,4 +34,30 @@ public class UtilsTest {
     assertEquals(1, Utils.ceilDiv(6, 6));
     assertEquals(2, Utils.ceilDiv(7, 6));
   }
+
+  @Test
+  public void testEffectiveSample() {
+    assertEquals(1, Utils.effectiveSample(4000, 3000, 4000, 3000));
+    assertEquals(4, Utils.effectiveSample(4001, 3001, 1001, 751));
+    // A rounded down preview is a bit coarser
+    assertEquals(8, Utils.effectiveSample(4001, 3001, 1000, 750));
+    // EXIF thumbnail
+    assertEquals(32, Utils.effectiveSample(4000, 3000, 160, 120));
+    // Black bars
+    assertEquals(0, Utils.effectiveSample(4000, 2250, 160, 120));
+    assertEquals(0, Utils.effectiveSample(4000, 3000, 0, 0));
+  }
+
+  @Test
+  public void testFitsSample() {
+    assertTrue(Utils.fitsSample(4000, 3000, 1000, 750, 4));
+    assertTrue(Utils.fitsSample(4001, 3001, 1001, 751, 4));
+    // EXIF thumbnail
+    assertTrue(Utils.fitsSample(4000, 3000, 160, 120, 4));
+    // Its effective sample is 2, but it's still bigger than the image at sample 2
+    assertFalse(Utils.fitsSample(4000, 3000, 3000, 2250, 2));
+    assertFalse(Utils.fitsSample(4000, 3000, 1001, 751, 4));
+    // Black bars
+    assertFalse(Utils.fitsSample(4000, 2250, 160, 120, 4));
+  }
 }